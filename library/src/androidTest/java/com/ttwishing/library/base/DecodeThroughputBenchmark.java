@@ -0,0 +1,269 @@
+package com.ttwishing.library.base;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.ttwishing.library.disk.DiskLruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 1-8个线程同时加载时,VaryingSizeCappedBitmapCache每秒解码的图片数
+ *
+ * 每次加载都是新的key: 内存和disk都未命中, 由getNetworkResult直接返回本地jpeg文件,
+ * 然后走getBitmapFromNetworkResult(SizeClassBitmapPool的临时bitmap, RefCountedBitmapPool的drawable)
+ * 解码剪切绘制, 再压缩保存到DiskLruCache
+ *
+ * Bitmap需要在设备上运行, 结果输出到logcat的DecodeBenchmark
+ */
+public class DecodeThroughputBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "DecodeBenchmark";
+
+    private static final int SOURCE_WIDTH = 640;
+    private static final int SOURCE_HEIGHT = 480;
+    private static final int TARGET_WIDTH = 200;
+    private static final int TARGET_HEIGHT = 150;
+    private static final int SOURCE_COUNT = 8;
+    private static final int LOADS = 240;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+    private static final BaseRgbBitmapCache.ProcessCheck PROCESS_CHECK = new BaseRgbBitmapCache.ProcessCheck() {
+        @Override
+        public boolean isProcessCheck(BaseRgbBitmapCache.BitmapRequest bitmapRequest) {
+            return true;
+        }
+    };
+
+    private File directory;
+    private File[] sources;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = new File(getContext().getCacheDir(), "decode-benchmark");
+        deleteRecursively(directory);
+        directory.mkdirs();
+        sources = new File[SOURCE_COUNT];
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            sources[i] = writeJpeg(new File(directory, "source-" + i + ".jpg"), i);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(directory);
+        super.tearDown();
+    }
+
+    public void testThroughputByThreadCount() throws Exception {
+        //预热
+        run(1, LOADS / 4);
+
+        StringBuilder result = new StringBuilder("images/s:");
+        for (int threads : THREAD_COUNTS) {
+            result.append(' ').append(threads).append("->").append(run(threads, LOADS));
+        }
+        Log.i(TAG, result.toString());
+    }
+
+    /**
+     * @return 每秒加载的图片数
+     */
+    private long run(int threads, int loads) throws Exception {
+        File cacheDirectory = new File(directory, "cache-" + threads + "-" + System.nanoTime());
+        final BenchmarkCache cache = new BenchmarkCache(getContext(), sources,
+                DiskLruCache.open(cacheDirectory, 1, 2, 64 * 1024 * 1024));
+        final int perThread = loads / threads;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger loaded = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++) {
+                            String key = id + "-" + i;
+                            VaryingSizeRefCountedBitmapDrawable drawable = cache.getBitmap(
+                                    new SimpleBitmapRequest(key, key), PROCESS_CHECK);
+                            if (drawable != null) {
+                                loaded.incrementAndGet();
+                                drawable.release();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "decode-benchmark-" + t).start();
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        cache.clearCache();
+        cache.diskLruCache.delete();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(perThread * threads, loaded.get());
+        return loaded.get() * 1000L * 1000L * 1000L / elapsedNanos;
+    }
+
+    private static File writeJpeg(File file, int seed) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(SOURCE_WIDTH, SOURCE_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        for (int y = 0; y < SOURCE_HEIGHT; y += 8) {
+            paint.setColor(Color.rgb((y + seed * 32) & 0xff, (y * 3) & 0xff, (seed * 57) & 0xff));
+            canvas.drawRect(0, y, SOURCE_WIDTH, y + 8, paint);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+        return file;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * 网络结果为本地jpeg, 内存缓存不保存, 使每次加载都解码并保存
+     */
+    private static final class BenchmarkCache extends VaryingSizeCappedBitmapCache {
+        private final File[] sources;
+        final DiskLruCache diskLruCache;
+
+        private final RefCountingMemoryCache<VaryingSizeRefCountedBitmapDrawable> memoryCache = new RefCountingMemoryCache<VaryingSizeRefCountedBitmapDrawable>() {
+            @Override
+            public VaryingSizeRefCountedBitmapDrawable get(String key) {
+                return null;
+            }
+
+            @Override
+            public void put(String key, VaryingSizeRefCountedBitmapDrawable refCountedBitmapDrawable) {
+            }
+
+            @Override
+            public void clear() {
+            }
+        };
+
+        BenchmarkCache(Context context, File[] sources, DiskLruCache diskLruCache) {
+            super(context, TARGET_WIDTH, TARGET_HEIGHT, Bitmap.Config.ARGB_8888, 8);
+            this.sources = sources;
+            this.diskLruCache = diskLruCache;
+        }
+
+        @Override
+        protected BitmapDrawable newBitmapDrawable() {
+            return new BitmapDrawable(this.appContext.getResources(), Bitmap.createBitmap(this.width, this.height, this.config));
+        }
+
+        @Override
+        protected void handleOutOfMemoryError() {
+        }
+
+        @Override
+        protected void handleLoadResult(Callback callback, VaryingSizeRefCountedBitmapDrawable drawable, BitmapRequest bitmapRequest) {
+        }
+
+        @Override
+        protected void executeLoadTask(LoadTask task) {
+            task.run();
+        }
+
+        @Override
+        protected RefCountingMemoryCache<VaryingSizeRefCountedBitmapDrawable> getBitmapMemoryCache() {
+            return this.memoryCache;
+        }
+
+        @Override
+        protected DiskLruCache getDiskLruCache() {
+            return this.diskLruCache;
+        }
+
+        @Override
+        protected void readFromDiskLruCache(DiskLruCache.Snapshot snapshot, VaryingSizeRefCountedBitmapDrawable drawable, BitmapRequest bitmapRequest, ProcessCheck processCheck) throws IOException {
+            throw new IOException("every key is loaded once");
+        }
+
+        @Override
+        protected File getNetworkResult(BitmapRequest bitmapRequest, ProcessCheck processCheck) {
+            return this.sources[(bitmapRequest.getKey().hashCode() & 0x7fffffff) % this.sources.length];
+        }
+
+        @Override
+        protected void saveBitmapToDiskLruCache(VaryingSizeRefCountedBitmapDrawable drawable, DiskLruCache.Editor editor) throws IOException {
+            OutputStream out = editor.newOutputStream(0);
+            try {
+                drawable.getBitmap().compress(Bitmap.CompressFormat.JPEG, 90, out);
+            } finally {
+                out.close();
+            }
+            out = editor.newOutputStream(1);
+            try {
+                new Metadata(drawable.getWidth(), drawable.getHeight()).write(out);
+            } finally {
+                out.close();
+            }
+        }
+
+        @Override
+        protected boolean cropToBitmap(File file, Bitmap bitmap, int left, int top, int width, int height) {
+            BitmapRegionDecoder decoder;
+            try {
+                decoder = BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+            } catch (IOException e) {
+                return false;
+            }
+            try {
+                Bitmap region = decoder.decodeRegion(new Rect(left, top, left + width, top + height), null);
+                if (region == null) {
+                    return false;
+                }
+                new Canvas(bitmap).drawBitmap(region, 0, 0, null);
+                region.recycle();
+                return true;
+            } finally {
+                decoder.recycle();
+            }
+        }
+
+        @Override
+        protected void externalDraw(Canvas canvas, int width, int height) {
+        }
+    }
+}
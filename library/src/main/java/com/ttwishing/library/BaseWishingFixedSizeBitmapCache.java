@@ -5,10 +5,11 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 
 import com.ttwishing.library.base.FixedSizeBitmapCache;
+import com.ttwishing.library.base.MemoryBudget;
 import com.ttwishing.library.base.RefCountedBitmapDrawable;
-import com.ttwishing.library.base.RefCountingLruCache;
+import com.ttwishing.library.base.ConcurrentRefCountingCache;
+import com.ttwishing.library.base.util.CancellationToken;
 import com.ttwishing.library.disk.DiskLruCache;
-import com.ttwishing.library.util.ThreadUtil;
 
 import java.io.File;
 import java.io.IOException;
@@ -24,7 +25,8 @@ import java.io.IOException;
 public abstract class BaseWishingFixedSizeBitmapCache extends FixedSizeBitmapCache<File> implements WishingCacheHelper.Callback {
 
     private DiskLruCache diskLruCache;
-    private RefCountingMemoryCache<RefCountedBitmapDrawable> bitmapMemoryCache;
+    private ConcurrentRefCountingCache<RefCountedBitmapDrawable> bitmapMemoryCache;
+    private final MemoryBudget memoryBudget;
 
     private final WishingCacheHelper wishingCacheHelper;
 
@@ -34,8 +36,10 @@ public abstract class BaseWishingFixedSizeBitmapCache extends FixedSizeBitmapCac
             //主要针对一些小图片,稍小
             this.wishingCacheHelper = new WishingCacheHelper(context, 60 * 1000, this);
 
-            this.bitmapMemoryCache = new RefCountingLruCache(memoryCacheSize);
-            this.diskLruCache = this.wishingCacheHelper.newDiskLruCache(context, diskCacheName, 1, this.perMemorySize, count);
+            //数量上限之外,受所有缓存共享的字节预算限制
+            this.memoryBudget = MemoryBudget.getInstance(context);
+            this.bitmapMemoryCache = new ConcurrentRefCountingCache<RefCountedBitmapDrawable>(memoryCacheSize, this.memoryBudget, this.perMemorySize);
+            this.diskLruCache = this.wishingCacheHelper.newSlabDiskLruCache(context, diskCacheName, this.perMemorySize, count);
 
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -45,6 +49,7 @@ public abstract class BaseWishingFixedSizeBitmapCache extends FixedSizeBitmapCac
     //=========WishingCacheHelper.Callback============
     @Override
     public void onStart() {
+        this.memoryBudget.register(this.bitmapMemoryCache);
         super.start();
     }
 
@@ -54,6 +59,7 @@ public abstract class BaseWishingFixedSizeBitmapCache extends FixedSizeBitmapCac
 
     public void onDestroy() {
         super.clearCache();
+        this.memoryBudget.unregister(this.bitmapMemoryCache);
     }
 
 
@@ -73,6 +79,11 @@ public abstract class BaseWishingFixedSizeBitmapCache extends FixedSizeBitmapCac
         return this.wishingCacheHelper.getFileFromNetwork(bitmapRequest, processCheck);
     }
 
+    @Override
+    protected void getNetworkResultAsync(BitmapRequest bitmapRequest, ProcessCheck processCheck, CancellationToken token, NetworkCallback<File> callback) {
+        this.wishingCacheHelper.loadFileFromNetwork(bitmapRequest, processCheck, token, callback);
+    }
+
     @Override
     protected BitmapDrawable newBitmapDrawable() {
         return newBitmapDrawable(Bitmap.createBitmap(this.width, this.height, this.config));
@@ -91,8 +102,14 @@ public abstract class BaseWishingFixedSizeBitmapCache extends FixedSizeBitmapCac
     }
 
     @Override
-    protected void executeLoadTask(Runnable task) {
-        ThreadUtil.execute(task);
+    protected void executeLoadTask(LoadTask task) {
+        //网络回调后的解码任务可能来自下载线程,总是交给线程池执行
+        this.wishingCacheHelper.executeLoadTask(task);
+    }
+
+    @Override
+    protected boolean cancelLoadTask(LoadTask task) {
+        return this.wishingCacheHelper.cancelLoadTask(task);
     }
 
     @Override
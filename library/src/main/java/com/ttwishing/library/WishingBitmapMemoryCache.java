@@ -5,14 +5,16 @@ import android.os.Build;
 import android.util.Log;
 import android.util.LruCache;
 
+import com.ttwishing.library.base.MemoryBudget;
 import com.ttwishing.library.util.ReusableStringBuilderPool;
 
 import java.lang.ref.WeakReference;
+import java.util.Map;
 
 /**
  * Created by kurt on 10/28/15.
  */
-public class WishingBitmapMemoryCache {
+public class WishingBitmapMemoryCache implements MemoryBudget.Trimmable {
     int num_strong_hit = 0;
     int num_soft_hit = 0;
     int num_soft_hit_miss = 0;
@@ -31,12 +33,16 @@ public class WishingBitmapMemoryCache {
     private final LruCache<String, CachedBitmap> mWeakRefBitmapLruCache;
 
     final ReusableStringBuilderPool reusableStringBuilderPool;
+    //第一级缓存同时受所有缓存共享的字节预算限制
+    private final MemoryBudget memoryBudget;
 
     public WishingBitmapMemoryCache(ReusableStringBuilderPool pool) {
         this.reusableStringBuilderPool = pool;
+        this.memoryBudget = MemoryBudget.getInstance(App.getInstance());
 
-        //以memory size为计量的缓存
-        this.mBitmapLruCache = new LruCache<String, CachedBitmap>(210 * 210 * 8 * 10) {
+        //以memory size为计量的缓存,不超过共享预算的1/4
+        int strongSize = (int) Math.min(210 * 210 * 8 * 10, this.memoryBudget.getMaxBytes() / 4);
+        this.mBitmapLruCache = new LruCache<String, CachedBitmap>(strongSize) {
             @Override
             protected int sizeOf(String key, CachedBitmap value) {
                 return value.getByteCount();
@@ -44,10 +50,11 @@ public class WishingBitmapMemoryCache {
 
             @Override
             protected void entryRemoved(boolean evicted, String key, CachedBitmap oldValue, CachedBitmap newValue) {
-                //(非清空 || 新值为空) && 老值不为空
+                memoryBudget.discharge(oldValue.getByteCount());
+                //(非清空 || 新值为空) && 老值不为空, 降级到第二级缓存
                 if ((!evicted || newValue == null) && oldValue.getBitmap() != null) {
                     oldValue.bitmap = null;
-                    mWeakRefBitmapLruCache.put(key, newValue);
+                    mWeakRefBitmapLruCache.put(key, oldValue);
                 }
             }
         };
@@ -58,6 +65,27 @@ public class WishingBitmapMemoryCache {
                 return value.getByteCount();
             }
         };
+        this.memoryBudget.register(this);
+    }
+
+    /**
+     * 按访问顺序从最久未访问的开始,将第一级缓存中的数据降级到第二级缓存
+     *
+     * @param bytes
+     * @return
+     */
+    @Override
+    public long trim(long bytes) {
+        long freed = 0;
+        for (Map.Entry<String, CachedBitmap> entry : this.mBitmapLruCache.snapshot().entrySet()) {
+            if (freed >= bytes) {
+                break;
+            }
+            if (this.mBitmapLruCache.remove(entry.getKey()) != null) {
+                freed += entry.getValue().getByteCount();
+            }
+        }
+        return freed;
     }
 
     public void clearCache() {
@@ -113,6 +141,7 @@ public class WishingBitmapMemoryCache {
             } else {
                 this.num_added_small += 1;
                 this.mBitmapLruCache.put(url, cachedBitmap);
+                this.memoryBudget.charge(this, cachedBitmap.getByteCount());
             }
         } catch (Exception e) {
             //trying to cache bitmap but it does not exist or recycled
@@ -6,20 +6,24 @@ import android.util.Log;
 
 import com.ttwishing.library.base.BaseRgbBitmapCache;
 import com.ttwishing.library.base.RefCountedBitmapDrawable;
+import com.ttwishing.library.base.util.CancellationToken;
 import com.ttwishing.library.base.util.IOUtils;
 import com.ttwishing.library.disk.DiskLruCache;
 import com.ttwishing.library.http.HttpTaskController;
+import com.ttwishing.library.http.HttpUrlConnectionTransport;
+import com.ttwishing.library.tasks.PriorityExecutor;
 import com.ttwishing.library.util.ReusableStringBuilderPool;
 import com.ttwishing.library.util.ThreadUtil;
+import com.ttwishing.library.util.TimerWheel;
 import com.ttwishing.library.util.VersionUtil;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by kurt on 11/13/15.
@@ -27,13 +31,32 @@ import java.util.concurrent.TimeUnit;
 public class WishingCacheHelper {
 
     private static final Map<String, DiskLruCache> sDiskLurCaches = new HashMap();
-    private static long waitout = 1000L;
-    private final long waitCount;
+    //DiskLruCache分片,每片独立加锁,减少多线程竞争
+    private static final int MAX_DISK_CACHE_SHARDS = 4;
+    //每片最少容纳的数量,太少的话LRU淘汰会失真
+    private static final int MIN_ENTRIES_PER_SHARD = 32;
+    //原图缓存,所有图片缓存共用,下载内容直接写入其中
+    private static final String ORIGINALS_CACHE_NAME = "originals";
+    private static final int ORIGINALS_PER_SIZE = 128 * 1024;
+    private static final int ORIGINALS_COUNT = 256;
+    //所有图片缓存共用的下载控制器
+    private static HttpTaskController sHttpTaskController;
+    //所有图片缓存共用的加载线程池,按可见性优先级执行;读盘(io)和解码(cpu)分开,互不占用线程
+    private static PriorityExecutor<PriorityExecutor.Item> sDiskExecutor;
+    private static PriorityExecutor<PriorityExecutor.Item> sDecodeExecutor;
+    //排队的加载任务上限,快速滑动时先丢弃最早提交的低优先级任务
+    private static final int MAX_QUEUED_DISK_TASKS = 64;
+    private static final int MAX_QUEUED_DECODE_TASKS = 32;
+    //所有网络请求的超时和取消检查共用一个时间轮,不再各自占用线程等待
+    private static final TimerWheel sTimerWheel = new TimerWheel("cache-helper-timer", 50, 512);
+    //检查请求是否已取消的间隔, 仅用于没有CancellationToken的请求
+    private static final long PROCESS_CHECK_INTERVAL = 200L;
+    //请求超时时间
+    private final long requestTimeout;
 
     private final Callback callback;
 
-    //TODO 理应是单例模式
-    private HttpTaskController httpTaskController;
+    private final HttpTaskController httpTaskController;
 
     /**
      * @param context
@@ -42,12 +65,75 @@ public class WishingCacheHelper {
      * @throws IOException
      */
     WishingCacheHelper(Context context, int requestTimeout, Callback callback) throws IOException {
-        this.waitCount = requestTimeout / waitout;
+        this.requestTimeout = requestTimeout;
         this.callback = callback;
-        this.httpTaskController = new HttpTaskController(ReusableStringBuilderPool.getInstance());
+        this.httpTaskController = getHttpTaskController(context);
         init(context);
     }
 
+    /**
+     * 获取共用的下载控制器, 下载内容写入共用的原图缓存;原图缓存无法打开时退回到独立目录
+     *
+     * @param context
+     * @return
+     */
+    private HttpTaskController getHttpTaskController(Context context) {
+        synchronized (WishingCacheHelper.class) {
+            if (sHttpTaskController == null) {
+                DiskLruCache originalsCache = null;
+                try {
+                    originalsCache = newDiskLruCache(context.getApplicationContext(), ORIGINALS_CACHE_NAME, HttpTaskController.ORIGINALS_VALUE_COUNT, ORIGINALS_PER_SIZE, ORIGINALS_COUNT);
+                } catch (IOException e) {
+                    Log.e("CacheHelper", "could not open the originals cache, downloading to a side directory", e);
+                }
+                sHttpTaskController = new HttpTaskController(ReusableStringBuilderPool.getInstance(), new HttpUrlConnectionTransport(), originalsCache);
+            }
+            return sHttpTaskController;
+        }
+    }
+
+    /**
+     * 按阶段选择线程池: 读盘以io等待为主,线程数可多于cpu核数;解码占满cpu,最多核数-1,留给UI线程
+     * 同优先级时后提交的先执行,即滑动中最新出现的图片
+     *
+     * @param stage
+     * @return
+     */
+    private static PriorityExecutor<PriorityExecutor.Item> getLoadExecutor(String stage) {
+        synchronized (WishingCacheHelper.class) {
+            if (sDiskExecutor == null) {
+                int cpuCount = Runtime.getRuntime().availableProcessors();
+                sDiskExecutor = new PriorityExecutor<PriorityExecutor.Item>("bitmap-disk", 2, Math.max(2, Math.min(4, cpuCount)), 30,
+                        PriorityExecutor.PowerMode.ECONOMY, false, true, MAX_QUEUED_DISK_TASKS);
+                sDecodeExecutor = new PriorityExecutor<PriorityExecutor.Item>("bitmap-decode", 1, Math.max(1, Math.min(4, cpuCount - 1)), 30,
+                        PriorityExecutor.PowerMode.ECONOMY, false, true, MAX_QUEUED_DECODE_TASKS);
+            }
+            return BaseRgbBitmapCache.STAGE_DECODE.equals(stage) ? sDecodeExecutor : sDiskExecutor;
+        }
+    }
+
+    /**
+     * 提交加载任务, 优先级高(如正在屏幕上)的先执行;排队已满时丢弃的任务通过onDiscarded结束
+     *
+     * @param task
+     */
+    public void executeLoadTask(BaseRgbBitmapCache.LoadTask task) {
+        if (!getLoadExecutor(task.getStage()).execute(task)) {
+            //同一阶段已有任务在排队,不应发生
+            throw new RejectedExecutionException("load task already queued: " + task.getItemKey());
+        }
+    }
+
+    /**
+     * 取消尚未开始的加载任务
+     *
+     * @param task
+     * @return
+     */
+    public boolean cancelLoadTask(BaseRgbBitmapCache.LoadTask task) {
+        return getLoadExecutor(task.getStage()).cancel(task.getItemKey());
+    }
+
     private void init(Context context) {
         if (context == context.getApplicationContext()) {
             Log.e("CacheHelper", "you don't want to creates these bitmap caches width application context");
@@ -70,6 +156,24 @@ public class WishingCacheHelper {
      * @throws IOException
      */
     protected DiskLruCache newDiskLruCache(Context context, String name, int valueCount, int perSize, int count) throws IOException {
+        return newDiskLruCache(context, name, valueCount, perSize, count, false);
+    }
+
+    /**
+     * 每项大小固定(如固定尺寸的像素数据)时,所有条目共用一个预分配的slab文件,每项占用一个槽位,避免每项一个文件
+     *
+     * @param context
+     * @param name
+     * @param perSize 每项的最大字节数,即槽位大小
+     * @param count
+     * @return
+     * @throws IOException
+     */
+    protected DiskLruCache newSlabDiskLruCache(Context context, String name, int perSize, int count) throws IOException {
+        return newDiskLruCache(context, name, 1, perSize, count, true);
+    }
+
+    private DiskLruCache newDiskLruCache(Context context, String name, int valueCount, int perSize, int count, boolean slab) throws IOException {
         synchronized (sDiskLurCaches) {
             DiskLruCache diskLruCache = sDiskLurCaches.get(name);
             if (diskLruCache != null) {
@@ -91,7 +195,7 @@ public class WishingCacheHelper {
                 dir = context.getExternalFilesDir(name);
             }
             try {
-                diskLruCache = DiskLruCache.open(dir, VersionUtil.getVersionCodeFromManifest(context), valueCount, perSize * count);
+                diskLruCache = openDiskLruCache(context, dir, valueCount, perSize, count, slab);
             } catch (IOException e) {
                 //当出现异常
                 if (dir != null) {
@@ -101,7 +205,7 @@ public class WishingCacheHelper {
                 } else {
                     throw e;
                 }
-                diskLruCache = DiskLruCache.open(dir, VersionUtil.getVersionCodeFromManifest(context), valueCount, perSize * count);
+                diskLruCache = openDiskLruCache(context, dir, valueCount, perSize, count, slab);
             }
 
             sDiskLurCaches.put(name, diskLruCache);
@@ -110,6 +214,24 @@ public class WishingCacheHelper {
 
     }
 
+    private static DiskLruCache openDiskLruCache(Context context, File dir, int valueCount, int perSize, int count, boolean slab) throws IOException {
+        int appVersion = VersionUtil.getVersionCodeFromManifest(context);
+        if (slab) {
+            return DiskLruCache.openSlab(dir, appVersion, perSize, perSize * count, shardCount(count));
+        }
+        return DiskLruCache.open(dir, appVersion, valueCount, perSize * count, shardCount(count));
+    }
+
+    /**
+     * 根据容量计算分片数
+     *
+     * @param count
+     * @return
+     */
+    private static int shardCount(int count) {
+        return Math.max(1, Math.min(MAX_DISK_CACHE_SHARDS, count / MIN_ENTRIES_PER_SHARD));
+    }
+
     protected void loadBitmapFinish(final BaseRgbBitmapCache.Callback callback, final RefCountedBitmapDrawable bitmapDrawable, final BaseRgbBitmapCache.BitmapRequest bitmapRequest) {
         if (callback instanceof BaseRgbBitmapCache.RunnableCallback) {
             ThreadUtil.post(((BaseRgbBitmapCache.RunnableCallback) callback).newInstance(bitmapRequest, bitmapDrawable));
@@ -127,39 +249,52 @@ public class WishingCacheHelper {
     }
 
     /**
-     * 此处通过CountDownLatch执行严格的超时计数,而不依赖你的http请求设置
+     * 同步获取, 只等待一次结果, 超时由时间轮保证
+     *
      * @param bitmapRequest
      * @param processCheck
      * @return
      */
     protected File getFileFromNetwork(BaseRgbBitmapCache.BitmapRequest bitmapRequest, BaseRgbBitmapCache.ProcessCheck processCheck) {
-        if (TextUtils.isEmpty(bitmapRequest.getUrl())) {
-            return null;
-        }
-
-        CountDownLatch countDownLatch = new CountDownLatch(1);
-        WeakFileListener weakFileListener = new WeakFileListener(countDownLatch, bitmapRequest, processCheck);
-
-        httpTaskController.loadImage(bitmapRequest.getUrl(), null, weakFileListener);
-        int i = 0;
-        //每隔1秒查看下是否成功获取，走到达到最大次数waitCount(即超时),
-        while (i < waitCount) {
-            try {
-                //等待一秒种
-                countDownLatch.await(waitout, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        final File[] result = new File[1];
+        loadFileFromNetwork(bitmapRequest, processCheck, null, new BaseRgbBitmapCache.NetworkCallback<File>() {
+            @Override
+            public void onNetworkResult(File file) {
+                result[0] = file;
+                countDownLatch.countDown();
             }
+        });
+        try {
+            countDownLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return result[0];
+    }
 
-            //每次循环都要判断是否传递结束 || 或任务已中止
-            if (countDownLatch.getCount() == 0L || !processCheck.isProcessCheck(bitmapRequest)) {
-                this.callback.onStop();
-                break;
-            }
-            i++;
+    /**
+     * 异步获取, 下载完成,取消或超时时回调一次, 等待期间不占用线程
+     * 超时和取消检查由共用的时间轮执行, 超时计数不依赖http请求的设置
+     * 超时,取消或token取消时移除下载监听, 没有其它监听时下载随之中止
+     *
+     * @param bitmapRequest
+     * @param processCheck
+     * @param token           可为null
+     * @param networkCallback
+     */
+    protected void loadFileFromNetwork(BaseRgbBitmapCache.BitmapRequest bitmapRequest, BaseRgbBitmapCache.ProcessCheck processCheck, CancellationToken token, BaseRgbBitmapCache.NetworkCallback<File> networkCallback) {
+        if (TextUtils.isEmpty(bitmapRequest.getUrl())) {
+            networkCallback.onNetworkResult(null);
+            return;
+        }
+        FileRequest fileRequest = new FileRequest(bitmapRequest, processCheck, networkCallback);
+        //有token时由取消回调结束, 不再定时轮询processCheck
+        fileRequest.start(token == null);
+        httpTaskController.loadImage(bitmapRequest.getUrl(), null, fileRequest);
+        if (token != null) {
+            fileRequest.listen(token);
         }
-        File file = weakFileListener.getFile();
-        return file;
     }
 
     interface Callback {
@@ -172,50 +307,112 @@ public class WishingCacheHelper {
 
     }
 
-    public class WeakFileListener implements HttpTaskController.HttpDiskCacheListener {
-        private File file;
-        private final WeakReference<CountDownLatch> countDownLatchRef;
+    /**
+     * 一次网络请求, 下载结果,取消和超时三者先到者生效
+     */
+    private class FileRequest implements HttpTaskController.HttpDiskCacheListener {
         private final BaseRgbBitmapCache.BitmapRequest bitmapRequest;
         private final BaseRgbBitmapCache.ProcessCheck processCheck;
+        private final BaseRgbBitmapCache.NetworkCallback<File> networkCallback;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private TimerWheel.Timeout deadline;
+        private TimerWheel.Timeout check;
 
-        public WeakFileListener(CountDownLatch countDownLatch, BaseRgbBitmapCache.BitmapRequest bitmapRequest, BaseRgbBitmapCache.ProcessCheck processCheck) {
-            this.countDownLatchRef = new WeakReference(countDownLatch);
+        FileRequest(BaseRgbBitmapCache.BitmapRequest bitmapRequest, BaseRgbBitmapCache.ProcessCheck processCheck, BaseRgbBitmapCache.NetworkCallback<File> networkCallback) {
             this.bitmapRequest = bitmapRequest;
             this.processCheck = processCheck;
+            this.networkCallback = networkCallback;
         }
 
-        private void finish() {
-            CountDownLatch countDownLatch = this.countDownLatchRef.get();
-            if (countDownLatch != null) {
-                countDownLatch.countDown();
+        /**
+         * @param pollProcessCheck 是否定时检查processCheck, 请求方无法通过CancellationToken通知取消时才需要
+         */
+        synchronized void start(boolean pollProcessCheck) {
+            this.deadline = sTimerWheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (finish(null)) {
+                        httpTaskController.cancel(bitmapRequest.getUrl(), FileRequest.this);
+                    }
+                }
+            }, requestTimeout);
+            if (pollProcessCheck) {
+                scheduleCheck();
+            }
+        }
+
+        void listen(CancellationToken token) {
+            token.onCancel(new Runnable() {
+                @Override
+                public void run() {
+                    abandon();
+                }
+            });
+        }
+
+        /**
+         * 请求方已不需要, 结束并移除下载监听
+         */
+        private void abandon() {
+            if (finish(null)) {
+                callback.onStop();
+                httpTaskController.cancel(bitmapRequest.getUrl(), this);
+            }
+        }
+
+        private synchronized void scheduleCheck() {
+            if (this.finished.get()) {
+                return;
             }
+            this.check = sTimerWheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (finished.get()) {
+                        return;
+                    }
+                    if (!processCheck.isProcessCheck(bitmapRequest)) {
+                        //任务已取消,立即结束,不必等下载完成
+                        abandon();
+                    } else {
+                        scheduleCheck();
+                    }
+                }
+            }, PROCESS_CHECK_INTERVAL);
         }
 
-        public File getFile() {
-            return this.file;
+        /**
+         * @param file
+         * @return 是否由本次调用结束
+         */
+        private boolean finish(File file) {
+            if (!this.finished.compareAndSet(false, true)) {
+                return false;
+            }
+            synchronized (this) {
+                if (this.deadline != null) {
+                    this.deadline.cancel();
+                }
+                if (this.check != null) {
+                    this.check.cancel();
+                }
+            }
+            this.networkCallback.onNetworkResult(file);
+            return true;
         }
 
         @Override
         public void onHttpDiskCacheSuccess(String url, String suffix, File file) {
-            this.file = file;
-            finish();
+            finish(file);
         }
 
         @Override
         public void onHttpDiskCacheFailed(String url, String suffix) {
-            finish();
+            finish(null);
         }
 
         @Override
-        public boolean isProcessCheck(String String, String suffix) {
-            if (this.countDownLatchRef.get() != null) {
-                if (this.processCheck.isProcessCheck(this.bitmapRequest)) {
-                    return true;
-                }
-            }
-            return false;
+        public boolean isProcessCheck(String url, String suffix) {
+            return !this.finished.get() && this.processCheck.isProcessCheck(this.bitmapRequest);
         }
-
-
     }
 }
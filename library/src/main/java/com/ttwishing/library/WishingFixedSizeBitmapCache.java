@@ -9,11 +9,14 @@ import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
 import android.util.Log;
 import android.widget.ImageView;
 
+import com.ttwishing.library.base.MemoryBudget;
 import com.ttwishing.library.base.RefCountedBitmapDrawable;
 import com.ttwishing.library.base.RefCountedBitmapPool;
+import com.ttwishing.library.base.SizeClassBitmapPool;
 import com.ttwishing.library.util.DrawingCanvas;
 
 import java.io.File;
@@ -22,23 +25,26 @@ import java.io.File;
  * Created by kurt on 12/5/15.
  *
  * 设计为40*40尺寸的Cache
- * 因尺寸大小固定,reusableBitmap可巧妙用作inBitmap, 优化decode内存
+ * 解码用的bitmap从decodeBitmapPool复用作inBitmap, 优化decode内存, 多个线程可同时解码
  */
 public class WishingFixedSizeBitmapCache extends BaseWishingFixedSizeBitmapCache {
 
-    private Context context;
+    //解码用bitmap池占共享内存预算的比例
+    private static final int DECODE_POOL_FRACTION = 16;
 
-    private final Rect dstRect = new Rect();
-    private final Rect srcRect = new Rect();
-    private final Rect tempRect = new Rect();
-    private final RectF bitmapRectF = new RectF();
-    private final Paint paint;
+    private Context context;
 
-    //file锁
-    private Object fileLock = new Object();
+    //每个工作线程各自的绘制对象,使多个线程可同时解码
+    private final ThreadLocal<DrawScratch> drawScratch = new ThreadLocal<DrawScratch>() {
+        @Override
+        protected DrawScratch initialValue() {
+            return new DrawScratch();
+        }
+    };
 
-    //内存优化
-    private Bitmap reusableBitmap;
+    //内存优化,解码用的bitmap按尺寸分级复用,代替单个reusableBitmap
+    private final SizeClassBitmapPool decodeBitmapPool;
+    private final MemoryBudget memoryBudget;
 
     private final Matrix imageMatrix;
     private final ImageView.ScaleType scaleType;
@@ -46,21 +52,30 @@ public class WishingFixedSizeBitmapCache extends BaseWishingFixedSizeBitmapCache
     public WishingFixedSizeBitmapCache(Context context, int width, int height, ImageView.ScaleType scaleType, Matrix imageMatrix) {
         super(context, "photo-" + width + "x" + height, width, height, Bitmap.Config.ARGB_8888, 40, 15, 200);
         this.context = context;
-        this.paint = new Paint();
-        this.paint.setFilterBitmap(true);
         this.scaleType = scaleType;
         this.imageMatrix = imageMatrix;
+        //原图尺寸不固定,按共享预算的比例限制
+        this.memoryBudget = MemoryBudget.getInstance(context);
+        this.decodeBitmapPool = new SizeClassBitmapPool(this.memoryBudget.getMaxBytes() / DECODE_POOL_FRACTION);
+        this.memoryBudget.register(this.decodeBitmapPool);
+    }
+
+    @Override
+    public void onStart() {
+        this.memoryBudget.register(this.decodeBitmapPool);
+        super.onStart();
     }
 
     @Override
     public void onDestroy() {
-        if (this.reusableBitmap != null) {
-            this.reusableBitmap.recycle();
-            this.reusableBitmap = null;
-        }
+        this.memoryBudget.unregister(this.decodeBitmapPool);
+        this.decodeBitmapPool.clear();
         super.onDestroy();
     }
 
+    /**
+     * 可被多个线程同时调用
+     */
     @Override
     protected RefCountedBitmapDrawable getBitmapFromNetworkResult(File file, RefCountedBitmapPool<RefCountedBitmapDrawable> pool) {
 
@@ -70,37 +85,26 @@ public class WishingFixedSizeBitmapCache extends BaseWishingFixedSizeBitmapCache
 
         Log.d("BaseRgbBitmapCache", "getBitmapFromNetworkResult: " + file);
 
-        synchronized (this.fileLock) {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeFile(file.getAbsolutePath(), options);
-            if (options.outHeight < 1 || options.outWidth < 1) {
-                //could not get dimensions from bitmap.
-                file.delete();
-                return null;
-            }
-
-            if (this.reusableBitmap == null) {
-                this.reusableBitmap = Bitmap.createBitmap(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
-            } else if (this.reusableBitmap.getWidth() != options.outWidth || this.reusableBitmap.getHeight() != options.outHeight) {//cond_4
-                //
-                this.reusableBitmap.recycle();
-                this.reusableBitmap = Bitmap.createBitmap(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
-            }else{
-                //reusableBitmap is reusable
-            }
-
-            options.inJustDecodeBounds = false;
-            options.inSampleSize = 1;
-            options.inScaled = false;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (options.outHeight < 1 || options.outWidth < 1) {
+            //could not get dimensions from bitmap.
+            file.delete();
+            return null;
+        }
 
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        options.inScaled = false;
 
-            Bitmap bitmap = createBitmap(file, options);
-            if (bitmap == null) {
-                //could not load bitmap for post processing
-                return null;
-            }
+        Bitmap bitmap = createBitmap(file, options);
+        if (bitmap == null) {
+            //could not load bitmap for post processing
+            return null;
+        }
 
+        try {
             RefCountedBitmapDrawable refCountedBitmapDrawable = pool.get();
 
             //此时先异步,在DrawingCanvas将bitmap绘制出来,在ui线程绘制时会更快速
@@ -108,20 +112,38 @@ public class WishingFixedSizeBitmapCache extends BaseWishingFixedSizeBitmapCache
             customDraw(drawingCanvas, bitmap);
 
             return refCountedBitmapDrawable;
+        } finally {
+            this.decodeBitmapPool.put(bitmap);
         }
     }
 
+    /**
+     * KITKAT及以上inBitmap只要求足够大,可从decodeBitmapPool复用;以下要求尺寸完全一致,直接解码
+     *
+     * @param file
+     * @param options
+     * @return
+     */
     private Bitmap createBitmap(File file, BitmapFactory.Options options) {
-        options.inBitmap = this.reusableBitmap;
         options.inMutable = true;
         options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
-        if (bitmap != this.reusableBitmap) {
-            //could not load bitmap into reused, this is BAD
-            this.reusableBitmap.recycle();
-            this.reusableBitmap = bitmap;
+        Bitmap reusableBitmap = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            reusableBitmap = this.decodeBitmapPool.get(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+            options.inBitmap = reusableBitmap;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        } catch (IllegalArgumentException e) {
+            //could not load bitmap into reused
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
         }
-        return this.reusableBitmap;
+        if (reusableBitmap != null && bitmap != reusableBitmap) {
+            this.decodeBitmapPool.put(reusableBitmap);
+        }
+        return bitmap;
     }
 
     /**
@@ -130,6 +152,7 @@ public class WishingFixedSizeBitmapCache extends BaseWishingFixedSizeBitmapCache
      * @param bitmap
      */
     protected void customDraw(DrawingCanvas drawingCanvas, Bitmap bitmap) {
+        DrawScratch scratch = this.drawScratch.get();
         drawingCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
         int left = 0;
         int top = 0;
@@ -138,29 +161,44 @@ public class WishingFixedSizeBitmapCache extends BaseWishingFixedSizeBitmapCache
 
         if (this.scaleType == ImageView.ScaleType.CENTER_CROP) {
             //进行合理的
-            this.srcRect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
-            this.dstRect.set(left, top, right, bottom);
+            scratch.srcRect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+            scratch.dstRect.set(left, top, right, bottom);
             float scale;
-            if ((this.srcRect.width() - this.dstRect.width()) / 2 < (this.srcRect.height() - this.dstRect.height()) / 2) {
-                scale = (float) this.srcRect.width() / this.dstRect.width();
+            if ((scratch.srcRect.width() - scratch.dstRect.width()) / 2 < (scratch.srcRect.height() - scratch.dstRect.height()) / 2) {
+                scale = (float) scratch.srcRect.width() / scratch.dstRect.width();
             } else {
-                scale = (float) this.srcRect.height() / this.dstRect.height();
+                scale = (float) scratch.srcRect.height() / scratch.dstRect.height();
             }
 
-            this.tempRect.set((int) (scale * this.dstRect.left), (int) (scale * this.dstRect.top), (int) (scale * this.dstRect.right), (int) (scale * this.dstRect.bottom));
-            int dx = (this.srcRect.width() - this.tempRect.width()) / 2;
-            int dy = (this.srcRect.height() - this.tempRect.height()) / 2;
-            this.srcRect.inset(Math.abs(dx), Math.abs(dy));
-            drawingCanvas.drawBitmap(bitmap, this.srcRect, this.dstRect, this.paint);
+            scratch.tempRect.set((int) (scale * scratch.dstRect.left), (int) (scale * scratch.dstRect.top), (int) (scale * scratch.dstRect.right), (int) (scale * scratch.dstRect.bottom));
+            int dx = (scratch.srcRect.width() - scratch.tempRect.width()) / 2;
+            int dy = (scratch.srcRect.height() - scratch.tempRect.height()) / 2;
+            scratch.srcRect.inset(Math.abs(dx), Math.abs(dy));
+            drawingCanvas.drawBitmap(bitmap, scratch.srcRect, scratch.dstRect, scratch.paint);
         } else if (this.scaleType == ImageView.ScaleType.MATRIX && this.imageMatrix != null) {
-            this.bitmapRectF.set(0.0F, 0.0F, bitmap.getWidth(), bitmap.getHeight());
-            this.imageMatrix.mapRect(this.bitmapRectF);
-            this.bitmapRectF.offset(left, top);
-            drawingCanvas.drawBitmap(bitmap, null, this.bitmapRectF, this.paint);
+            scratch.bitmapRectF.set(0.0F, 0.0F, bitmap.getWidth(), bitmap.getHeight());
+            this.imageMatrix.mapRect(scratch.bitmapRectF);
+            scratch.bitmapRectF.offset(left, top);
+            drawingCanvas.drawBitmap(bitmap, null, scratch.bitmapRectF, scratch.paint);
         } else {
             BitmapDrawable bitmapDrawable = new BitmapDrawable(this.context.getResources(), bitmap);
             bitmapDrawable.setBounds(left, top, right, bottom);
             bitmapDrawable.draw(drawingCanvas);
         }
     }
+
+    /**
+     * 工作线程独有的绘制对象
+     */
+    private static final class DrawScratch {
+        final Rect dstRect = new Rect();
+        final Rect srcRect = new Rect();
+        final Rect tempRect = new Rect();
+        final RectF bitmapRectF = new RectF();
+        final Paint paint = new Paint();
+
+        DrawScratch() {
+            this.paint.setFilterBitmap(true);
+        }
+    }
 }
@@ -7,9 +7,9 @@ import android.graphics.drawable.BitmapDrawable;
 
 import com.ttwishing.library.base.VaryingSizeCappedBitmapCache;
 import com.ttwishing.library.base.VaryingSizeRefCountedBitmapDrawable;
+import com.ttwishing.library.base.util.CancellationToken;
 import com.ttwishing.library.base.util.IOUtils;
 import com.ttwishing.library.disk.DiskLruCache;
-import com.ttwishing.library.util.ThreadUtil;
 
 import java.io.File;
 import java.io.IOException;
@@ -111,6 +111,11 @@ public class WishingVaryingSizeCappedBitmapCache extends VaryingSizeCappedBitmap
 
     }
 
+    @Override
+    protected void getNetworkResultAsync(BitmapRequest bitmapRequest, ProcessCheck processCheck, CancellationToken token, NetworkCallback<File> callback) {
+        this.wishingCacheHelper.loadFileFromNetwork(bitmapRequest, processCheck, token, callback);
+    }
+
     @Override
     protected void readFromDiskLruCache(DiskLruCache.Snapshot snapshot, VaryingSizeRefCountedBitmapDrawable varyingSizeRefCountedBitmapDrawable, BitmapRequest bitmapRequest, ProcessCheck processCheck) throws IOException {
         InputStream inputStream = null;
@@ -190,8 +195,14 @@ public class WishingVaryingSizeCappedBitmapCache extends VaryingSizeCappedBitmap
     }
 
     @Override
-    protected void executeLoadTask(Runnable r) {
-        ThreadUtil.execute(r);
+    protected void executeLoadTask(LoadTask task) {
+        //网络回调后的解码任务可能来自下载线程,总是交给线程池执行
+        this.wishingCacheHelper.executeLoadTask(task);
+    }
+
+    @Override
+    protected boolean cancelLoadTask(LoadTask task) {
+        return this.wishingCacheHelper.cancelLoadTask(task);
     }
 
     @Override
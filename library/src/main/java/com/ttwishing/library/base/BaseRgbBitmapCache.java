@@ -6,9 +6,15 @@ import android.graphics.drawable.BitmapDrawable;
 import android.util.Log;
 
 import com.ttwishing.library.base.sync.NamedLockPool;
+import com.ttwishing.library.base.util.CancellationToken;
 import com.ttwishing.library.disk.DiskLruCache;
+import com.ttwishing.library.tasks.PriorityExecutor;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by kurt on 11/13/15.
@@ -24,6 +30,23 @@ public abstract class BaseRgbBitmapCache<DrawableType extends RefCountedBitmapDr
         }
     };
 
+    //加载优先级,数值越大越先执行
+    public static final long PRIORITY_VISIBLE = 0;
+    //不在屏幕上,每远离视口一个单位(如一个view的高度)再减1
+    public static final long PRIORITY_OFFSCREEN = -1;
+    //预取,低于屏幕附近的图片,每远离一项再减1
+    public static final long PRIORITY_PREFETCH = -1000;
+    //已不在界面上
+    public static final long PRIORITY_DETACHED = -10000;
+
+    //加载的阶段: 从缓存和disk读取(io)
+    public static final String STAGE_LOAD = "load";
+    //加载的阶段: 解码网络结果并保存(cpu)
+    public static final String STAGE_DECODE = "decode";
+
+    //区分不同缓存的加载任务key
+    private static final AtomicInteger sCacheIds = new AtomicInteger();
+
     protected int countFromMemory = 0;
     protected int countFromDisk = 0;
     protected int countFromNetwork = 0;
@@ -34,6 +57,9 @@ public abstract class BaseRgbBitmapCache<DrawableType extends RefCountedBitmapDr
     private final NamedLockPool namedLockPool;
     //对象池
     private final RefCountedBitmapPool<DrawableType> bitmapPool;
+    //正在异步加载的key,同一key只加载一次,后续请求挂到同一个加载上等待结果
+    private final ConcurrentHashMap<String, InFlightLoad> inFlightLoads = new ConcurrentHashMap<String, InFlightLoad>();
+    private final int cacheId = sCacheIds.incrementAndGet();
 
     protected final int height;
     protected final int width;
@@ -98,13 +124,26 @@ public abstract class BaseRgbBitmapCache<DrawableType extends RefCountedBitmapDr
     /**
      * 针对单体,获取bitmap,UI线程调用
      * step1: 同步从缓存中获取, 如果缓存中不存在,执行step2
-     * step2: 异步获取
+     * step2: 异步获取, 同一key已在加载时不再新建任务, 只等待其结果, 不占用线程
+     * 异步获取时网络阶段不占用加载线程, 网络结果返回后再继续解码和保存
      *
      * @param bitmapRequest
      * @param callback
      * @return
      */
     public boolean loadBitmap(final BitmapRequest bitmapRequest, final Callback callback) {
+        return loadBitmap(bitmapRequest, callback, null);
+    }
+
+    /**
+     * 同loadBitmap, 等待者可通过token取消; 所有等待者都取消后, 加载在所处的阶段中止, 下载随之中止
+     *
+     * @param bitmapRequest
+     * @param callback
+     * @param token         为null时不可取消
+     * @return
+     */
+    public boolean loadBitmap(final BitmapRequest bitmapRequest, final Callback callback, CancellationToken token) {
         //优先从缓存中获取
         DrawableType drawableType = getBitmapFromCache(bitmapRequest);
         if (drawableType != null) {
@@ -112,26 +151,100 @@ public abstract class BaseRgbBitmapCache<DrawableType extends RefCountedBitmapDr
             return true;
         }
 
-        //执行异步下载
-        executeLoadTask(new Runnable() {
-
-            @Override
-            public void run() {
-                DrawableType drawableType = getBitmap(bitmapRequest, callback);
-                handleLoadResult(callback, drawableType, bitmapRequest);
+        String key = bitmapRequest.getKey();
+        while (true) {
+            InFlightLoad inFlightLoad = this.inFlightLoads.get(key);
+            if (inFlightLoad == null) {
+                inFlightLoad = new InFlightLoad(bitmapRequest);
+                inFlightLoad.addWaiter(bitmapRequest, callback, token);
+                if (this.inFlightLoads.putIfAbsent(key, inFlightLoad) == null) {
+                    //执行异步下载
+                    inFlightLoad.submit(inFlightLoad, STAGE_LOAD);
+                    return false;
+                }
+            } else if (inFlightLoad.addWaiter(bitmapRequest, callback, token)) {
+                //新的等待者可能需要更高的优先级
+                inFlightLoad.reprioritize();
+                return false;
             }
-        });
-        return false;
+            //加载刚好结束,重试
+        }
+    }
+
+    /**
+     * 预取: 已在内存缓存中时直接返回, 否则以callback的优先级加载到disk和内存缓存
+     *
+     * @param bitmapRequest
+     * @param callback      结果交给keepInMemory, 并由callback持有
+     * @param token
+     * @return 是否发起了加载
+     */
+    boolean prefetch(BitmapRequest bitmapRequest, Callback callback, CancellationToken token) {
+        DrawableType drawableType = getBitmapMemoryCache().get(bitmapRequest.getKey());
+        if (drawableType != null) {
+            drawableType.release();
+            return false;
+        }
+        loadBitmap(bitmapRequest, callback, token);
+        return true;
+    }
+
+    /**
+     * 预取的结果放入内存缓存(从disk加载的已在其中), 调用方仍持有自己的引用, 用完后release
+     * 内存缓存的put不一定计引用, 调用方释放前内存缓存中的项才保证有效
+     *
+     * @param bitmapRequest
+     * @param drawableType
+     */
+    void keepInMemory(BitmapRequest bitmapRequest, DrawableType drawableType) {
+        RefCountingMemoryCache<DrawableType> memoryCache = getBitmapMemoryCache();
+        DrawableType cached = memoryCache.get(bitmapRequest.getKey());
+        if (cached == null) {
+            memoryCache.put(bitmapRequest.getKey(), drawableType);
+        } else {
+            cached.release();
+        }
+    }
+
+    /**
+     * 预取时每项最多占用的字节数
+     *
+     * @return
+     */
+    int getBytesPerItem() {
+        return this.perMemorySize;
+    }
+
+    /**
+     * 等待者的优先级变化后(如列表滚动)调用, 按新的优先级重新排队尚未开始的加载任务, UI线程调用
+     *
+     * @param bitmapRequest
+     */
+    public void updatePriority(BitmapRequest bitmapRequest) {
+        InFlightLoad inFlightLoad = this.inFlightLoads.get(bitmapRequest.getKey());
+        if (inFlightLoad != null) {
+            inFlightLoad.reprioritize();
+        }
     }
 
     protected abstract void handleLoadResult(Callback callback, DrawableType drawableType, BitmapRequest bitmapRequest);
 
     /**
-     * custom你的线程控制
+     * custom你的线程控制, 应按task.getItemPriority()从高到低执行
      *
      * @param task
      */
-    protected abstract void executeLoadTask(Runnable task);
+    protected abstract void executeLoadTask(LoadTask task);
+
+    /**
+     * 取消尚未开始执行的加载任务, 用于按新的优先级重新排队
+     *
+     * @param task
+     * @return 不支持或已开始执行时返回false
+     */
+    protected boolean cancelLoadTask(LoadTask task) {
+        return false;
+    }
 
     /**
      * 获取bitmap, ui线程需异步执行
@@ -259,12 +372,14 @@ public abstract class BaseRgbBitmapCache<DrawableType extends RefCountedBitmapDr
     protected abstract DiskLruCache getDiskLruCache();
 
     /**
+     * 不同key可并发执行,同一key已由namedLockPool串行
+     *
      * @param snapshot
      * @param bitmapRequest
      * @param processCheck
      * @return
      */
-    private synchronized DrawableType getBitmapFromDiskSnapshot(DiskLruCache.Snapshot snapshot, BitmapRequest bitmapRequest, ProcessCheck processCheck) {
+    private DrawableType getBitmapFromDiskSnapshot(DiskLruCache.Snapshot snapshot, BitmapRequest bitmapRequest, ProcessCheck processCheck) {
         DrawableType drawableType = null;
         try {
             drawableType = bitmapPool.get();
@@ -314,8 +429,35 @@ public abstract class BaseRgbBitmapCache<DrawableType extends RefCountedBitmapDr
      */
     protected abstract NetworkResultType getNetworkResult(BitmapRequest bitmapRequest, ProcessCheck processCheck);
 
+    /**
+     * 异步网络请求, 结束(成功,失败,取消或超时)时回调且只回调一次, 回调线程不限
+     * 默认在当前线程同步执行getNetworkResult, 子类可覆盖以在等待网络时不占用加载线程
+     *
+     * @param bitmapRequest
+     * @param processCheck
+     * @param token         取消时应尽快以null回调并中止下载
+     * @param callback
+     */
+    protected void getNetworkResultAsync(BitmapRequest bitmapRequest, ProcessCheck processCheck, CancellationToken token, NetworkCallback<NetworkResultType> callback) {
+        NetworkResultType result = null;
+        try {
+            result = getNetworkResult(bitmapRequest, processCheck);
+        } catch (Throwable t) {
+            Log.e("BitmapCache", "get from network failed");
+        }
+        callback.onNetworkResult(result);
+    }
+
 
-    private synchronized DrawableType getBitmapFromNetworkResultAndSave(BitmapRequest bitmapRequest, NetworkResultType networkResult, RefCountedBitmapPool<DrawableType> refCountedBitmapPool) {
+    /**
+     * 不同key可并发执行,同一key已由namedLockPool串行,DiskLruCache.edit保证同一key只有一个Editor
+     *
+     * @param bitmapRequest
+     * @param networkResult
+     * @param refCountedBitmapPool
+     * @return
+     */
+    private DrawableType getBitmapFromNetworkResultAndSave(BitmapRequest bitmapRequest, NetworkResultType networkResult, RefCountedBitmapPool<DrawableType> refCountedBitmapPool) {
         DrawableType drawableType = getBitmapFromNetworkResult(networkResult, refCountedBitmapPool);
 
         if (drawableType == null) {
@@ -340,6 +482,278 @@ public abstract class BaseRgbBitmapCache<DrawableType extends RefCountedBitmapDr
 
     protected abstract void saveBitmapToDiskLruCache(DrawableType drawableType, DiskLruCache.Editor editor) throws IOException;
 
+    /**
+     * 一个key的异步加载,结果分发给所有等待者
+     * 1.加载线程上: 从缓存和disk获取
+     * 2.不在则发起异步网络请求, 加载线程随即返回
+     * 3.网络结果回调后, 重新提交到加载线程解码并保存
+     */
+    private final class InFlightLoad implements Runnable, ProcessCheck, NetworkCallback<NetworkResultType> {
+
+        private final BitmapRequest bitmapRequest;
+        private final List<BitmapRequest> requests = new ArrayList<BitmapRequest>(1);
+        private final List<Callback> callbacks = new ArrayList<Callback>(1);
+        private boolean done;
+        //已提交尚未开始执行的任务
+        private LoadTask queuedTask;
+        //未取消的等待者数,没有token的等待者不会取消
+        private int activeWaiters;
+        private boolean cancelled;
+        //所有等待者都取消后取消,传给网络阶段
+        private final CancellationToken token = new CancellationToken();
+
+        InFlightLoad(BitmapRequest bitmapRequest) {
+            this.bitmapRequest = bitmapRequest;
+        }
+
+        /**
+         * @param bitmapRequest
+         * @param callback
+         * @param waiterToken
+         * @return 加载已结束或已取消时返回false
+         */
+        boolean addWaiter(BitmapRequest bitmapRequest, Callback callback, CancellationToken waiterToken) {
+            synchronized (this) {
+                if (this.done || this.cancelled) {
+                    return false;
+                }
+                this.requests.add(bitmapRequest);
+                this.callbacks.add(callback);
+                this.activeWaiters++;
+            }
+            if (waiterToken != null) {
+                waiterToken.onCancel(new Runnable() {
+                    @Override
+                    public void run() {
+                        onWaiterCancelled();
+                    }
+                });
+            }
+            return true;
+        }
+
+        /**
+         * 最后一个等待者取消后, 取消排队中的任务, 运行中的阶段检查token后中止
+         */
+        private void onWaiterCancelled() {
+            LoadTask task;
+            synchronized (this) {
+                if (this.done || --this.activeWaiters > 0) {
+                    return;
+                }
+                this.cancelled = true;
+                task = this.queuedTask;
+            }
+            //新的请求不再等待本次加载
+            inFlightLoads.remove(this.bitmapRequest.getKey(), this);
+            this.token.cancel();
+            if (task != null && cancelLoadTask(task)) {
+                finish(null);
+            }
+        }
+
+        /**
+         * 所有等待者中最高的优先级, 等待者未提供时按可见处理
+         *
+         * @return
+         */
+        private synchronized long getPriority() {
+            long priority = PRIORITY_DETACHED;
+            for (int i = 0; i < this.callbacks.size(); i++) {
+                Callback callback = this.callbacks.get(i);
+                long p = callback instanceof LoadPriority ? ((LoadPriority) callback).getLoadPriority(this.requests.get(i)) : PRIORITY_VISIBLE;
+                priority = Math.max(priority, p);
+            }
+            return priority;
+        }
+
+        /**
+         * 按当前优先级提交一个阶段的任务
+         *
+         * @param stage
+         * @param stageName 同一缓存,同一key,同一阶段的任务key相同
+         */
+        void submit(Runnable stage, String stageName) {
+            LoadTask task = new LoadTask(stageName + ":" + cacheId + ":" + this.bitmapRequest.getKey(), stageName, getPriority(), stage, this);
+            synchronized (this) {
+                this.queuedTask = task;
+            }
+            try {
+                executeLoadTask(task);
+            } catch (RuntimeException e) {
+                Log.e("BitmapCache", "could not execute load task");
+                finish(null);
+            }
+        }
+
+        /**
+         * 优先级变化时, 取消排队中的任务并按新的优先级重新提交
+         */
+        void reprioritize() {
+            LoadTask task;
+            synchronized (this) {
+                task = this.queuedTask;
+                if (task == null || this.done) {
+                    return;
+                }
+            }
+            long priority = getPriority();
+            if (priority == task.priority || !cancelLoadTask(task)) {
+                return;
+            }
+            LoadTask requeued = new LoadTask(task.key, task.stageName, priority, task.stage, this);
+            synchronized (this) {
+                if (this.queuedTask != task) {
+                    return;
+                }
+                this.queuedTask = requeued;
+            }
+            try {
+                executeLoadTask(requeued);
+            } catch (RuntimeException e) {
+                Log.e("BitmapCache", "could not execute load task");
+                finish(null);
+            }
+        }
+
+        synchronized void onTaskStart(LoadTask task) {
+            if (this.queuedTask == task) {
+                this.queuedTask = null;
+            }
+        }
+
+        /**
+         * 任务因队列已满被丢弃, 加载以失败结束
+         *
+         * @param task
+         */
+        void onTaskDiscarded(LoadTask task) {
+            synchronized (this) {
+                if (this.queuedTask != task) {
+                    //已被重新排队的任务替换
+                    return;
+                }
+                this.queuedTask = null;
+            }
+            Log.w("BitmapCache", "load task discarded: " + task.key);
+            finish(null);
+        }
+
+        /**
+         * 只要还有一个等待者需要,就继续加载
+         */
+        @Override
+        public synchronized boolean isProcessCheck(BitmapRequest bitmapRequest) {
+            if (this.cancelled) {
+                return false;
+            }
+            for (int i = 0; i < this.callbacks.size(); i++) {
+                if (this.callbacks.get(i).isProcessCheck(this.requests.get(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            DrawableType drawableType = null;
+            boolean waitingForNetwork = false;
+            try {
+                drawableType = getBitmapFromCache(this.bitmapRequest);
+                if (drawableType != null) {
+                    return;
+                }
+                if (!isProcessCheck(this.bitmapRequest)) {
+                    countCancelled += 1;
+                    return;
+                }
+                namedLockPool.lock(this.bitmapRequest.getKey());
+                try {
+                    drawableType = getBitmapFromDisk(this.bitmapRequest, this);
+                } finally {
+                    namedLockPool.unlock(this.bitmapRequest.getKey());
+                }
+                if (drawableType != null || !isProcessCheck(this.bitmapRequest)) {
+                    return;
+                }
+                waitingForNetwork = true;
+                getNetworkResultAsync(this.bitmapRequest, this, this.token, this);
+            } catch (Throwable t) {
+                Log.e("BitmapCache", "get bitmap failed");
+                waitingForNetwork = false;
+            } finally {
+                if (!waitingForNetwork) {
+                    finish(drawableType);
+                }
+            }
+        }
+
+        @Override
+        public void onNetworkResult(final NetworkResultType networkResult) {
+            if (networkResult == null) {
+                Log.e("BitmapCache", "could not or did not load bitmap from network");
+                finish(null);
+                return;
+            }
+            countFromNetwork += 1;
+            //解码和保存回到加载线程执行,不占用网络回调的线程
+            Runnable decodeTask = new Runnable() {
+                @Override
+                public void run() {
+                    if (token.isCancelled()) {
+                        finish(null);
+                        return;
+                    }
+                    DrawableType drawableType = null;
+                    namedLockPool.lock(bitmapRequest.getKey());
+                    try {
+                        drawableType = getBitmapFromNetworkResultAndSave(bitmapRequest, networkResult, bitmapPool);
+                    } catch (Throwable t) {
+                        Log.e("BitmapCache", "get bitmap failed");
+                    } finally {
+                        namedLockPool.unlock(bitmapRequest.getKey());
+                        finish(drawableType);
+                    }
+                }
+            };
+            submit(decodeTask, STAGE_DECODE);
+        }
+
+        /**
+         * 结束加载并分发结果,只生效一次
+         *
+         * @param drawableType
+         */
+        private void finish(DrawableType drawableType) {
+            List<BitmapRequest> requests;
+            List<Callback> callbacks;
+            synchronized (this) {
+                if (this.done) {
+                    if (drawableType != null) {
+                        drawableType.release();
+                    }
+                    return;
+                }
+                this.done = true;
+                requests = this.requests;
+                callbacks = this.callbacks;
+            }
+            inFlightLoads.remove(this.bitmapRequest.getKey(), this);
+
+            //返回的drawable已持有一次引用,交给第一个等待者,其余每个等待者各acquire一次
+            //须在分发前全部acquire,否则第一个等待者可能先release导致回收
+            if (drawableType != null) {
+                for (int i = 1; i < callbacks.size(); i++) {
+                    drawableType.acquire();
+                }
+            }
+            for (int i = 0; i < callbacks.size(); i++) {
+                handleLoadResult(callbacks.get(i), drawableType, requests.get(i));
+            }
+        }
+    }
+
     /**
      * 每像素字节数
      *
@@ -375,6 +789,77 @@ public abstract class BaseRgbBitmapCache<DrawableType extends RefCountedBitmapDr
         boolean isProcessCheck(BitmapRequest bitmapRequest);
     }
 
+    /**
+     * Callback可同时实现, 提供加载优先级; 可能在任意线程调用, 应只返回已算好的值
+     */
+    public interface LoadPriority {
+        /**
+         * @param bitmapRequest
+         * @return 数值越大越先执行, 见PRIORITY_VISIBLE, PRIORITY_OFFSCREEN, PRIORITY_DETACHED
+         */
+        long getLoadPriority(BitmapRequest bitmapRequest);
+    }
+
+    /**
+     * 交给executeLoadTask的任务, 按优先级执行; 同一key只应排队一个
+     * 执行方丢弃任务时须调用onDiscarded, 否则等待者收不到结果
+     */
+    public final class LoadTask implements Runnable, PriorityExecutor.Item, PriorityExecutor.Discardable {
+        private final String key;
+        private final String stageName;
+        private final long priority;
+        private final Runnable stage;
+        private final InFlightLoad inFlightLoad;
+
+        private LoadTask(String key, String stageName, long priority, Runnable stage, InFlightLoad inFlightLoad) {
+            this.key = key;
+            this.stageName = stageName;
+            this.priority = priority;
+            this.stage = stage;
+            this.inFlightLoad = inFlightLoad;
+        }
+
+        @Override
+        public String getItemKey() {
+            return this.key;
+        }
+
+        @Override
+        public long getItemPriority() {
+            return this.priority;
+        }
+
+        /**
+         * @return STAGE_LOAD或STAGE_DECODE
+         */
+        public String getStage() {
+            return this.stageName;
+        }
+
+        @Override
+        public void onDiscarded() {
+            this.inFlightLoad.onTaskDiscarded(this);
+        }
+
+        @Override
+        public void run() {
+            this.inFlightLoad.onTaskStart(this);
+            this.stage.run();
+        }
+    }
+
+    /**
+     * 异步网络请求的回调
+     *
+     * @param <NetworkResultType>
+     */
+    public interface NetworkCallback<NetworkResultType> {
+        /**
+         * @param networkResult 失败,取消或超时时为null
+         */
+        void onNetworkResult(NetworkResultType networkResult);
+    }
+
     public interface BitmapRequest {
         String getKey();
 
@@ -0,0 +1,232 @@
+package com.ttwishing.library.base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 支持并发读的缓存,按W-TinyLFU策略淘汰,见{@link TinyLfuPolicy}
+ *
+ * 1.get只访问ConcurrentHashMap,不加锁;访问记录写入按线程分片的环形缓冲区,缓冲区满时直接丢弃
+ * 2.某个分片积累到一定数量后,由当前线程tryLock批量回放到淘汰策略,获取不到锁则跳过,不会阻塞
+ * 3.put/clear在锁内完成,被淘汰的drawable在锁内release
+ * 4.get与淘汰并发时,通过claim判断drawable是否已被释放回对象池,避免拿到被复用的bitmap
+ * 5.可选地接入{@link MemoryBudget},数量上限之外,还受所有缓存共享的字节预算限制
+ */
+public class ConcurrentRefCountingCache<DrawableType extends RefCountedBitmapDrawable> implements BaseRgbBitmapCache.RefCountingMemoryCache<DrawableType>, MemoryBudget.Trimmable {
+
+    //分片数,需为2的幂
+    private static final int READ_BUFFER_STRIPES = 4;
+    //每个分片的容量,需为2的幂
+    private static final int READ_BUFFER_SIZE = 64;
+    //分片积累该数量的记录后尝试回放
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    final int capacity;
+    private final ConcurrentHashMap<String, Node<DrawableType>> map;
+    private final TinyLfuPolicy policy;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final List<String> evicted = new ArrayList<String>();
+
+    private final MemoryBudget memoryBudget;
+    //每项占用的字节数
+    private final int entryBytes;
+
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFER_STRIPES];
+
+    public ConcurrentRefCountingCache(int capacity) {
+        this(capacity, null, 0);
+    }
+
+    /**
+     * @param capacity   数量上限
+     * @param memoryBudget 共享的字节预算,可为null
+     * @param entryBytes 每项占用的字节数
+     */
+    public ConcurrentRefCountingCache(int capacity, MemoryBudget memoryBudget, int entryBytes) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        this.capacity = capacity;
+        this.map = new ConcurrentHashMap<String, Node<DrawableType>>(capacity, 0.75f, READ_BUFFER_STRIPES);
+        this.policy = new TinyLfuPolicy(capacity);
+        this.memoryBudget = memoryBudget;
+        this.entryBytes = entryBytes;
+        if (memoryBudget != null) {
+            memoryBudget.register(this);
+        }
+        for (int i = 0; i < READ_BUFFER_STRIPES; i++) {
+            this.readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    @Override
+    public DrawableType get(String key) {
+        Node<DrawableType> node = this.map.get(key);
+        ReadBuffer readBuffer = this.readBuffers[(int) Thread.currentThread().getId() & (READ_BUFFER_STRIPES - 1)];
+        if (readBuffer.offer(key) >= READ_BUFFER_DRAIN_THRESHOLD && this.evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                this.evictionLock.unlock();
+            }
+        }
+        if (node != null && node.drawable.tryAcquire(node.claim)) {
+            return node.drawable;
+        }
+        return null;
+    }
+
+    @Override
+    public void put(String key, DrawableType drawableType) {
+        drawableType.acquire();
+        Node<DrawableType> node = new Node<DrawableType>(drawableType, drawableType.getClaim());
+        this.evictionLock.lock();
+        try {
+            drainReadBuffers();
+            Node<DrawableType> oldNode = this.map.put(key, node);
+            if (oldNode != null) {
+                //替换旧值,视为一次访问
+                this.policy.recordHit(key);
+                oldNode.drawable.release();
+                return;
+            }
+            this.policy.add(key, this.evicted);
+            for (int i = 0; i < this.evicted.size(); i++) {
+                removeEntry(this.evicted.get(i));
+            }
+            this.evicted.clear();
+        } finally {
+            this.evictionLock.unlock();
+        }
+        //在锁外记入预算,超出时可能回调本缓存或其它缓存的trim
+        if (this.memoryBudget != null) {
+            this.memoryBudget.charge(this, this.entryBytes);
+        }
+    }
+
+    @Override
+    public long trim(long bytes) {
+        long freed = 0;
+        this.evictionLock.lock();
+        try {
+            drainReadBuffers();
+            while (freed < bytes) {
+                String key = this.policy.evict();
+                if (key == null) {
+                    break;
+                }
+                removeEntry(key);
+                freed += this.entryBytes;
+            }
+        } finally {
+            this.evictionLock.unlock();
+        }
+        return freed;
+    }
+
+    /**
+     * 在evictionLock内移除并release
+     *
+     * @param key
+     */
+    private void removeEntry(String key) {
+        this.map.remove(key).drawable.release();
+        if (this.memoryBudget != null) {
+            this.memoryBudget.discharge(this.entryBytes);
+        }
+    }
+
+    @Override
+    public void clear() {
+        this.evictionLock.lock();
+        try {
+            drainReadBuffers();
+            for (Map.Entry<String, Node<DrawableType>> entry : this.map.entrySet()) {
+                entry.getValue().drawable.release();
+            }
+            if (this.memoryBudget != null) {
+                this.memoryBudget.discharge((long) this.entryBytes * this.map.size());
+            }
+            this.map.clear();
+            this.policy.clear();
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * 在evictionLock内,将各分片的访问记录回放到淘汰策略
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer readBuffer : this.readBuffers) {
+            String key;
+            while ((key = readBuffer.poll()) != null) {
+                if (this.map.containsKey(key)) {
+                    this.policy.recordHit(key);
+                } else {
+                    this.policy.recordMiss(key);
+                }
+            }
+        }
+    }
+
+    private static final class Node<DrawableType> {
+        final DrawableType drawable;
+        //放入缓存时的claim,若不一致说明drawable已被释放回对象池
+        final int claim;
+
+        Node(DrawableType drawable, int claim) {
+            this.drawable = drawable;
+            this.claim = claim;
+        }
+    }
+
+    /**
+     * 有损的环形缓冲区,多线程写入,持有evictionLock的线程读取
+     */
+    private static final class ReadBuffer {
+        private final AtomicReferenceArray<String> buffer = new AtomicReferenceArray<String>(READ_BUFFER_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        //只在evictionLock内修改
+        private volatile long readCounter;
+
+        /**
+         * 写入一条记录,满时丢弃
+         *
+         * @param key
+         * @return 待回放的记录数
+         */
+        int offer(String key) {
+            long write = this.writeCounter.get();
+            long pending = write - this.readCounter;
+            if (pending < READ_BUFFER_SIZE && this.writeCounter.compareAndSet(write, write + 1)) {
+                this.buffer.lazySet((int) write & (READ_BUFFER_SIZE - 1), key);
+                return (int) pending + 1;
+            }
+            return (int) pending;
+        }
+
+        /**
+         * @return 下一条记录,没有或尚未写入完成时返回null
+         */
+        String poll() {
+            long read = this.readCounter;
+            if (read == this.writeCounter.get()) {
+                return null;
+            }
+            int index = (int) read & (READ_BUFFER_SIZE - 1);
+            String key = this.buffer.get(index);
+            if (key == null) {
+                return null;
+            }
+            this.buffer.lazySet(index, null);
+            this.readCounter = read + 1;
+            return key;
+        }
+    }
+}
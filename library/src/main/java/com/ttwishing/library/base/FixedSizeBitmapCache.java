@@ -8,8 +8,8 @@ import com.ttwishing.library.base.util.IOUtils;
 import com.ttwishing.library.disk.DiskLruCache;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Created by kurt on 12/5/15.
@@ -24,6 +24,14 @@ public abstract class FixedSizeBitmapCache<NetworkResultType> extends BaseRgbBit
     final int limit = 3;
     private final BytePool bytePool = new BytePool(this.perMemorySize, limit);
 
+    //每个加载线程一个direct buffer,从disk读取像素时复用,不再每次映射文件
+    private final ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(perMemorySize);
+        }
+    };
+
     public FixedSizeBitmapCache(Context context, int width, int height, Bitmap.Config config, int poolSize) {
         super(context, width, height, config, poolSize);
     }
@@ -33,24 +41,23 @@ public abstract class FixedSizeBitmapCache<NetworkResultType> extends BaseRgbBit
         return new RefCountedBitmapDrawable(refCountedBitmapPool, bitmapDrawable);
     }
 
+    /**
+     * 按位置读取到线程复用的direct buffer,再拷贝到bitmap中,不经过堆上的byte[]
+     */
     @Override
     protected void readFromDiskLruCache(DiskLruCache.Snapshot snapshot, RefCountedBitmapDrawable refCountedBitmapDrawable, BitmapRequest bitmapRequest, ProcessCheck processCheck) throws IOException {
-        InputStream inputStream = null;
-        BytePool.Buffer buffer = null;
-        try {
-            buffer = this.bytePool.pop();
-            inputStream = snapshot.getInputStream(0);
-            inputStream.read(buffer.bytes);
-            if (!processCheck.isProcessCheck(bitmapRequest)) {
-                this.countCancelled += 1;
-                throw new IOException("no need to process further. cancelling");
-            } else {
-                refCountedBitmapDrawable.getBitmap().copyPixelsFromBuffer(buffer.byteBuffer);
-            }
-        } finally {
-            IOUtils.closeQuietly(inputStream);
-            this.bytePool.push(buffer);
+        if (snapshot.getLength(0) != this.perMemorySize) {
+            throw new IOException("unexpected entry length: " + snapshot.getLength(0));
+        }
+        if (!processCheck.isProcessCheck(bitmapRequest)) {
+            this.countCancelled += 1;
+            throw new IOException("no need to process further. cancelling");
         }
+        ByteBuffer pixels = this.readBuffer.get();
+        pixels.clear();
+        snapshot.read(0, pixels);
+        pixels.flip();
+        refCountedBitmapDrawable.getBitmap().copyPixelsFromBuffer(pixels);
     }
 
 
@@ -0,0 +1,221 @@
+package com.ttwishing.library.base;
+
+import com.ttwishing.library.base.util.CancellationToken;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按滚动方向预取列表中即将显示的图片,UI线程调用
+ *
+ * 1.adapter在滚动时把滚动方向上将要显示的请求(由近到远)连同方向和速度交给prefetch
+ * 2.预取数量按速度估算LOOKAHEAD_SECONDS内会滚过的项数,且预计占用的字节数不超过byteBudget
+ * 3.以PRIORITY_PREFETCH加载,低于屏幕上及附近的图片;结果写入disk缓存和内存缓存,不回调给view
+ * 4.方向反转或某项不再在预取范围内时取消,没有其它等待者时加载和下载随之中止
+ * 5.加载完成的项由预取器持有一次引用,直到滚出预取范围后的下一次prefetch(其间view已显示并持有自己的引用)
+ *   内存缓存可能不计引用(如VaryingSizeCappedBitmapCache的弱引用缓存),不持有时release后bitmap即被回收,预取白做
+ */
+public class ImagePrefetcher {
+
+    public static final int DIRECTION_FORWARD = 1;
+    public static final int DIRECTION_BACKWARD = -1;
+
+    //预取多少秒内会滚过的项
+    private static final float LOOKAHEAD_SECONDS = 1f;
+    //停止或慢速滚动时也预取的项数
+    private static final int MIN_ITEMS = 2;
+
+    private final BaseRgbBitmapCache bitmapCache;
+    private final long byteBudget;
+    private int direction;
+
+    //进行中的预取,key为请求的key
+    private final Map<String, Prefetch> pending = new LinkedHashMap<>();
+    //已加载完成并持有引用的项,按完成顺序
+    private final Map<String, Ready> ready = new LinkedHashMap<>();
+
+    /**
+     * @param bitmapCache
+     * @param byteBudget  进行中的预取, 以及已完成而尚未显示的预取, 各自最多占用的字节数
+     */
+    public ImagePrefetcher(BaseRgbBitmapCache bitmapCache, long byteBudget) {
+        this.bitmapCache = bitmapCache;
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * @param upcoming  滚动方向上即将显示的请求,由近到远
+     * @param direction DIRECTION_FORWARD或DIRECTION_BACKWARD
+     * @param velocity  每秒滚过的项数
+     */
+    public void prefetch(List<? extends BaseRgbBitmapCache.BitmapRequest> upcoming, int direction, float velocity) {
+        if (direction != this.direction) {
+            //反向后原方向上的预取不再需要
+            cancelAll();
+            this.direction = direction;
+        }
+
+        int count = Math.max(MIN_ITEMS, (int) Math.ceil(Math.abs(velocity) * LOOKAHEAD_SECONDS));
+        long maxByBudget = this.byteBudget / Math.max(1, this.bitmapCache.getBytesPerItem());
+        count = (int) Math.min(Math.min(count, maxByBudget), upcoming.size());
+
+        Set<String> wanted = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            wanted.add(upcoming.get(i).getKey());
+        }
+        //已滚过或超出范围的不再预取;已显示的由view的加载接管
+        Iterator<Map.Entry<String, Prefetch>> iterator = this.pending.entrySet().iterator();
+        List<Prefetch> cancelled = new ArrayList<>();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Prefetch> entry = iterator.next();
+            if (!wanted.contains(entry.getKey())) {
+                iterator.remove();
+                cancelled.add(entry.getValue());
+            }
+        }
+        for (Prefetch prefetch : cancelled) {
+            prefetch.cancel();
+        }
+        //滚出范围的项再保留一轮,等view取得引用后再释放
+        Iterator<Ready> readyIterator = this.ready.values().iterator();
+        while (readyIterator.hasNext()) {
+            Ready item = readyIterator.next();
+            if (wanted.contains(item.key)) {
+                item.outOfRange = false;
+            } else if (item.outOfRange) {
+                readyIterator.remove();
+                item.drawable.release();
+            } else {
+                item.outOfRange = true;
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            BaseRgbBitmapCache.BitmapRequest bitmapRequest = upcoming.get(i);
+            if (this.ready.containsKey(bitmapRequest.getKey())) {
+                continue;
+            }
+            Prefetch prefetch = this.pending.get(bitmapRequest.getKey());
+            long priority = BaseRgbBitmapCache.PRIORITY_PREFETCH - i;
+            if (prefetch != null) {
+                //越来越近,提高优先级
+                prefetch.setPriority(priority);
+                continue;
+            }
+            prefetch = new Prefetch(bitmapRequest, priority);
+            this.pending.put(bitmapRequest.getKey(), prefetch);
+            if (!this.bitmapCache.prefetch(bitmapRequest, prefetch, prefetch.token)) {
+                //已在内存中
+                this.pending.remove(bitmapRequest.getKey());
+            }
+        }
+    }
+
+    /**
+     * 取消所有进行中的预取并释放已完成的, 如列表停止显示时
+     */
+    public void cancelAll() {
+        List<Prefetch> cancelled = new ArrayList<>(this.pending.values());
+        this.pending.clear();
+        for (Prefetch prefetch : cancelled) {
+            prefetch.cancel();
+        }
+        List<Ready> released = new ArrayList<>(this.ready.values());
+        this.ready.clear();
+        for (Ready item : released) {
+            item.drawable.release();
+        }
+    }
+
+    /**
+     * 持有加载完成的项, 超出预算时释放最早完成的
+     *
+     * @param key
+     * @param drawable 已持有一次引用
+     */
+    private void hold(String key, RefCountedBitmapDrawable drawable) {
+        Ready previous = this.ready.put(key, new Ready(key, drawable));
+        if (previous != null) {
+            previous.drawable.release();
+        }
+        long maxItems = Math.max(MIN_ITEMS, this.byteBudget / Math.max(1, this.bitmapCache.getBytesPerItem()));
+        Iterator<Ready> iterator = this.ready.values().iterator();
+        while (this.ready.size() > maxItems && iterator.hasNext()) {
+            Ready eldest = iterator.next();
+            iterator.remove();
+            eldest.drawable.release();
+        }
+    }
+
+    private static final class Ready {
+        final String key;
+        final RefCountedBitmapDrawable drawable;
+        //上一次prefetch时已不在范围内
+        boolean outOfRange;
+
+        Ready(String key, RefCountedBitmapDrawable drawable) {
+            this.key = key;
+            this.drawable = drawable;
+        }
+    }
+
+    /**
+     * 一项预取, 作为加载的等待者
+     */
+    private final class Prefetch implements BaseRgbBitmapCache.Callback, BaseRgbBitmapCache.LoadPriority {
+
+        private final BaseRgbBitmapCache.BitmapRequest bitmapRequest;
+        private volatile long priority;
+        private final CancellationToken token = new CancellationToken();
+
+        Prefetch(BaseRgbBitmapCache.BitmapRequest bitmapRequest, long priority) {
+            this.bitmapRequest = bitmapRequest;
+            this.priority = priority;
+        }
+
+        void setPriority(long priority) {
+            if (this.priority != priority) {
+                this.priority = priority;
+                bitmapCache.updatePriority(this.bitmapRequest);
+            }
+        }
+
+        void cancel() {
+            //有其它等待者时加载继续,优先级不再计入本项
+            this.priority = BaseRgbBitmapCache.PRIORITY_DETACHED;
+            this.token.cancel();
+            bitmapCache.updatePriority(this.bitmapRequest);
+        }
+
+        @Override
+        public boolean isProcessCheck(BaseRgbBitmapCache.BitmapRequest bitmapRequest) {
+            return !this.token.isCancelled();
+        }
+
+        @Override
+        public long getLoadPriority(BaseRgbBitmapCache.BitmapRequest bitmapRequest) {
+            return this.priority;
+        }
+
+        @Override
+        public void onLoadComplete(BaseRgbBitmapCache.BitmapRequest bitmapRequest, RefCountedBitmapDrawable refCountedBitmapDrawable) {
+            if (pending.get(this.bitmapRequest.getKey()) == this) {
+                pending.remove(this.bitmapRequest.getKey());
+            }
+            if (refCountedBitmapDrawable == null) {
+                return;
+            }
+            if (this.token.isCancelled()) {
+                refCountedBitmapDrawable.release();
+            } else {
+                bitmapCache.keepInMemory(bitmapRequest, refCountedBitmapDrawable);
+                hold(this.bitmapRequest.getKey(), refCountedBitmapDrawable);
+            }
+        }
+    }
+}
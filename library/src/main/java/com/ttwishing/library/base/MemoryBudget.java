@@ -0,0 +1,182 @@
+package com.ttwishing.library.base;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 所有内存缓存共享的字节预算
+ *
+ * 1.总预算为应用heap(ActivityManager.getMemoryClass)的1/8
+ * 2.缓存放入数据时记入占用,超出预算时先淘汰放入者自身的数据,不够再依次淘汰其它缓存
+ * 3.收到onTrimMemory时按级别将预算降到100%/50%/25%/0,并立即淘汰超出部分
+ * 4.预算不会立即恢复,收缩后每隔RESTORE_INTERVAL_MILLIS,在下一次放入数据时恢复一级,缓存随使用逐渐填充
+ */
+public final class MemoryBudget implements ComponentCallbacks2 {
+
+    /**
+     * 可被淘汰的缓存
+     */
+    public interface Trimmable {
+
+        /**
+         * 淘汰数据,至少释放bytes字节,除非已无数据可淘汰
+         *
+         * @param bytes
+         * @return 实际释放的字节数
+         */
+        long trim(long bytes);
+    }
+
+    //预算占heap的比例
+    private static final int HEAP_FRACTION = 8;
+    //预算分为4级,单位为总预算的1/4
+    private static final int FULL_QUARTERS = 4;
+    //收缩后恢复一级的间隔
+    private static final long RESTORE_INTERVAL_MILLIS = 30 * 1000L;
+
+    private static MemoryBudget sInstance;
+
+    private final long maxBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final CopyOnWriteArrayList<Trimmable> trimmables = new CopyOnWriteArrayList<Trimmable>();
+
+    private volatile int quarters = FULL_QUARTERS;
+    private long trimmedAt;
+
+    public static synchronized MemoryBudget getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            ActivityManager activityManager = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+            long heapBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+            sInstance = new MemoryBudget(heapBytes / HEAP_FRACTION);
+            appContext.registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    private MemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return 未收缩时的总预算
+     */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * @return 当前预算
+     */
+    public long getLimit() {
+        int quarters = this.quarters;
+        if (quarters < FULL_QUARTERS) {
+            quarters = restoreIfDue();
+        }
+        return this.maxBytes * quarters / FULL_QUARTERS;
+    }
+
+    public long getUsedBytes() {
+        return this.usedBytes.get();
+    }
+
+    public void register(Trimmable trimmable) {
+        this.trimmables.addIfAbsent(trimmable);
+    }
+
+    public void unregister(Trimmable trimmable) {
+        this.trimmables.remove(trimmable);
+    }
+
+    /**
+     * 记入新放入的数据,超出预算时淘汰.调用时不能持有缓存自身的锁
+     *
+     * @param owner 放入数据的缓存,优先淘汰它的数据
+     * @param bytes
+     */
+    public void charge(Trimmable owner, long bytes) {
+        this.usedBytes.addAndGet(bytes);
+        reclaim(owner);
+    }
+
+    /**
+     * 记入被移除的数据
+     *
+     * @param bytes
+     */
+    public void discharge(long bytes) {
+        this.usedBytes.addAndGet(-bytes);
+    }
+
+    private void reclaim(Trimmable first) {
+        long over = this.usedBytes.get() - getLimit();
+        if (over > 0 && first != null) {
+            first.trim(over);
+            over = this.usedBytes.get() - getLimit();
+        }
+        for (Trimmable trimmable : this.trimmables) {
+            if (over <= 0) {
+                return;
+            }
+            if (trimmable != first) {
+                trimmable.trim(over);
+                over = this.usedBytes.get() - getLimit();
+            }
+        }
+    }
+
+    private synchronized int restoreIfDue() {
+        long now = SystemClock.uptimeMillis();
+        if (this.quarters < FULL_QUARTERS && now - this.trimmedAt >= RESTORE_INTERVAL_MILLIS) {
+            this.quarters = this.quarters == 0 ? 1 : Math.min(FULL_QUARTERS, this.quarters * 2);
+            this.trimmedAt = now;
+        }
+        return this.quarters;
+    }
+
+    private synchronized void shrinkTo(int quarters) {
+        if (quarters < this.quarters) {
+            this.quarters = quarters;
+        }
+        this.trimmedAt = SystemClock.uptimeMillis();
+    }
+
+    //=========ComponentCallbacks2============
+    @Override
+    public void onTrimMemory(int level) {
+        int quarters;
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            //即将被杀死,全部释放
+            quarters = 0;
+        } else if (level >= TRIM_MEMORY_MODERATE) {
+            quarters = 1;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            //进入后台,界面不可见
+            quarters = 2;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            quarters = 1;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            quarters = 2;
+        } else {
+            return;
+        }
+        shrinkTo(quarters);
+        reclaim(null);
+    }
+
+    @Override
+    public void onLowMemory() {
+        shrinkTo(0);
+        reclaim(null);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
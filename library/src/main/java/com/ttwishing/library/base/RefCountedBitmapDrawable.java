@@ -58,13 +58,13 @@ public class RefCountedBitmapDrawable {
     }
 
     /**
-     * 根据claim来获取使用权
+     * 根据claim来获取使用权,若已被释放回对象池或被重新声明则失败
      *
      * @param claim
      * @return
      */
     public synchronized boolean tryAcquire(int claim) {
-        if (claim != claim) {
+        if (this.claim != claim || this.refCount <= 0) {
             return false;
         }
         acquire();
@@ -55,7 +55,9 @@ public abstract class RefCountedBitmapPool<DrawableType extends RefCountedBitmap
         DrawableType drawableType = this.queue.poll();
         if (drawableType != null) {
             //从对象池中获取
-            this.reused = this.reused + 1;
+            synchronized (this) {
+                this.reused = this.reused + 1;
+            }
             //并对引用进行声明
             drawableType.claim();
             return drawableType;
@@ -82,9 +84,12 @@ public abstract class RefCountedBitmapPool<DrawableType extends RefCountedBitmap
      */
     public DrawableType generateDrawableType(BitmapDrawable bitmapDrawable) {
         DrawableType drawableType = createDrawableType(bitmapDrawable);
-        this.created += 1;
-        //设置标识
-        drawableType.id = this.created;
+        //可能被多个线程同时调用,只在计数时加锁
+        synchronized (this) {
+            this.created += 1;
+            //设置标识
+            drawableType.id = this.created;
+        }
         //引用声明
         drawableType.claim();
         return drawableType;
@@ -98,10 +103,14 @@ public abstract class RefCountedBitmapPool<DrawableType extends RefCountedBitmap
         drawableType.reset();
         if (this.enabled && this.queue.offer(drawableType)) {
             //添加到对象池
-            this.offered += 1;
+            synchronized (this) {
+                this.offered += 1;
+            }
         } else {
             //回收
-            this.recycled += 1;
+            synchronized (this) {
+                this.recycled += 1;
+            }
             drawableType.recycle();
         }
     }
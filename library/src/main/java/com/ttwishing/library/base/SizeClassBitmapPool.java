@@ -0,0 +1,215 @@
+package com.ttwishing.library.base;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * 按尺寸分级复用的Bitmap对象池,可用作BitmapFactory.Options.inBitmap
+ *
+ * 1.宽高向上取整到BUCKET_PIXELS的倍数,同一级(宽,高,config)的bitmap可互相复用,尺寸略有变化时不必重新分配
+ *   KITKAT及以上,作为inBitmap被解码后尺寸会变小,归还时按get时记录的级别放回原来的组,取出时reconfigure
+ * 2.池中bitmap总字节数超过上限时,按放入顺序淘汰最久未被使用的并recycle
+ * 3.接入MemoryBudget,收到onTrimMemory时一并释放
+ */
+public class SizeClassBitmapPool implements MemoryBudget.Trimmable {
+
+    //尺寸分级的粒度
+    private static final int BUCKET_PIXELS = 64;
+
+    private final long maxBytes;
+    private long bytes;
+
+    private final Map<Key, ArrayList<Bitmap>> groups = new HashMap<Key, ArrayList<Bitmap>>();
+    //按放入顺序排列,最久未被使用的在最前
+    private final LinkedHashMap<Bitmap, Key> lru = new LinkedHashMap<Bitmap, Key>();
+    //从池中取出的bitmap所属的级别,归还时不按当前宽高而按它放回;未归还的bitmap不被这里持有
+    private final WeakHashMap<Bitmap, Key> origins = new WeakHashMap<Bitmap, Key>();
+
+    protected int created = 0;
+    protected int reused = 0;
+    protected int recycled = 0;
+
+    /**
+     * @param maxBytes 池中bitmap的总字节数上限
+     */
+    public SizeClassBitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 获取宽高不小于(width, height)的可修改bitmap,内容未清空
+     *
+     * @param width
+     * @param height
+     * @param config
+     * @return
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Key key = new Key(bucket(width), bucket(height), config);
+        synchronized (this) {
+            ArrayList<Bitmap> group = this.groups.get(key);
+            int index = group != null ? reusableIndex(group, key) : -1;
+            if (index >= 0) {
+                Bitmap bitmap = group.remove(index);
+                this.lru.remove(bitmap);
+                this.bytes -= byteCount(bitmap);
+                this.reused += 1;
+                //KITKAT以下取出的宽高与key相同,无需reconfigure
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                        && (bitmap.getWidth() != key.width || bitmap.getHeight() != key.height)) {
+                    bitmap.reconfigure(key.width, key.height, config);
+                }
+                this.origins.put(bitmap, key);
+                return bitmap;
+            }
+            this.created += 1;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(key.width, key.height, config);
+        synchronized (this) {
+            this.origins.put(bitmap, key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 归还bitmap,超出上限时淘汰
+     *
+     * @param bitmap
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        synchronized (this) {
+            Key key = this.origins.remove(bitmap);
+            if (key == null) {
+                key = new Key(bucket(bitmap.getWidth()), bucket(bitmap.getHeight()), bitmap.getConfig());
+            }
+            if (!bitmap.isMutable() || !fits(bitmap, key)) {
+                //不是从池中获取的,无法按级复用
+                bitmap.recycle();
+                return;
+            }
+            ArrayList<Bitmap> group = this.groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Bitmap>(2);
+                this.groups.put(key, group);
+            }
+            group.add(bitmap);
+            this.lru.put(bitmap, key);
+            this.bytes += byteCount(bitmap);
+            trimTo(this.maxBytes);
+        }
+    }
+
+    /**
+     * 释放所有bitmap
+     */
+    public synchronized void clear() {
+        trimTo(0);
+    }
+
+    @Override
+    public synchronized long trim(long bytes) {
+        long before = this.bytes;
+        trimTo(Math.max(0, this.bytes - bytes));
+        return before - this.bytes;
+    }
+
+    private void trimTo(long maxBytes) {
+        Iterator<Map.Entry<Bitmap, Key>> iterator = this.lru.entrySet().iterator();
+        while (this.bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Bitmap, Key> eldest = iterator.next();
+            iterator.remove();
+            Bitmap bitmap = eldest.getKey();
+            this.groups.get(eldest.getValue()).remove(bitmap);
+            this.bytes -= byteCount(bitmap);
+            this.recycled += 1;
+            bitmap.recycle();
+        }
+        if (this.lru.isEmpty()) {
+            this.groups.clear();
+        }
+    }
+
+    private static int bucket(int size) {
+        return Math.max(1, (size + BUCKET_PIXELS - 1) / BUCKET_PIXELS) * BUCKET_PIXELS;
+    }
+
+    /**
+     * bitmap能否作为key这一级使用
+     */
+    private static boolean fits(Bitmap bitmap, Key key) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount() >= key.width * key.height * bytesPerPixel(key.config);
+        }
+        return bitmap.getWidth() == key.width && bitmap.getHeight() == key.height;
+    }
+
+    /**
+     * 组中可直接取出的bitmap,优先最近放入的
+     * KITKAT以下不能reconfigure,只取宽高与key完全相同的
+     *
+     * @return 没有时返回-1
+     */
+    private static int reusableIndex(ArrayList<Bitmap> group, Key key) {
+        for (int i = group.size() - 1; i >= 0; i--) {
+            Bitmap bitmap = group.get(i);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    || (bitmap.getWidth() == key.width && bitmap.getHeight() == key.height)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int byteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    private static final class Key {
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+
+        Key(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return this.width == key.width && this.height == key.height && this.config == key.config;
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.width * 31 + this.height) * 31 + (this.config != null ? this.config.hashCode() : 0);
+        }
+    }
+}
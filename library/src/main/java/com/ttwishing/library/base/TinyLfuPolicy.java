@@ -0,0 +1,135 @@
+package com.ttwishing.library.base;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * W-TinyLFU淘汰策略,只维护key的顺序,不持有value,调用方需自行同步
+ *
+ * 1.新key先进入容量约1%的window LRU,使突发的新访问有机会积累频率
+ * 2.被挤出window的key作为候选者,与main区probation段最久未访问的key比较频率,频率低者被淘汰
+ * 3.main区为分段LRU:probation段的key再次被访问后晋升到protected段(约占main区80%),
+ *   protected段溢出时最久未访问的key降级回probation段
+ *
+ * 这样快速滑动列表时只出现一次的图片不会挤掉每屏都出现的头像等图片
+ */
+final class TinyLfuPolicy {
+
+    private final FrequencySketch sketch;
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final int protectedCapacity;
+
+    private final LinkedHashSet<String> window = new LinkedHashSet<String>();
+    private final LinkedHashSet<String> probation = new LinkedHashSet<String>();
+    private final LinkedHashSet<String> protectedSegment = new LinkedHashSet<String>();
+
+    TinyLfuPolicy(int capacity) {
+        this.sketch = new FrequencySketch(capacity);
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.mainCapacity = Math.max(0, capacity - windowCapacity);
+        this.protectedCapacity = mainCapacity * 4 / 5;
+    }
+
+    /**
+     * 记录一次未命中,以积累该key的频率
+     *
+     * @param key
+     */
+    void recordMiss(String key) {
+        sketch.increment(key);
+    }
+
+    /**
+     * 记录一次命中
+     *
+     * @param key
+     */
+    void recordHit(String key) {
+        sketch.increment(key);
+        if (window.remove(key)) {
+            window.add(key);
+        } else if (probation.remove(key)) {
+            protectedSegment.add(key);
+            if (protectedSegment.size() > protectedCapacity) {
+                probation.add(removeEldest(protectedSegment));
+            }
+        } else if (protectedSegment.remove(key)) {
+            protectedSegment.add(key);
+        }
+    }
+
+    /**
+     * 加入新key
+     *
+     * @param key
+     * @param evicted 收集因此被淘汰的key,可能包含key自身
+     */
+    void add(String key, List<String> evicted) {
+        sketch.increment(key);
+        window.add(key);
+        if (window.size() <= windowCapacity) {
+            return;
+        }
+        String candidate = removeEldest(window);
+        if (probation.size() + protectedSegment.size() < mainCapacity) {
+            probation.add(candidate);
+            return;
+        }
+        LinkedHashSet<String> victimSegment = !probation.isEmpty() ? probation : protectedSegment;
+        if (victimSegment.isEmpty()) {
+            evicted.add(candidate);
+            return;
+        }
+        String victim = victimSegment.iterator().next();
+        if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+            victimSegment.remove(victim);
+            evicted.add(victim);
+            probation.add(candidate);
+        } else {
+            evicted.add(candidate);
+        }
+    }
+
+    /**
+     * 移除key
+     *
+     * @param key
+     * @return key是否存在
+     */
+    boolean remove(String key) {
+        return window.remove(key) || probation.remove(key) || protectedSegment.remove(key);
+    }
+
+    /**
+     * 不放入新key,直接淘汰一个key,依次选择probation、protected、window段中最久未访问的
+     *
+     * @return 被淘汰的key,没有时返回null
+     */
+    String evict() {
+        if (!probation.isEmpty()) {
+            return removeEldest(probation);
+        }
+        if (!protectedSegment.isEmpty()) {
+            return removeEldest(protectedSegment);
+        }
+        if (!window.isEmpty()) {
+            return removeEldest(window);
+        }
+        return null;
+    }
+
+    void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+    }
+
+    private static String removeEldest(LinkedHashSet<String> segment) {
+        Iterator<String> iterator = segment.iterator();
+        String eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+}
@@ -31,11 +31,24 @@ public abstract class VaryingSizeCappedBitmapCache extends BaseRgbBitmapCache<Va
 
     private final Paint paint = new Paint();
 
+    //同时处理的临时bitmap数量,用于确定tmpBitmapPool的容量
+    private static final int TMP_BITMAP_POOL_SIZE = 4;
+
     private final int tmpWidth;
     private final int tmpHeight;
-    private boolean isEnabled;
+    private volatile boolean isEnabled;
+
+    //解码、剪切用的临时bitmap,按尺寸分级复用
+    private final SizeClassBitmapPool tmpBitmapPool;
+    private final MemoryBudget memoryBudget;
 
-    private Bitmap tmpLoadingBitmap;
+    //每个工作线程各自的绘制对象,使多个线程可同时处理图片
+    private final ThreadLocal<DrawScratch> drawScratch = new ThreadLocal<DrawScratch>() {
+        @Override
+        protected DrawScratch initialValue() {
+            return new DrawScratch(paint);
+        }
+    };
 
     public VaryingSizeCappedBitmapCache(Context context, int width, int height, Bitmap.Config config, int poolSize) {
         super(context, width, height, config, poolSize);
@@ -49,12 +62,17 @@ public abstract class VaryingSizeCappedBitmapCache extends BaseRgbBitmapCache<Va
         this.tmpWidth = (int) (1.5D * width);
         this.tmpHeight = (int) (1.5D * height);
 
+        this.tmpBitmapPool = new SizeClassBitmapPool((long) TMP_BITMAP_POOL_SIZE * this.tmpWidth * this.tmpHeight * 4);
+        this.memoryBudget = MemoryBudget.getInstance(context);
+        this.memoryBudget.register(this.tmpBitmapPool);
+
         this.isEnabled = true;
     }
 
     @Override
     public void start() {
         super.start();
+        this.memoryBudget.register(this.tmpBitmapPool);
         this.isEnabled = true;
     }
 
@@ -64,12 +82,10 @@ public abstract class VaryingSizeCappedBitmapCache extends BaseRgbBitmapCache<Va
         super.clearCache();
     }
 
-    protected synchronized void releaseBitmap() {
-        if (this.tmpLoadingBitmap != null) {
-            this.tmpLoadingBitmap.recycle();
-            this.tmpLoadingBitmap = null;
-        }
+    protected void releaseBitmap() {
         this.isEnabled = false;
+        this.memoryBudget.unregister(this.tmpBitmapPool);
+        this.tmpBitmapPool.clear();
     }
 
     @Override
@@ -77,8 +93,11 @@ public abstract class VaryingSizeCappedBitmapCache extends BaseRgbBitmapCache<Va
         return new VaryingSizeRefCountedBitmapDrawable(refCountedBitmapPool, bitmapDrawable, bitmapDrawable.getIntrinsicWidth(), bitmapDrawable.getIntrinsicHeight(), this.paint);
     }
 
+    /**
+     * 可被多个线程同时调用,临时bitmap从tmpBitmapPool获取,绘制对象为每个线程独有
+     */
     @Override
-    protected synchronized final VaryingSizeRefCountedBitmapDrawable getBitmapFromNetworkResult(File file, RefCountedBitmapPool<VaryingSizeRefCountedBitmapDrawable> pool) {
+    protected final VaryingSizeRefCountedBitmapDrawable getBitmapFromNetworkResult(File file, RefCountedBitmapPool<VaryingSizeRefCountedBitmapDrawable> pool) {
         //网络结果不存在
         if (file == null || !file.exists()) {
             return null;
@@ -97,47 +116,62 @@ public abstract class VaryingSizeCappedBitmapCache extends BaseRgbBitmapCache<Va
             return null;
         }
 
-        int left = 0;
-        if (width > tmpBitmap.getWidth()) {
-            left = (int) Math.ceil((width - tmpBitmap.getWidth()) / 2.0F);
-            width = tmpBitmap.getWidth() - left * 2;
-        }
+        try {
+            //池中的bitmap按级取整,可能比需要的大,以实际需要的大小计算剪切区域
+            int loadWidth = Math.min(width, this.tmpWidth);
+            int loadHeight = Math.min(height, this.tmpHeight);
+
+            int left = 0;
+            if (width > loadWidth) {
+                left = (int) Math.ceil((width - loadWidth) / 2.0F);
+                width = loadWidth - left * 2;
+            }
 
-        int top = 0;
-        if (height > tmpBitmap.getHeight()) {
-            top = (int) Math.ceil((height - tmpBitmap.getHeight()) / 2.0F);
-            height = tmpBitmap.getHeight() - top * 2;
-        }
+            int top = 0;
+            if (height > loadHeight) {
+                top = (int) Math.ceil((height - loadHeight) / 2.0F);
+                height = loadHeight - top * 2;
+            }
 
-        if (!cropToBitmap(file, tmpBitmap, left, top, width, height)) {
-            Log.d("VaryingSize", "cant crop bitmap: " + file);
-            return null;
-        }
+            if (!cropToBitmap(file, tmpBitmap, left, top, width, height)) {
+                Log.d("VaryingSize", "cant crop bitmap: " + file);
+                return null;
+            }
 
-        int[] sizes = getDrawSizes(width, height);
+            int[] sizes = getDrawSizes(width, height);
 
-        VaryingSizeRefCountedBitmapDrawable varyingSizeRefCountedBitmapDrawable = pool.get();
+            VaryingSizeRefCountedBitmapDrawable varyingSizeRefCountedBitmapDrawable = pool.get();
 
-        Canvas canvas = new Canvas(varyingSizeRefCountedBitmapDrawable.getBitmap());
+            DrawScratch scratch = this.drawScratch.get();
+            Canvas canvas = scratch.canvas;
+            canvas.setBitmap(varyingSizeRefCountedBitmapDrawable.getBitmap());
 
-        //tmp的大小不一定是我们要显示的结果
-        canvas.drawBitmap(tmpBitmap, new Rect(0, sizes[2], width, height - sizes[2]), new Rect(0, 0, sizes[0], sizes[1]), this.paint);
-        externalDraw(canvas, sizes[0], sizes[1]);
+            //tmp的大小不一定是我们要显示的结果
+            scratch.srcRect.set(0, sizes[2], width, height - sizes[2]);
+            scratch.dstRect.set(0, 0, sizes[0], sizes[1]);
+            canvas.drawBitmap(tmpBitmap, scratch.srcRect, scratch.dstRect, scratch.paint);
+            externalDraw(canvas, sizes[0], sizes[1]);
+            //不持有drawable的bitmap
+            canvas.setBitmap(null);
 
-        varyingSizeRefCountedBitmapDrawable.setWidth(sizes[0]);
-        varyingSizeRefCountedBitmapDrawable.setHeight(sizes[1]);
+            varyingSizeRefCountedBitmapDrawable.setWidth(sizes[0]);
+            varyingSizeRefCountedBitmapDrawable.setHeight(sizes[1]);
 
-        return varyingSizeRefCountedBitmapDrawable;
+            return varyingSizeRefCountedBitmapDrawable;
+        } finally {
+            recycleTmpLoadingBitmap(tmpBitmap);
+        }
     }
 
     /**
+     * 从tmpBitmapPool获取临时bitmap,宽高不小于需要的大小,用完须调用recycleTmpLoadingBitmap归还
      * 要保证缩略图的大小不能超过 (maxWidth, maxHeight)
      *
      * @param width  图片的实际width
      * @param height 图片的实际height
      * @return
      */
-    protected synchronized final Bitmap getTmpLoadingBitmap(int width, int height) {
+    protected final Bitmap getTmpLoadingBitmap(int width, int height) {
         if (!isEnabled) {
             return null;
         }
@@ -148,31 +182,32 @@ public abstract class VaryingSizeCappedBitmapCache extends BaseRgbBitmapCache<Va
             height = this.tmpHeight;
         }
 
-        if (this.tmpLoadingBitmap != null) {
-            //判断还有tmpLoadingBitmap是否可用
-            if (this.tmpLoadingBitmap.getWidth() >= width && this.tmpLoadingBitmap.getHeight() >= height) {
-                return this.tmpLoadingBitmap;
-            }
-            //临时bitmap不可用
-            this.tmpLoadingBitmap.recycle();
-            this.tmpLoadingBitmap = null;
-        }
-
         if (width < 1 || height < 1) {
             Log.e("VaryingSize", "getTmpLoadingBitmap has been called w/ 0 width or height");
             return null;
         }
 
         try {
-            if (isEnabled) {
-                this.tmpLoadingBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-            }
+            return this.tmpBitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
         } catch (OutOfMemoryError e) {
             Log.d("VaryingSize", "oom while creating tmp loading bitmap");
+            this.tmpBitmapPool.clear();
             handleOutOfMemoryError();
-            this.tmpLoadingBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            return this.tmpBitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    /**
+     * 归还临时bitmap,缓存已停止时直接回收
+     *
+     * @param bitmap
+     */
+    protected final void recycleTmpLoadingBitmap(Bitmap bitmap) {
+        if (this.isEnabled) {
+            this.tmpBitmapPool.put(bitmap);
+        } else {
+            bitmap.recycle();
         }
-        return this.tmpLoadingBitmap;
     }
 
 
@@ -225,6 +260,20 @@ public abstract class VaryingSizeCappedBitmapCache extends BaseRgbBitmapCache<Va
         return this.paint;
     }
 
+    /**
+     * 工作线程独有的绘制对象
+     */
+    private static final class DrawScratch {
+        final Canvas canvas = new Canvas();
+        final Rect srcRect = new Rect();
+        final Rect dstRect = new Rect();
+        final Paint paint;
+
+        DrawScratch(Paint paint) {
+            this.paint = new Paint(paint);
+        }
+    }
+
     public class Metadata implements Serializable {
         int realHeight;
         int realWidth;
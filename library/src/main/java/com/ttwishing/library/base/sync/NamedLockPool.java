@@ -1,9 +1,6 @@
 package com.ttwishing.library.base.sync;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
@@ -12,6 +9,10 @@ import java.util.concurrent.locks.ReentrantLock;
  * Created by kurt on 10/28/15.
  * <p/>
  * 实现lock,并控制并发量
+ * <p/>
+ * lock存放在ConcurrentHashMap中,引用计数通过CAS维护,获取和释放都不经过全局锁:
+ * 1.引用计数降为0的lock不能再被引用,随后从map中移除,其它线程遇到时协助移除并新建
+ * 2.lock对象不再复用,避免被移除的lock在别的key下重新出现
  */
 public class NamedLockPool {
 
@@ -19,21 +20,19 @@ public class NamedLockPool {
     //信号量控制并发
     private final Semaphore concurrencySemaphore;
 
-    private final Map<String, NamedLock> lockMap;
-
-    private final int lockPoolMinLimit;
-    //lock的对象池
-    private final List<NamedLock> lockPool;
+    private final ConcurrentHashMap<String, NamedLock> lockMap;
 
+    /**
+     * @param minLimit 预计同时使用的key数量,用作map的初始容量
+     * @param fair
+     */
     public NamedLockPool(int minLimit, boolean fair) {
         this(minLimit, fair, null);
     }
 
     public NamedLockPool(int minLimit, boolean fair, Integer permits) {
-        this.lockPoolMinLimit = minLimit;
         this.fair = fair;
-        this.lockMap = new HashMap(lockPoolMinLimit);
-        this.lockPool = new LinkedList();
+        this.lockMap = new ConcurrentHashMap<String, NamedLock>(Math.max(16, minLimit));
         if (permits == null) {
             this.concurrencySemaphore = null;
         } else {
@@ -47,11 +46,7 @@ public class NamedLockPool {
      * @param name
      */
     public void lock(String name) {
-        NamedLock namedLock;
-        synchronized (this.lockMap) {
-            namedLock = getLock(name, true);
-            namedLock.increment();
-        }
+        NamedLock namedLock = getLock(name);
 
         namedLock.lock();
 
@@ -67,60 +62,43 @@ public class NamedLockPool {
      * @param name
      */
     public void unlock(String name) {
-        NamedLock namedLock = getLock(name, true);
-        if (namedLock == null) {
+        NamedLock namedLock = this.lockMap.get(name);
+        if (namedLock == null || !namedLock.isHeldByCurrentThread()) {
             throw new RuntimeException("trying to unlock a key without holding a lock on it ?");
         }
 
-        //lock是否执行回收
-        boolean removed = true;
-        synchronized (this.lockMap) {
-            if (namedLock.decrement() < 1) {
-                lockMap.remove(name);
-            } else {
-                removed = false;
-            }
+        if (namedLock.decrement() == 0) {
+            //没有其它线程引用,移除
+            this.lockMap.remove(name, namedLock);
         }
         namedLock.unlock();
         if (concurrencySemaphore != null) {
             concurrencySemaphore.release();
         }
-        if (removed) {
-            //回收lock
-            recycleLock(namedLock);
-        }
     }
 
-    private NamedLock getLock(String name, boolean create) {
-        synchronized (this.lockMap) {
+    /**
+     * 获取name对应的lock并增加引用
+     *
+     * @param name
+     * @return
+     */
+    private NamedLock getLock(String name) {
+        while (true) {
             NamedLock namedLock = this.lockMap.get(name);
-            if (namedLock == null && create) {
-                namedLock = getUnusedLock();
-                this.lockMap.put(name, namedLock);
-            }
-            return namedLock;
-        }
-    }
-
-    private NamedLock getUnusedLock() {
-        NamedLock namedLock;
-        synchronized (this.lockPool) {
-            if (this.lockPool.size() > 0) {
-                //获取老的
-                namedLock = this.lockPool.remove(-1 + this.lockPool.size()).reset();
-            } else {
-                //新建
-                namedLock = new NamedLock(this.fair);
+            if (namedLock == null) {
+                //新建, 初始引用为1
+                NamedLock created = new NamedLock(this.fair);
+                namedLock = this.lockMap.putIfAbsent(name, created);
+                if (namedLock == null) {
+                    return created;
+                }
             }
-        }
-        return namedLock;
-    }
-
-    private void recycleLock(NamedLock namedLock) {
-        synchronized (lockPool) {
-            if (lockPool.size() < lockPoolMinLimit) {
-                lockPool.add(namedLock);
+            if (namedLock.increment()) {
+                return namedLock;
             }
+            //引用已降为0,正在被移除,协助移除后重试
+            this.lockMap.remove(name, namedLock);
         }
     }
 
@@ -130,9 +108,9 @@ public class NamedLockPool {
     class NamedLock extends ReentrantLock {
 
         /**
-         * 外置计数器
+         * 外置计数器,降为0后不再增加
          */
-        private AtomicInteger referenceCount = new AtomicInteger(0);
+        private final AtomicInteger referenceCount = new AtomicInteger(1);
 
         public NamedLock(boolean fair) {
             super(fair);
@@ -150,20 +128,18 @@ public class NamedLockPool {
         /**
          * 引用+1
          *
-         * @return
+         * @return 引用已降为0时返回false
          */
-        public int increment() {
-            return this.referenceCount.incrementAndGet();
-        }
-
-        /**
-         * 重置
-         *
-         * @return
-         */
-        public NamedLock reset() {
-            this.referenceCount.set(0);
-            return this;
+        public boolean increment() {
+            while (true) {
+                int count = this.referenceCount.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (this.referenceCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
         }
     }
 }
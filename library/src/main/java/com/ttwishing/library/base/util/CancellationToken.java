@@ -0,0 +1,67 @@
+package com.ttwishing.library.base.util;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 取消标记, 由请求方持有并取消, 从加载一直传到下载
+ *
+ * 1.各阶段开始前检查isCancelled,流复制过程中由IOUtils.copy检查
+ * 2.onCancel注册的回调在cancel时执行一次,已取消时立即执行;回调在调用cancel的线程上执行,应尽快返回
+ */
+public final class CancellationToken {
+
+    private volatile boolean cancelled;
+    private List<Runnable> listeners;
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * 已取消时抛出异常, 用于中断io
+     *
+     * @throws InterruptedIOException
+     */
+    public void throwIfCancelled() throws InterruptedIOException {
+        if (this.cancelled) {
+            throw new InterruptedIOException("cancelled");
+        }
+    }
+
+    public void cancel() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (this.cancelled) {
+                return;
+            }
+            this.cancelled = true;
+            listeners = this.listeners;
+            this.listeners = null;
+        }
+        if (listeners != null) {
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).run();
+            }
+        }
+    }
+
+    /**
+     * 注册取消时的回调
+     *
+     * @param listener
+     */
+    public void onCancel(Runnable listener) {
+        synchronized (this) {
+            if (!this.cancelled) {
+                if (this.listeners == null) {
+                    this.listeners = new ArrayList<>(2);
+                }
+                this.listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+}
@@ -56,10 +56,26 @@ public class IOUtils {
     }
 
     public static long copy(InputStream is, OutputStream os) throws IOException {
+        return copy(is, os, null);
+    }
+
+    /**
+     * 复制, 每读一块检查一次是否已取消
+     *
+     * @param is
+     * @param os
+     * @param token 可为null
+     * @return
+     * @throws IOException 已取消时为InterruptedIOException
+     */
+    public static long copy(InputStream is, OutputStream os, CancellationToken token) throws IOException {
         byte[] buffer = new byte[' '];
         long totalRead = 0L;
         int read;
         while ((read = is.read(buffer)) != -1) {
+            if (token != null) {
+                token.throwIfCancelled();
+            }
             os.write(buffer, 0, read);
             totalRead += read;
         }
@@ -6,10 +6,12 @@ import android.graphics.RectF;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
+import android.view.ViewTreeObserver;
 
 import com.ttwishing.library.base.BaseRgbBitmapCache;
 import com.ttwishing.library.base.VaryingSizeCappedBitmapCache;
 import com.ttwishing.library.base.VaryingSizeRefCountedBitmapDrawable;
+import com.ttwishing.library.base.util.CancellationToken;
 import com.ttwishing.library.base.util.RecycleHelper;
 
 import java.lang.ref.WeakReference;
@@ -17,12 +19,25 @@ import java.lang.ref.WeakReference;
 /**
  * Created by kurt on 11/13/15.
  */
-public abstract class RefCountedFastResizeableImageView extends View implements RecycleHelper.RecyclingView, BaseRgbBitmapCache.Callback<VaryingSizeRefCountedBitmapDrawable> {
+public abstract class RefCountedFastResizeableImageView extends View implements RecycleHelper.RecyclingView, BaseRgbBitmapCache.Callback<VaryingSizeRefCountedBitmapDrawable>, BaseRgbBitmapCache.LoadPriority {
 
     private VaryingSizeRefCountedBitmapDrawable varyingSizeRefCountedBitmapDrawable;//boa
     private VaryingSizeBitmapRequest varyingSizeBitmapRequest;//bob
     protected RectF rectF = null;//boc
     private WeakCallback weakCallback = new WeakCallback(this);//bod
+    //当前请求的取消标记,请求被替换或view被回收时取消
+    private CancellationToken loadToken;
+    //最近一次加载使用的缓存,用于滚动时更新优先级
+    private VaryingSizeCappedBitmapCache bitmapCache;
+    //加载优先级,UI线程计算,加载线程读取
+    private volatile long loadPriority = BaseRgbBitmapCache.PRIORITY_VISIBLE;
+
+    private final ViewTreeObserver.OnScrollChangedListener scrollChangedListener = new ViewTreeObserver.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged() {
+            updateLoadPriority(ViewportPriority.of(RefCountedFastResizeableImageView.this));
+        }
+    };
 
     private boolean playAnimation = false;
     private long startTime;//boe
@@ -102,6 +117,41 @@ public abstract class RefCountedFastResizeableImageView extends View implements
         setMeasuredDimension(width, height);
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getViewTreeObserver().addOnScrollChangedListener(this.scrollChangedListener);
+        updateLoadPriority(ViewportPriority.of(this));
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        getViewTreeObserver().removeOnScrollChangedListener(this.scrollChangedListener);
+        //已滚出列表,让出加载线程
+        updateLoadPriority(BaseRgbBitmapCache.PRIORITY_DETACHED);
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * 优先级变化且图片仍在加载时,通知缓存重新排队
+     *
+     * @param priority
+     */
+    private void updateLoadPriority(long priority) {
+        if (priority == this.loadPriority) {
+            return;
+        }
+        this.loadPriority = priority;
+        if (this.bitmapCache != null && this.varyingSizeBitmapRequest != null && this.varyingSizeRefCountedBitmapDrawable == null) {
+            this.bitmapCache.updatePriority(this.varyingSizeBitmapRequest);
+        }
+    }
+
+    @Override
+    public long getLoadPriority(BaseRgbBitmapCache.BitmapRequest bitmapRequest) {
+        return this.loadPriority;
+    }
+
     protected abstract long getAnimationDurationInNs();
 
     //noodles
@@ -110,6 +160,7 @@ public abstract class RefCountedFastResizeableImageView extends View implements
 
     @Override
     public void recycle() {
+        cancelLoad();
         setRefCountedResizeableBitmapDrawable(null);
         this.varyingSizeBitmapRequest = null;
     }
@@ -136,15 +187,30 @@ public abstract class RefCountedFastResizeableImageView extends View implements
             setRefCountedResizeableBitmapDrawable(null);
         }
 
+        cancelLoad();
         this.varyingSizeBitmapRequest = bitmapRequest;
+        this.bitmapCache = bitmapCache;
+        //列表绑定时view可能尚未attach,此时按即将显示处理
+        this.loadPriority = isShown() ? ViewportPriority.of(this) : BaseRgbBitmapCache.PRIORITY_VISIBLE;
 
         if (this.varyingSizeBitmapRequest != null) {
-            bitmapCache.loadBitmap(this.varyingSizeBitmapRequest, this.weakCallback);
+            this.loadToken = new CancellationToken();
+            bitmapCache.loadBitmap(this.varyingSizeBitmapRequest, this.weakCallback, this.loadToken);
         }
 
         requestLayout();
     }
 
+    /**
+     * 取消已放弃的请求, 没有其它等待者时其加载和下载随之中止
+     */
+    private void cancelLoad() {
+        if (this.loadToken != null) {
+            this.loadToken.cancel();
+            this.loadToken = null;
+        }
+    }
+
     public void setRefCountedResizeableBitmapDrawable(VaryingSizeRefCountedBitmapDrawable bitmapDrawable) {
 
         if (this.varyingSizeRefCountedBitmapDrawable != null) {//cond_0
@@ -198,7 +264,7 @@ public abstract class RefCountedFastResizeableImageView extends View implements
         return false;
     }
 
-    class WeakCallback implements BaseRgbBitmapCache.Callback<VaryingSizeRefCountedBitmapDrawable> {
+    class WeakCallback implements BaseRgbBitmapCache.Callback<VaryingSizeRefCountedBitmapDrawable>, BaseRgbBitmapCache.LoadPriority {
 
         private WeakReference<BaseRgbBitmapCache.Callback> callbackRef;
 
@@ -226,6 +292,15 @@ public abstract class RefCountedFastResizeableImageView extends View implements
             }
             callback.onLoadComplete(bitmapRequest, bitmapDrawable);
         }
+
+        @Override
+        public long getLoadPriority(BaseRgbBitmapCache.BitmapRequest bitmapRequest) {
+            BaseRgbBitmapCache.Callback callback = this.callbackRef.get();
+            if (callback instanceof BaseRgbBitmapCache.LoadPriority) {
+                return ((BaseRgbBitmapCache.LoadPriority) callback).getLoadPriority(bitmapRequest);
+            }
+            return callback == null ? BaseRgbBitmapCache.PRIORITY_DETACHED : BaseRgbBitmapCache.PRIORITY_VISIBLE;
+        }
     }
 
     public class VaryingSizeBitmapRequest implements BaseRgbBitmapCache.BitmapRequest {
@@ -6,11 +6,13 @@ import android.graphics.Matrix;
 import android.graphics.drawable.BitmapDrawable;
 import android.util.AttributeSet;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 
 import com.ttwishing.library.base.BaseRgbBitmapCache;
 import com.ttwishing.library.base.FixedSizeBitmapCache;
 import com.ttwishing.library.base.RefCountedBitmapDrawable;
+import com.ttwishing.library.base.util.CancellationToken;
 import com.ttwishing.library.base.util.RecycleHelper;
 
 import java.lang.ref.WeakReference;
@@ -18,7 +20,7 @@ import java.lang.ref.WeakReference;
 /**
  * Created by kurt on 12/5/15.
  */
-public abstract class RefCountedImageView extends View implements RecycleHelper.RecyclingView, BaseRgbBitmapCache.Callback {
+public abstract class RefCountedImageView extends View implements RecycleHelper.RecyclingView, BaseRgbBitmapCache.Callback, BaseRgbBitmapCache.LoadPriority {
 
     private ImageView.ScaleType scaleType = ImageView.ScaleType.MATRIX;
     private Matrix matrix = new Matrix();
@@ -33,6 +35,22 @@ public abstract class RefCountedImageView extends View implements RecycleHelper.
     //empty状态下Bitmap的request
     BaseRgbBitmapCache.BitmapRequest emptyStateBitmapRequest;
 
+    //当前请求的取消标记,请求被替换或view被回收时取消
+    private CancellationToken loadToken;
+    private CancellationToken emptyStateLoadToken;
+
+    //最近一次加载使用的缓存,用于滚动时更新优先级
+    private BaseRgbBitmapCache bitmapCache;
+    //加载优先级,UI线程计算,加载线程读取
+    private volatile long loadPriority = BaseRgbBitmapCache.PRIORITY_VISIBLE;
+
+    private final ViewTreeObserver.OnScrollChangedListener scrollChangedListener = new ViewTreeObserver.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged() {
+            updateLoadPriority(ViewportPriority.of(RefCountedImageView.this));
+        }
+    };
+
     //要加载的bitmap callback
     private WeakCallback weakCallback = new WeakCallback(this);
     //empty状态下的bitmap callback
@@ -101,6 +119,47 @@ public abstract class RefCountedImageView extends View implements RecycleHelper.
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getViewTreeObserver().addOnScrollChangedListener(this.scrollChangedListener);
+        updateLoadPriority(ViewportPriority.of(this));
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        getViewTreeObserver().removeOnScrollChangedListener(this.scrollChangedListener);
+        //已滚出列表,让出加载线程
+        updateLoadPriority(BaseRgbBitmapCache.PRIORITY_DETACHED);
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * 优先级变化且图片仍在加载时,通知缓存重新排队
+     *
+     * @param priority
+     */
+    private void updateLoadPriority(long priority) {
+        if (priority == this.loadPriority) {
+            return;
+        }
+        this.loadPriority = priority;
+        if (this.bitmapCache == null) {
+            return;
+        }
+        if (this.bitmapRequest != null && this.refCountedBitmapDrawable == null) {
+            this.bitmapCache.updatePriority(this.bitmapRequest);
+        }
+        if (this.emptyStateBitmapRequest != null && this.emptyStateRefCountedDrawable == null) {
+            this.bitmapCache.updatePriority(this.emptyStateBitmapRequest);
+        }
+    }
+
+    @Override
+    public long getLoadPriority(BaseRgbBitmapCache.BitmapRequest bitmapRequest) {
+        return this.loadPriority;
+    }
+
     @Override
     public void setAlpha(float alpha) {
         super.setAlpha(alpha);
@@ -108,6 +167,8 @@ public abstract class RefCountedImageView extends View implements RecycleHelper.
 
     @Override
     public void recycle() {
+        this.loadToken = cancel(this.loadToken);
+        this.emptyStateLoadToken = cancel(this.emptyStateLoadToken);
         setRefCountedBitmapDrawable(null);
         setRefCountedEmptyStateDrawable(null);
         this.bitmapRequest = null;
@@ -121,27 +182,45 @@ public abstract class RefCountedImageView extends View implements RecycleHelper.
      * @param emptyStateBitmapRequest
      */
     public void set(FixedSizeBitmapCache bitmapCache, BaseRgbBitmapCache.BitmapRequest bitmapRequest, BaseRgbBitmapCache.BitmapRequest emptyStateBitmapRequest) {
+        this.bitmapCache = bitmapCache;
+        //列表绑定时view可能尚未attach,此时按即将显示处理
+        this.loadPriority = isShown() ? ViewportPriority.of(this) : BaseRgbBitmapCache.PRIORITY_VISIBLE;
         //是否已设置过
         if (!isSameBitmapRequest(bitmapRequest)) {
             this.bitmapRequest = bitmapRequest;
+            this.loadToken = cancel(this.loadToken);
             if (this.bitmapRequest == null) {
                 setRefCountedBitmapDrawable(null);
-            } else if (!bitmapCache.loadBitmap(this.bitmapRequest, this.weakCallback)) {
+            } else if (!bitmapCache.loadBitmap(this.bitmapRequest, this.weakCallback, this.loadToken = new CancellationToken())) {
                 setRefCountedBitmapDrawable(null);
             }
         }
 
         if (!isSameEmptyStateBitmapRequest(emptyStateBitmapRequest)) {
             this.emptyStateBitmapRequest = emptyStateBitmapRequest;
+            this.emptyStateLoadToken = cancel(this.emptyStateLoadToken);
             if (this.emptyStateBitmapRequest == null) {
                 setRefCountedEmptyStateDrawable(null);
-            } else if (!bitmapCache.loadBitmap(this.emptyStateBitmapRequest, this.weakEmptyStateCallback)) {
+            } else if (!bitmapCache.loadBitmap(this.emptyStateBitmapRequest, this.weakEmptyStateCallback, this.emptyStateLoadToken = new CancellationToken())) {
                 setRefCountedEmptyStateDrawable(null);
             }
 
         }
     }
 
+    /**
+     * 取消已放弃的请求, 没有其它等待者时其加载和下载随之中止
+     *
+     * @param token
+     * @return null
+     */
+    private static CancellationToken cancel(CancellationToken token) {
+        if (token != null) {
+            token.cancel();
+        }
+        return null;
+    }
+
     public void setRefCountedBitmapDrawable(RefCountedBitmapDrawable refCountedBitmapDrawable) {
         if (this.refCountedBitmapDrawable != null) {
             this.refCountedBitmapDrawable.release();
@@ -229,7 +308,7 @@ public abstract class RefCountedImageView extends View implements RecycleHelper.
     /**
      * callback委托
      */
-    class WeakCallback extends BaseRgbBitmapCache.RunnableCallback<RefCountedBitmapDrawable> implements BaseRgbBitmapCache.Callback {
+    class WeakCallback extends BaseRgbBitmapCache.RunnableCallback<RefCountedBitmapDrawable> implements BaseRgbBitmapCache.Callback, BaseRgbBitmapCache.LoadPriority {
 
         private WeakReference<BaseRgbBitmapCache.Callback> callbackRef;
 
@@ -257,6 +336,12 @@ public abstract class RefCountedImageView extends View implements RecycleHelper.
             }
             return false;
         }
+
+        @Override
+        public long getLoadPriority(BaseRgbBitmapCache.BitmapRequest bitmapRequest) {
+            //empty状态的callback跟随view的优先级
+            return loadPriority;
+        }
     }
 
 }
@@ -0,0 +1,48 @@
+package com.ttwishing.library.base.widget;
+
+import android.view.View;
+
+import com.ttwishing.library.base.BaseRgbBitmapCache;
+
+/**
+ * 根据view与窗口可见区域的距离计算加载优先级, UI线程调用
+ *
+ * 1.与窗口有交集: PRIORITY_VISIBLE
+ * 2.在窗口之外: PRIORITY_OFFSCREEN, 每远离一个view的尺寸再减1
+ * 3.未显示(已detach或不可见): PRIORITY_DETACHED
+ */
+public final class ViewportPriority {
+
+    //只在UI线程使用
+    private static final int[] sLocation = new int[2];
+
+    private ViewportPriority() {
+    }
+
+    /**
+     * @param view
+     * @return
+     */
+    public static long of(View view) {
+        if (!view.isShown()) {
+            return BaseRgbBitmapCache.PRIORITY_DETACHED;
+        }
+        View root = view.getRootView();
+        view.getLocationInWindow(sLocation);
+        int left = sLocation[0];
+        int top = sLocation[1];
+        int right = left + view.getWidth();
+        int bottom = top + view.getHeight();
+
+        int width = root.getWidth();
+        int height = root.getHeight();
+        if (right > 0 && left < width && bottom > 0 && top < height) {
+            return BaseRgbBitmapCache.PRIORITY_VISIBLE;
+        }
+        //到窗口边缘的距离
+        int dx = right <= 0 ? -right : Math.max(0, left - width);
+        int dy = bottom <= 0 ? -bottom : Math.max(0, top - height);
+        int unit = Math.max(1, Math.max(view.getWidth(), view.getHeight()));
+        return BaseRgbBitmapCache.PRIORITY_OFFSCREEN - Math.max(dx, dy) / unit;
+    }
+}
@@ -16,8 +16,11 @@
 
 package com.ttwishing.library.disk;
 
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -29,7 +32,10 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -40,6 +46,7 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 /**
  * A cache that uses a bounded amount of space on a filesystem. Each cache
@@ -89,6 +96,13 @@ public final class DiskLruCache implements Closeable {
   static final String JOURNAL_FILE = "journal";
   static final String JOURNAL_FILE_TEMP = "journal.tmp";
   static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+  static final String SLAB_FILE = "slab";
+  static final String CHECKPOINT_FILE = "journal.ckpt";
+  static final String CHECKPOINT_FILE_TEMP = "journal.ckpt.tmp";
+  static final int CHECKPOINT_MAGIC = 0x444c4b32; // "DLK2"
+  /** Journal records appended after a checkpoint before the next one is written. */
+  static final int CHECKPOINT_RECORD_THRESHOLD = 1000;
+  static final String SHARD_DIRECTORY_PREFIX = "shard-";
   static final String MAGIC = "libcore.io.DiskLruCache";
   static final String VERSION_1 = "1";
   static final long ANY_SEQUENCE_NUMBER = -1;
@@ -100,8 +114,11 @@ public final class DiskLruCache implements Closeable {
   private static final String READ = "READ";
 
     /*
-     * This cache uses a journal file named "journal". A typical journal file
-     * looks like this:
+     * This cache uses a journal file named "journal". Journals are written in
+     * the binary format described in JournalWriter; the text format below is
+     * the original one. It is still read when an existing cache is opened,
+     * and the journal is then rewritten in the binary format. A typical text
+     * journal file looks like this:
      *     libcore.io.DiskLruCache
      *     1
      *     100
@@ -133,24 +150,74 @@ public final class DiskLruCache implements Closeable {
      *   o READ lines track accesses for LRU.
      *   o REMOVE lines track entries that have been deleted.
      *
+     * The binary format carries the same records. Keys are written once per
+     * journal file and referred to by a small integer id afterwards, and
+     * records are group-committed: DIRTY lines are no longer flushed before
+     * the dirty files are created, so opening the cache deletes every stray
+     * "*.tmp" file instead, and every value file no entry refers to.
+     *
+     * Opening a cache with a long journal means replaying every record, so the
+     * cache periodically writes a checkpoint named "journal.ckpt". It holds
+     * every entry in LRU order with fixed-width fields and the journal length
+     * it reflects, followed by a CRC32 of everything before it. Opening loads
+     * the checkpoint with a single read, discards it if the checksum does not
+     * match, and replays only the journal records after that offset. Rebuilding the
+     * journal deletes the checkpoint before the new journal is renamed into
+     * place, so a checkpoint never outlives the journal it indexes.
+     *
+     * A slab-backed cache (see openSlab) has exactly one value per entry and
+     * every value fits in a fixed-size slot of the "slab" file. Its CLEAN
+     * records carry the slot index after the lengths, and there are no
+     * per-entry files at all.
+     *
      * The journal file is appended to as cache operations occur. The journal may
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * A sharded cache (see open(File, int, int, long, int)) keeps no journal of
+     * its own. Each shard is a complete cache living in a "shard-N" child
+     * directory with its own journal, entries and a slice of the size budget.
      */
 
   private final File directory;
   private final File journalFile;
   private final File journalFileTmp;
   private final File journalFileBackup;
+  private final File checkpointFile;
+  private final File checkpointFileTmp;
   private final int appVersion;
   private long maxSize;
   private final int valueCount;
+  /** The slab slot size, or 0 if every value is stored in a file of its own. */
+  private final int slotSize;
+  private SlabFile slab;
   private long size = 0;
-  private Writer journalWriter;
+  private JournalWriter journalWriter;
+  /** The id the journal will assign to the next key it sees. */
+  private int nextJournalId = 0;
   private final LinkedHashMap<String, Entry> lruEntries =
       new LinkedHashMap<String, Entry>(0, 0.75f, true);
   private int redundantOpCount;
+  /** Journal records that the newest checkpoint does not cover. */
+  private int recordsSinceCheckpoint;
+  /**
+   * Both the cleanup executor and close() write checkpoints, the former
+   * outside the cache lock. Guards the temp file and the rename, and the
+   * generation fields below. Acquired after the cache lock, never before.
+   */
+  private final Object checkpointLock = new Object();
+  /** Incremented for every encoded checkpoint, under the cache lock. */
+  private long checkpointGeneration;
+  /** The generation of the checkpoint on disk; older ones are not written. */
+  private long writtenCheckpointGeneration;
+
+  /**
+   * Non-null when this instance only routes calls to independent sub-caches.
+   * Each shard has its own monitor, so operations on keys that hash to
+   * different shards never contend.
+   */
+  private final DiskLruCache[] shards;
 
   /**
    * To differentiate between old and current snapshots, each entry is given
@@ -164,6 +231,8 @@ public final class DiskLruCache implements Closeable {
       new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
   private final Callable<Void> cleanupCallable = new Callable<Void>() {
     public Void call() throws Exception {
+      byte[] checkpoint = null;
+      long generation = 0;
       synchronized (DiskLruCache.this) {
         if (journalWriter == null) {
           return null; // Closed.
@@ -173,19 +242,38 @@ public final class DiskLruCache implements Closeable {
           rebuildJournal();
           redundantOpCount = 0;
         }
+        if (recordsSinceCheckpoint >= CHECKPOINT_RECORD_THRESHOLD) {
+          checkpoint = encodeCheckpoint();
+          generation = checkpointGeneration;
+        }
+      }
+      // Written outside the cache lock; writeCheckpoint serializes with close()
+      // and drops this one if a newer checkpoint was written meanwhile.
+      if (checkpoint != null) {
+        writeCheckpoint(checkpoint, generation);
       }
       return null;
     }
   };
 
-  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+      int slotSize) {
+    this(directory, appVersion, valueCount, maxSize, slotSize, null);
+  }
+
+  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+      int slotSize, DiskLruCache[] shards) {
     this.directory = directory;
     this.appVersion = appVersion;
     this.journalFile = new File(directory, JOURNAL_FILE);
     this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
     this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+    this.checkpointFile = new File(directory, CHECKPOINT_FILE);
+    this.checkpointFileTmp = new File(directory, CHECKPOINT_FILE_TEMP);
     this.valueCount = valueCount;
     this.maxSize = maxSize;
+    this.slotSize = slotSize;
+    this.shards = shards;
   }
 
   /**
@@ -199,6 +287,11 @@ public final class DiskLruCache implements Closeable {
    */
   public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
       throws IOException {
+    return openCache(directory, appVersion, valueCount, maxSize, 0);
+  }
+
+  private static DiskLruCache openCache(File directory, int appVersion, int valueCount,
+      long maxSize, int slotSize) throws IOException {
     if (maxSize <= 0) {
       throw new IllegalArgumentException("maxSize <= 0");
     }
@@ -219,9 +312,10 @@ public final class DiskLruCache implements Closeable {
     }
 
     // Prefer to pick up where we left off.
-    DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+    DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, slotSize);
     if (cache.journalFile.exists()) {
       try {
+        cache.openSlab();
         cache.readJournal();
         cache.processJournal();
         return cache;
@@ -238,48 +332,480 @@ public final class DiskLruCache implements Closeable {
 
     // Create a new empty cache.
     directory.mkdirs();
-    cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+    cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, slotSize);
+    cache.openSlab();
     cache.rebuildJournal();
     return cache;
   }
 
-  private void readJournal() throws IOException {
-    StrictLineReader reader = new StrictLineReader(new FileInputStream(journalFile), Util.US_ASCII);
+  /**
+   * Opens a cache in {@code directory} that is split into {@code shardCount}
+   * independent sub-caches. Keys are assigned to a shard by hash; every shard
+   * keeps its own journal, entries and {@code maxSize / shardCount} bytes of
+   * the budget. Eviction is therefore per shard and only approximately LRU
+   * across the whole cache.
+   *
+   * @param shardCount the number of sub-caches. A count of 1 opens a plain,
+   * unsharded cache.
+   * @throws IOException if reading or writing the cache directory fails
+   */
+  public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+      int shardCount) throws IOException {
+    return openSharded(directory, appVersion, valueCount, maxSize, shardCount, 0);
+  }
+
+  /**
+   * Opens a cache whose entries hold a single value of at most
+   * {@code slotSize} bytes, such as raw pixel buffers of a fixed size. All
+   * values share one preallocated "slab" file split into slots instead of
+   * using a file per entry, and are read and written with positional I/O.
+   * Snapshots of this cache have no {@linkplain Snapshot#getInputFile input
+   * files} and editors no {@linkplain Editor#newOutputFile output files}.
+   *
+   * @param slotSize the maximum length of a value. Must be positive.
+   * @param shardCount the number of sub-caches, each with its own slab file.
+   * @throws IOException if reading or writing the cache directory fails
+   */
+  public static DiskLruCache openSlab(File directory, int appVersion, int slotSize, long maxSize,
+      int shardCount) throws IOException {
+    if (slotSize <= 0) {
+      throw new IllegalArgumentException("slotSize <= 0");
+    }
+    return openSharded(directory, appVersion, 1, maxSize, shardCount, slotSize);
+  }
+
+  private static DiskLruCache openSharded(File directory, int appVersion, int valueCount,
+      long maxSize, int shardCount, int slotSize) throws IOException {
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("shardCount <= 0");
+    }
+    if (shardCount == 1) {
+      return openCache(directory, appVersion, valueCount, maxSize, slotSize);
+    }
+    if (maxSize < shardCount) {
+      throw new IllegalArgumentException("maxSize < shardCount");
+    }
+    if (valueCount <= 0) {
+      throw new IllegalArgumentException("valueCount <= 0");
+    }
+
+    // An unsharded cache used to live here; its files would never be evicted.
+    if (new File(directory, JOURNAL_FILE).exists()
+        || new File(directory, JOURNAL_FILE_BACKUP).exists()) {
+      openCache(directory, appVersion, valueCount, maxSize, slotSize).delete();
+    }
+
+    // Shards left over from a larger shard count would never be read or evicted.
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory() && file.getName().startsWith(SHARD_DIRECTORY_PREFIX)
+            && !isShardDirectory(file.getName(), shardCount)) {
+          Util.deleteContents(file);
+          file.delete();
+        }
+      }
+    }
+
+    DiskLruCache[] shards = new DiskLruCache[shardCount];
     try {
-      String magic = reader.readLine();
-      String version = reader.readLine();
-      String appVersionString = reader.readLine();
-      String valueCountString = reader.readLine();
-      String blank = reader.readLine();
-      if (!MAGIC.equals(magic)
-          || !VERSION_1.equals(version)
-          || !Integer.toString(appVersion).equals(appVersionString)
-          || !Integer.toString(valueCount).equals(valueCountString)
-          || !"".equals(blank)) {
-        throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
-            + valueCountString + ", " + blank + "]");
-      }
-
-      int lineCount = 0;
-      while (true) {
-        try {
-          readJournalLine(reader.readLine());
-          lineCount++;
-        } catch (EOFException endOfJournal) {
-          break;
+      for (int i = 0; i < shardCount; i++) {
+        shards[i] = openCache(new File(directory, SHARD_DIRECTORY_PREFIX + i), appVersion,
+            valueCount, shardMaxSize(maxSize, shardCount, i), slotSize);
+      }
+    } catch (IOException e) {
+      for (DiskLruCache shard : shards) {
+        if (shard != null) {
+          Util.closeQuietly(shard);
         }
       }
-      redundantOpCount = lineCount - lruEntries.size();
+      throw e;
+    }
+    return new DiskLruCache(directory, appVersion, valueCount, maxSize, slotSize, shards);
+  }
 
-      // If we ended on a truncated line, rebuild the journal before appending to it.
-      if (reader.hasUnterminatedLine()) {
-        rebuildJournal();
+  private static boolean isShardDirectory(String name, int shardCount) {
+    try {
+      int index = Integer.parseInt(name.substring(SHARD_DIRECTORY_PREFIX.length()));
+      return index >= 0 && index < shardCount;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /** Splits {@code maxSize} so the shard budgets add up to exactly {@code maxSize}. */
+  private static long shardMaxSize(long maxSize, int shardCount, int index) {
+    long shardMaxSize = maxSize / shardCount;
+    if (index < maxSize % shardCount) {
+      shardMaxSize++;
+    }
+    return shardMaxSize;
+  }
+
+  private DiskLruCache shardFor(String key) {
+    int hash = key.hashCode();
+    // Spread the bits; string hashes of hex digests differ mostly in the low bits.
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return shards[(hash & 0x7fffffff) % shards.length];
+  }
+
+  /** Returns the number of independent sub-caches; 1 for an unsharded cache. */
+  public int getShardCount() {
+    return shards != null ? shards.length : 1;
+  }
+
+  private void openSlab() throws IOException {
+    if (slotSize > 0 && slab == null) {
+      directory.mkdirs();
+      // Leave room for values being edited while the cache is full.
+      int slots = (int) Math.min(Integer.MAX_VALUE - 1, maxSize / slotSize) + 1;
+      slab = new SlabFile(new File(directory, SLAB_FILE), slotSize, slots);
+    }
+  }
+
+  private int headerMagic() {
+    return slab != null ? JournalWriter.SLAB_MAGIC : JournalWriter.MAGIC;
+  }
+
+  /** The last header int: the slot size of a slab-backed cache, else the value count. */
+  private int headerValue() {
+    return slab != null ? slotSize : valueCount;
+  }
+
+  /** Returns a free slot, reusing released slots only once the journal is durable. */
+  private int allocateSlot() throws IOException {
+    int slot = slab.allocate();
+    if (slot == -1) {
+      syncJournal();
+      slab.reclaimReleased();
+      slot = slab.allocate();
+    }
+    return slot != -1 ? slot : slab.grow();
+  }
+
+  private void readJournal() throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(journalFile), 8192);
+    try {
+      in.mark(4);
+      int magic;
+      try {
+        magic = JournalWriter.readInt(in);
+      } catch (EOFException e) {
+        throw new IOException("journal is empty");
+      }
+      if (magic == headerMagic()) {
+        readBinaryHeader(in);
+        ArrayList<String> keys = new ArrayList<String>();
+        long checkpointOffset = readCheckpoint(keys);
+        if (checkpointOffset > JournalWriter.HEADER_LENGTH) {
+          skipFully(in, checkpointOffset - JournalWriter.HEADER_LENGTH);
+        }
+        if (readBinaryJournal(in, keys)) {
+          journalWriter = new JournalWriter(journalFile);
+        } else {
+          // If we ended on a truncated record, rebuild the journal before appending to it.
+          rebuildJournal();
+        }
+      } else if (magic == JournalWriter.MAGIC || magic == JournalWriter.SLAB_MAGIC
+          || slab != null) {
+        throw new IOException("journal was written for a different storage mode");
       } else {
-        journalWriter = new BufferedWriter(new OutputStreamWriter(
-            new FileOutputStream(journalFile, true), Util.US_ASCII));
+        in.reset();
+        readTextJournal(in);
+        // Upgrade to the binary format before appending to it.
+        rebuildJournal();
+      }
+    } finally {
+      Util.closeQuietly(in);
+    }
+  }
+
+  private void readBinaryHeader(InputStream in) throws IOException {
+    int appVersionValue;
+    int valueCountValue;
+    try {
+      appVersionValue = JournalWriter.readInt(in);
+      valueCountValue = JournalWriter.readInt(in);
+    } catch (EOFException e) {
+      throw new IOException("truncated journal header");
+    }
+    if (appVersionValue != appVersion || valueCountValue != headerValue()) {
+      throw new IOException("unexpected journal header: [" + appVersionValue + ", "
+          + valueCountValue + "]");
+    }
+  }
+
+  /**
+   * Reads binary journal records up to the end of {@code in}.
+   *
+   * @param keys the keys by id defined before the first record to read.
+   * @return false if the journal ends with a truncated record.
+   */
+  private boolean readBinaryJournal(InputStream in, ArrayList<String> keys) throws IOException {
+    int recordCount = 0;
+    while (true) {
+      int opcode = in.read();
+      if (opcode == -1) {
+        break;
+      }
+      try {
+        readJournalRecord(opcode, in, keys);
+      } catch (EOFException truncated) {
+        return false;
+      }
+      recordCount++;
+    }
+    // Checkpointed records were counted when the checkpoint was written.
+    redundantOpCount = Math.max(0, redundantOpCount + recordCount - lruEntries.size());
+    recordsSinceCheckpoint = recordCount;
+    nextJournalId = keys.size();
+    return true;
+  }
+
+  private void readJournalRecord(int opcode, InputStream in, ArrayList<String> keys)
+      throws IOException {
+    int op = opcode & JournalWriter.OP_MASK;
+    long id = JournalWriter.readVarint(in);
+    final String key;
+    if ((opcode & JournalWriter.FLAG_NEW_KEY) != 0) {
+      if (id != keys.size()) {
+        throw new IOException("unexpected journal key id: " + id);
+      }
+      key = JournalWriter.readKey(in);
+      keys.add(key);
+    } else if (id < keys.size() && keys.get((int) id) != null) {
+      key = keys.get((int) id);
+    } else {
+      throw new IOException("unexpected journal key id: " + id);
+    }
+
+    if (op == JournalWriter.OP_REMOVE) {
+      lruEntries.remove(key);
+      return;
+    }
+
+    Entry entry = lruEntries.get(key);
+    if (entry == null) {
+      entry = new Entry(key);
+      lruEntries.put(key, entry);
+    }
+    entry.journalId = (int) id;
+
+    if (op == JournalWriter.OP_CLEAN) {
+      for (int i = 0; i < valueCount; i++) {
+        entry.lengths[i] = JournalWriter.readVarint(in);
+      }
+      if (slab != null) {
+        entry.slot = (int) JournalWriter.readVarint(in);
+      }
+      entry.readable = true;
+      entry.currentEditor = null;
+    } else if (op == JournalWriter.OP_DIRTY) {
+      entry.currentEditor = new Editor(entry);
+    } else if (op == JournalWriter.OP_READ) {
+      // This work was already done by calling lruEntries.get().
+    } else {
+      throw new IOException("unexpected journal opcode: " + opcode);
+    }
+  }
+
+  /**
+   * Loads the entries recorded in the checkpoint file, if there is a usable
+   * one, and fills {@code keys} with their journal ids.
+   *
+   * @return the journal offset the checkpoint reflects, or -1 if the whole
+   * journal must be replayed.
+   */
+  private long readCheckpoint(ArrayList<String> keys) throws IOException {
+    if (!checkpointFile.exists()) {
+      return -1;
+    }
+    RandomAccessFile file = new RandomAccessFile(checkpointFile, "r");
+    try {
+      long fileLength = file.length();
+      if (fileLength < 8 || fileLength > Integer.MAX_VALUE) {
+        throw new IOException("unexpected checkpoint length");
+      }
+      byte[] bytes = new byte[(int) fileLength];
+      file.readFully(bytes);
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, bytes.length - 4);
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      if (buffer.getInt(bytes.length - 4) != (int) crc.getValue()) {
+        throw new IOException("checkpoint checksum mismatch");
+      }
+      if (buffer.getInt() != CHECKPOINT_MAGIC
+          || buffer.getInt() != appVersion
+          || buffer.getInt() != valueCount) {
+        throw new IOException("unexpected checkpoint header");
+      }
+      long journalOffset = buffer.getLong();
+      int journalIdCount = buffer.getInt();
+      long sequenceNumber = buffer.getLong();
+      int redundantOps = buffer.getInt();
+      int entryCount = buffer.getInt();
+      if (journalOffset < JournalWriter.HEADER_LENGTH || journalOffset > journalFile.length()
+          || journalIdCount < entryCount || entryCount < 0) {
+        throw new IOException("checkpoint does not match journal");
+      }
+
+      for (int i = 0; i < journalIdCount; i++) {
+        keys.add(null);
       }
+      byte[] keyBytes = new byte[120];
+      for (int i = 0; i < entryCount; i++) {
+        int journalId = buffer.getInt();
+        boolean dirty = buffer.get() != 0;
+        long entrySequenceNumber = buffer.getLong();
+        long[] lengths = new long[valueCount];
+        for (int t = 0; t < valueCount; t++) {
+          lengths[t] = buffer.getLong();
+        }
+        int slot = slab != null ? buffer.getInt() : -1;
+        int keyLength = buffer.get() & 0xff;
+        if (journalId < 0 || journalId >= journalIdCount || keyLength == 0 || keyLength > 120) {
+          throw new IOException("unexpected checkpoint entry");
+        }
+        buffer.get(keyBytes, 0, keyLength);
+        String key = new String(keyBytes, 0, keyLength, Util.US_ASCII);
+
+        Entry entry = new Entry(key);
+        entry.journalId = journalId;
+        entry.sequenceNumber = entrySequenceNumber;
+        entry.slot = slot;
+        System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+        if (dirty) {
+          entry.currentEditor = new Editor(entry);
+        } else {
+          entry.readable = true;
+        }
+        lruEntries.put(key, entry);
+        keys.set(journalId, key);
+      }
+      if (buffer.getInt() != CHECKPOINT_MAGIC) {
+        throw new IOException("truncated checkpoint");
+      }
+
+      nextSequenceNumber = sequenceNumber;
+      redundantOpCount = redundantOps;
+      return journalOffset;
+    } catch (IOException e) {
+      return discardCheckpoint(keys);
+    } catch (BufferUnderflowException e) {
+      return discardCheckpoint(keys);
     } finally {
-      Util.closeQuietly(reader);
+      Util.closeQuietly(file);
+    }
+  }
+
+  private long discardCheckpoint(ArrayList<String> keys) {
+    lruEntries.clear();
+    keys.clear();
+    checkpointFile.delete();
+    return -1;
+  }
+
+  /** Encodes every entry in LRU order. Must be called while holding the cache lock. */
+  private byte[] encodeCheckpoint() throws IOException {
+    // Make the journal length cover every record reflected by the entries.
+    syncJournal();
+    int entrySize = 4 + 1 + 8 + 8 * valueCount + 4 + 1 + 32;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(48 + lruEntries.size() * entrySize);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(CHECKPOINT_MAGIC);
+    out.writeInt(appVersion);
+    out.writeInt(valueCount);
+    out.writeLong(journalWriter.length());
+    out.writeInt(nextJournalId);
+    out.writeLong(nextSequenceNumber);
+    out.writeInt(redundantOpCount);
+    out.writeInt(lruEntries.size());
+    for (Entry entry : lruEntries.values()) {
+      out.writeInt(entry.journalId);
+      out.writeByte(entry.currentEditor != null ? 1 : 0);
+      out.writeLong(entry.sequenceNumber);
+      for (long length : entry.lengths) {
+        out.writeLong(length);
+      }
+      if (slab != null) {
+        out.writeInt(entry.slot);
+      }
+      out.writeByte(entry.key.length());
+      out.writeBytes(entry.key);
+    }
+    out.writeInt(CHECKPOINT_MAGIC);
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    out.writeInt((int) crc.getValue());
+    recordsSinceCheckpoint = 0;
+    checkpointGeneration++;
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Writes and renames an encoded checkpoint into place unless a newer one
+   * has already been written or the journal it indexes has been replaced.
+   *
+   * @param generation the checkpointGeneration right after it was encoded.
+   */
+  private void writeCheckpoint(byte[] checkpoint, long generation) throws IOException {
+    synchronized (checkpointLock) {
+      if (generation <= writtenCheckpointGeneration) {
+        return;
+      }
+      FileOutputStream out = new FileOutputStream(checkpointFileTmp);
+      try {
+        out.write(checkpoint);
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      renameTo(checkpointFileTmp, checkpointFile, true);
+      writtenCheckpointGeneration = generation;
+    }
+  }
+
+  /** Deletes the checkpoint and invalidates every checkpoint encoded so far. */
+  private void deleteCheckpoint() throws IOException {
+    synchronized (checkpointLock) {
+      writtenCheckpointGeneration = ++checkpointGeneration;
+      deleteIfExists(checkpointFile);
+    }
+  }
+
+  private static void skipFully(InputStream in, long byteCount) throws IOException {
+    while (byteCount > 0) {
+      long skipped = in.skip(byteCount);
+      if (skipped <= 0) {
+        throw new EOFException();
+      }
+      byteCount -= skipped;
+    }
+  }
+
+  private void readTextJournal(InputStream in) throws IOException {
+    StrictLineReader reader = new StrictLineReader(in, Util.US_ASCII);
+    String magic = reader.readLine();
+    String version = reader.readLine();
+    String appVersionString = reader.readLine();
+    String valueCountString = reader.readLine();
+    String blank = reader.readLine();
+    if (!MAGIC.equals(magic)
+        || !VERSION_1.equals(version)
+        || !Integer.toString(appVersion).equals(appVersionString)
+        || !Integer.toString(valueCount).equals(valueCountString)
+        || !"".equals(blank)) {
+      throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
+          + valueCountString + ", " + blank + "]");
+    }
+
+    while (true) {
+      try {
+        readJournalLine(reader.readLine());
+      } catch (EOFException endOfJournal) {
+        break;
+      }
     }
   }
 
@@ -328,12 +854,30 @@ public final class DiskLruCache implements Closeable {
    */
   private void processJournal() throws IOException {
     deleteIfExists(journalFileTmp);
+    deleteIfExists(checkpointFileTmp);
+    // Dirty files may exist without a DIRTY record because records are
+    // group-committed. No edit survives a restart, so all of them are garbage.
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isFile() && file.getName().endsWith(".tmp")) {
+          deleteIfExists(file);
+        }
+      }
+    }
     for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
       Entry entry = i.next();
       if (entry.currentEditor == null) {
+        if (slab != null && !slab.claim(entry.slot)) {
+          i.remove(); // The slot is out of range or claimed by another entry.
+          continue;
+        }
         for (int t = 0; t < valueCount; t++) {
           size += entry.lengths[t];
         }
+      } else if (slab != null) {
+        entry.currentEditor = null;
+        i.remove(); // Its slots are never claimed, so they stay free.
       } else {
         entry.currentEditor = null;
         for (int t = 0; t < valueCount; t++) {
@@ -343,6 +887,39 @@ public final class DiskLruCache implements Closeable {
         i.remove();
       }
     }
+    deleteOrphanedCleanFiles(files);
+  }
+
+  /**
+   * Deletes value files that no entry refers to. Because DIRTY records are
+   * group-committed, a crash after an edit's dirty files were renamed but
+   * before its CLEAN record reached the disk leaves "key.N" files that the
+   * journal knows nothing about; they would never be counted or evicted.
+   */
+  private void deleteOrphanedCleanFiles(File[] files) throws IOException {
+    if (slab != null || files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      int dot = name.lastIndexOf('.');
+      if (!file.isFile() || dot <= 0 || dot == name.length() - 1) {
+        continue;
+      }
+      String key = name.substring(0, dot);
+      int index;
+      try {
+        index = Integer.parseInt(name.substring(dot + 1));
+      } catch (NumberFormatException e) {
+        continue; // Not a value file, e.g. "journal.bkp".
+      }
+      if (index < 0 || index >= valueCount || !LEGAL_KEY_PATTERN.matcher(key).matches()) {
+        continue;
+      }
+      if (!lruEntries.containsKey(key)) {
+        deleteIfExists(file);
+      }
+    }
   }
 
   /**
@@ -351,41 +928,77 @@ public final class DiskLruCache implements Closeable {
    */
   private synchronized void rebuildJournal() throws IOException {
     if (journalWriter != null) {
-      journalWriter.close();
+      try {
+        journalWriter.close();
+      } catch (IOException ignored) {
+        // Pending records are redundant; the new journal is written from lruEntries.
+      }
     }
 
-    Writer writer = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(journalFileTmp), Util.US_ASCII));
+    nextJournalId = 0;
+    FileOutputStream fileOut = new FileOutputStream(journalFileTmp);
+    OutputStream out = new BufferedOutputStream(fileOut, 8192);
     try {
-      writer.write(MAGIC);
-      writer.write("\n");
-      writer.write(VERSION_1);
-      writer.write("\n");
-      writer.write(Integer.toString(appVersion));
-      writer.write("\n");
-      writer.write(Integer.toString(valueCount));
-      writer.write("\n");
-      writer.write("\n");
-
+      JournalWriter.writeHeader(out, headerMagic(), appVersion, headerValue());
       for (Entry entry : lruEntries.values()) {
+        entry.journalId = nextJournalId++;
         if (entry.currentEditor != null) {
-          writer.write(DIRTY + ' ' + entry.key + '\n');
+          JournalWriter.writeRecord(out, JournalWriter.OP_DIRTY, entry.journalId, entry.key, null,
+              -1);
         } else {
-          writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+          JournalWriter.writeRecord(out, JournalWriter.OP_CLEAN, entry.journalId, entry.key,
+              entry.lengths, entry.slot);
         }
       }
+      out.flush();
+      fileOut.getFD().sync();
     } finally {
-      writer.close();
+      out.close();
     }
 
+    // The checkpoint indexes offsets in the journal being replaced.
+    deleteCheckpoint();
     if (journalFile.exists()) {
       renameTo(journalFile, journalFileBackup, true);
     }
     renameTo(journalFileTmp, journalFile, false);
     journalFileBackup.delete();
 
-    journalWriter = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+    journalWriter = new JournalWriter(journalFile);
+    recordsSinceCheckpoint = lruEntries.size();
+  }
+
+  /** Queues a journal record for {@code entry}, defining its key id if necessary. */
+  private void journal(int op, Entry entry) throws IOException {
+    String newKey = null;
+    if (entry.journalId < 0) {
+      entry.journalId = nextJournalId++;
+      newKey = entry.key;
+    }
+    try {
+      journalWriter.write(op, entry.journalId, newKey,
+          op == JournalWriter.OP_CLEAN ? entry.lengths : null, entry.slot);
+    } catch (IOException e) {
+      // An earlier batch failed to commit. Callers update lruEntries before
+      // journaling, so the rebuilt journal already reflects this record.
+      rebuildJournal();
+      return;
+    }
+    if (++recordsSinceCheckpoint == CHECKPOINT_RECORD_THRESHOLD) {
+      executorService.submit(cleanupCallable);
+    }
+  }
+
+  /**
+   * Writes and syncs every queued journal record. If a batch failed to commit,
+   * the journal is rebuilt from memory instead, which is just as durable.
+   */
+  private void syncJournal() throws IOException {
+    try {
+      journalWriter.flush();
+    } catch (IOException e) {
+      rebuildJournal();
+    }
   }
 
   private static void deleteIfExists(File file) throws IOException {
@@ -408,7 +1021,14 @@ public final class DiskLruCache implements Closeable {
    * exist is not currently readable. If a value is returned, it is moved to
    * the head of the LRU queue.
    */
-  public synchronized Snapshot get(String key) throws IOException {
+  public Snapshot get(String key) throws IOException {
+    if (shards != null) {
+      return shardFor(key).get(key);
+    }
+    return getFromJournal(key);
+  }
+
+  private synchronized Snapshot getFromJournal(String key) throws IOException {
     checkNotClosed();
     validateKey(key);
     Entry entry = lruEntries.get(key);
@@ -426,7 +1046,11 @@ public final class DiskLruCache implements Closeable {
     InputStream[] ins = new InputStream[valueCount];
     //TODO
     File[] files = new File[valueCount];
-    try {
+    if (slab != null) {
+      // The slot stays allocated until the snapshot is closed.
+      slab.pin(entry.slot);
+      ins[0] = slab.newInputStream(entry.slot, entry.lengths[0]);
+    } else try {
       for (int i = 0; i < valueCount; i++) {
         files[i] = entry.getCleanFile(i);
         ins[i] = new FileInputStream(entry.getCleanFile(i));
@@ -444,12 +1068,13 @@ public final class DiskLruCache implements Closeable {
     }
 
     redundantOpCount++;
-    journalWriter.append(READ + ' ' + key + '\n');
+    journal(JournalWriter.OP_READ, entry);
     if (journalRebuildRequired()) {
       executorService.submit(cleanupCallable);
     }
 
-    return new Snapshot(key, entry.sequenceNumber, ins, files, entry.lengths);
+    return new Snapshot(key, entry.sequenceNumber, ins, files, entry.lengths,
+        slab != null ? entry.slot : -1);
   }
 
   /**
@@ -457,6 +1082,9 @@ public final class DiskLruCache implements Closeable {
    * edit is in progress.
    */
   public Editor edit(String key) throws IOException {
+    if (shards != null) {
+      return shardFor(key).edit(key);
+    }
     return edit(key, ANY_SEQUENCE_NUMBER);
   }
 
@@ -478,9 +1106,9 @@ public final class DiskLruCache implements Closeable {
     Editor editor = new Editor(entry);
     entry.currentEditor = editor;
 
-    // Flush the journal before creating files to prevent file leaks.
-    journalWriter.write(DIRTY + ' ' + key + '\n');
-    journalWriter.flush();
+    // Stray dirty files are swept when the cache is opened, so this record
+    // can ride along with the next group commit.
+    journal(JournalWriter.OP_DIRTY, entry);
     return editor;
   }
 
@@ -503,6 +1131,12 @@ public final class DiskLruCache implements Closeable {
    */
   public synchronized void setMaxSize(long maxSize) {
     this.maxSize = maxSize;
+    if (shards != null) {
+      for (int i = 0; i < shards.length; i++) {
+        shards[i].setMaxSize(shardMaxSize(maxSize, shards.length, i));
+      }
+      return;
+    }
     executorService.submit(cleanupCallable);
   }
 
@@ -511,8 +1145,17 @@ public final class DiskLruCache implements Closeable {
    * this cache. This may be greater than the max size if a background
    * deletion is pending.
    */
-  public synchronized long size() {
-    return size;
+  public long size() {
+    if (shards != null) {
+      long total = 0;
+      for (DiskLruCache shard : shards) {
+        total += shard.size();
+      }
+      return total;
+    }
+    synchronized (this) {
+      return size;
+    }
   }
 
   private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
@@ -528,14 +1171,26 @@ public final class DiskLruCache implements Closeable {
           editor.abort();
           throw new IllegalStateException("Newly created entry didn't create value for index " + i);
         }
-        if (!entry.getDirtyFile(i).exists()) {
+        if (slab != null ? editor.dirtySlot == -1 : !entry.getDirtyFile(i).exists()) {
           editor.abort();
           return;
         }
       }
     }
 
-    for (int i = 0; i < valueCount; i++) {
+    if (slab != null) {
+      if (success && editor.dirtySlot != -1) {
+        if (entry.slot != -1) {
+          slab.release(entry.slot);
+        }
+        entry.slot = editor.dirtySlot;
+        long newLength = editor.dirtyOutputStream.length();
+        size = size - entry.lengths[0] + newLength;
+        entry.lengths[0] = newLength;
+      } else if (editor.dirtySlot != -1) {
+        slab.release(editor.dirtySlot);
+      }
+    } else for (int i = 0; i < valueCount; i++) {
       File dirty = entry.getDirtyFile(i);
       if (success) {
         if (dirty.exists()) {
@@ -555,15 +1210,14 @@ public final class DiskLruCache implements Closeable {
     entry.currentEditor = null;
     if (entry.readable | success) {
       entry.readable = true;
-      journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+      journal(JournalWriter.OP_CLEAN, entry);
       if (success) {
         entry.sequenceNumber = nextSequenceNumber++;
       }
     } else {
       lruEntries.remove(entry.key);
-      journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+      journal(JournalWriter.OP_REMOVE, entry);
     }
-    journalWriter.flush();
 
     if (size > maxSize || journalRebuildRequired()) {
       executorService.submit(cleanupCallable);
@@ -586,7 +1240,14 @@ public final class DiskLruCache implements Closeable {
    *
    * @return true if an entry was removed.
    */
-  public synchronized boolean remove(String key) throws IOException {
+  public boolean remove(String key) throws IOException {
+    if (shards != null) {
+      return shardFor(key).remove(key);
+    }
+    return removeFromJournal(key);
+  }
+
+  private synchronized boolean removeFromJournal(String key) throws IOException {
     checkNotClosed();
     validateKey(key);
     Entry entry = lruEntries.get(key);
@@ -594,9 +1255,13 @@ public final class DiskLruCache implements Closeable {
       return false;
     }
 
+    if (slab != null && entry.slot != -1) {
+      slab.release(entry.slot);
+      entry.slot = -1;
+    }
     for (int i = 0; i < valueCount; i++) {
       File file = entry.getCleanFile(i);
-      if (file.exists() && !file.delete()) {
+      if (slab == null && file.exists() && !file.delete()) {
         throw new IOException("failed to delete " + file);
       }
       size -= entry.lengths[i];
@@ -604,8 +1269,8 @@ public final class DiskLruCache implements Closeable {
     }
 
     redundantOpCount++;
-    journalWriter.append(REMOVE + ' ' + key + '\n');
     lruEntries.remove(key);
+    journal(JournalWriter.OP_REMOVE, entry);
 
     if (journalRebuildRequired()) {
       executorService.submit(cleanupCallable);
@@ -615,8 +1280,13 @@ public final class DiskLruCache implements Closeable {
   }
 
   /** Returns true if this cache has been closed. */
-  public synchronized boolean isClosed() {
-    return journalWriter == null;
+  public boolean isClosed() {
+    if (shards != null) {
+      return shards[0].isClosed();
+    }
+    synchronized (this) {
+      return journalWriter == null;
+    }
   }
 
   private void checkNotClosed() {
@@ -626,15 +1296,44 @@ public final class DiskLruCache implements Closeable {
   }
 
   /** Force buffered operations to the filesystem. */
-  public synchronized void flush() throws IOException {
+  public void flush() throws IOException {
+    if (shards != null) {
+      for (DiskLruCache shard : shards) {
+        shard.flush();
+      }
+      return;
+    }
+    flushJournal();
+  }
+
+  private synchronized void flushJournal() throws IOException {
     checkNotClosed();
     trimToSize();
-    journalWriter.flush();
+    syncJournal();
   }
 
   /** Closes this cache. Stored values will remain on the filesystem. */
-  public synchronized void close() throws IOException {
+  public void close() throws IOException {
+    if (shards != null) {
+      IOException failure = null;
+      for (DiskLruCache shard : shards) {
+        try {
+          shard.close();
+        } catch (IOException e) {
+          failure = e;
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return;
+    }
+    closeJournal();
+  }
+
+  private synchronized void closeJournal() throws IOException {
     if (journalWriter == null) {
+      closeSlab();
       return; // Already closed.
     }
     for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
@@ -643,14 +1342,35 @@ public final class DiskLruCache implements Closeable {
       }
     }
     trimToSize();
+    syncJournal();
+    if (recordsSinceCheckpoint > 0) {
+      // Leave a fresh checkpoint behind so the next open replays nothing.
+      try {
+        writeCheckpoint(encodeCheckpoint(), checkpointGeneration);
+      } catch (IOException e) {
+        try {
+          deleteCheckpoint();
+        } catch (IOException ignored) {
+          // A previous checkpoint still matches the journal up to its offset.
+        }
+      }
+    }
     journalWriter.close();
     journalWriter = null;
+    closeSlab();
+  }
+
+  private void closeSlab() throws IOException {
+    if (slab != null) {
+      slab.close();
+      slab = null;
+    }
   }
 
   private void trimToSize() throws IOException {
     while (size > maxSize) {
       Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-      remove(toEvict.getKey());
+      removeFromJournal(toEvict.getKey());
     }
   }
 
@@ -685,15 +1405,20 @@ public final class DiskLruCache implements Closeable {
 
     //TODO
     private final File[] inFiles;
+    /** The pinned slab slot, or -1 if values are files. */
+    private int slot;
 
-    private Snapshot(String key, long sequenceNumber, InputStream[] ins, File[] files, long[] lengths) {
+    private Snapshot(String key, long sequenceNumber, InputStream[] ins, File[] files, long[] lengths,
+        int slot) {
       this.key = key;
       this.sequenceNumber = sequenceNumber;
       this.ins = ins;
       this.lengths = lengths;
       this.inFiles = files;
+      this.slot = slot;
     }
 
+    /** Returns the file with the value for {@code index}, or null in a slab-backed cache. */
     //TODO
     public File getInputFile(int index) {
       return this.inFiles[index];
@@ -718,6 +1443,29 @@ public final class DiskLruCache implements Closeable {
       return inputStreamToString(getInputStream(index));
     }
 
+    /**
+     * Reads the whole value for {@code index} into {@code destination} at its
+     * position with positional channel I/O, and advances the position by the
+     * value's length. A reusable direct buffer avoids both a heap copy and a
+     * memory mapping per read; mappings of small values cost more than the
+     * copy they save and stay alive until the buffer is collected.
+     *
+     * @throws IllegalArgumentException if {@code destination} is too small.
+     */
+    public void read(int index, ByteBuffer destination) throws IOException {
+      SlabFile slab = DiskLruCache.this.slab;
+      if (slot != -1 && slab != null) {
+        slab.read(slot, destination, lengths[index]);
+        return;
+      }
+      if (ins[index] instanceof FileInputStream) {
+        SlabFile.readFully(((FileInputStream) ins[index]).getChannel(), destination, 0,
+            lengths[index]);
+        return;
+      }
+      throw new IllegalStateException("snapshot is closed");
+    }
+
     /** Returns the byte length of the value for {@code index}. */
     public long getLength(int index) {
       return lengths[index];
@@ -727,6 +1475,15 @@ public final class DiskLruCache implements Closeable {
       for (InputStream in : ins) {
         Util.closeQuietly(in);
       }
+      synchronized (this) {
+        if (slot != -1) {
+          SlabFile slab = DiskLruCache.this.slab;
+          if (slab != null) {
+            slab.unpin(slot);
+          }
+          slot = -1;
+        }
+      }
     }
   }
 
@@ -743,6 +1500,9 @@ public final class DiskLruCache implements Closeable {
     private final boolean[] written;
     private boolean hasErrors;
     private boolean committed;
+    /** The slab slot this edit writes to, or -1. */
+    private int dirtySlot = -1;
+    private SlabFile.SlotOutputStream dirtyOutputStream;
 
     private Editor(Entry entry) {
       this.entry = entry;
@@ -761,6 +1521,9 @@ public final class DiskLruCache implements Closeable {
         if (!entry.readable) {
           return null;
         }
+        if (slab != null) {
+          return slab.newInputStream(entry.slot, entry.lengths[index]);
+        }
         try {
           return new FileInputStream(entry.getCleanFile(index));
         } catch (FileNotFoundException e) {
@@ -798,6 +1561,13 @@ public final class DiskLruCache implements Closeable {
         if (!entry.readable) {
           written[index] = true;
         }
+        if (slab != null) {
+          if (dirtySlot == -1) {
+            dirtySlot = allocateSlot();
+          }
+          dirtyOutputStream = slab.newOutputStream(dirtySlot);
+          return new FaultHidingOutputStream(dirtyOutputStream);
+        }
         File dirtyFile = entry.getDirtyFile(index);
         FileOutputStream outputStream;
         try {
@@ -830,6 +1600,9 @@ public final class DiskLruCache implements Closeable {
         if (entry.currentEditor != this) {
           throw new IllegalStateException();
         }
+        if (slab != null) {
+          throw new IllegalStateException("slab-backed values are not stored in files");
+        }
         if (!entry.readable) {
           written[index] = true;
         }
@@ -855,7 +1628,7 @@ public final class DiskLruCache implements Closeable {
     public void commit() throws IOException {
       if (hasErrors) {
         completeEdit(this, false);
-        remove(entry.key); // The previous entry is stale.
+        removeFromJournal(entry.key); // The previous entry is stale.
       } else {
         completeEdit(this, true);
       }
@@ -933,19 +1706,17 @@ public final class DiskLruCache implements Closeable {
     /** The sequence number of the most recently committed edit to this entry. */
     private long sequenceNumber;
 
+    /** The id naming this entry's key in the current journal file, or -1. */
+    private int journalId = -1;
+
+    /** The slab slot holding this entry's committed value, or -1. */
+    private int slot = -1;
+
     private Entry(String key) {
       this.key = key;
       this.lengths = new long[valueCount];
     }
 
-    public String getLengths() throws IOException {
-      StringBuilder result = new StringBuilder();
-      for (long size : lengths) {
-        result.append(' ').append(size);
-      }
-      return result.toString();
-    }
-
     /** Set lengths using decimal numbers like "10123". */
     private void setLengths(String[] strings) throws IOException {
       if (strings.length != valueCount) {
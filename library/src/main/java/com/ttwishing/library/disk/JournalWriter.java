@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ttwishing.library.disk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends binary records to a {@link DiskLruCache} journal with group commit.
+ * Records are encoded into an in-memory batch; a shared background thread
+ * writes and syncs the batch at most {@link #COMMIT_INTERVAL_MILLIS} after
+ * the first pending record, or as soon as {@link #MAX_BATCH_RECORDS} records
+ * are pending. {@link #flush} and {@link #close} commit synchronously.
+ *
+ * <p>A batch stays pending until it has been written and synced. If a commit
+ * fails the journal file may end in a torn record, so the failure is sticky:
+ * every later {@link #write}, {@link #flush} and {@link #close} throws it and
+ * the owner must rebuild the journal from its in-memory state.
+ *
+ * <p>A binary journal starts with a fixed header of three big-endian ints:
+ * {@link #MAGIC}, the application version and the value count. The journal of
+ * a slab-backed cache starts with {@link #SLAB_MAGIC}, the application version
+ * and the slot size instead. Each record that follows is:
+ * <pre>
+ *     opcode    1 byte; one of the OP_ constants, or'ed with
+ *               FLAG_NEW_KEY the first time a key id is used
+ *     keyId     varint; ids are dense and local to one journal file
+ *     key       varint length + US-ASCII bytes; only with FLAG_NEW_KEY
+ *     lengths   valueCount varints; only for OP_CLEAN
+ *     slot      varint; only for OP_CLEAN in a slab-backed cache
+ * </pre>
+ */
+final class JournalWriter implements Closeable {
+  static final int MAGIC = 0x444c4a32; // "DLJ2"
+  static final int SLAB_MAGIC = 0x444c5332; // "DLS2"
+  static final int HEADER_LENGTH = 12;
+
+  static final int OP_CLEAN = 1;
+  static final int OP_DIRTY = 2;
+  static final int OP_REMOVE = 3;
+  static final int OP_READ = 4;
+  static final int OP_MASK = 0x0f;
+  static final int FLAG_NEW_KEY = 0x80;
+
+  static final long COMMIT_INTERVAL_MILLIS = 5;
+  static final int MAX_BATCH_RECORDS = 64;
+
+  /** One thread commits the journals of every open cache. */
+  private static final ScheduledThreadPoolExecutor committer =
+      new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "DiskLruCache-journal");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final FileOutputStream out;
+  /** Bytes in the journal file, including everything committed since it was opened. */
+  private long length;
+
+  /** Guards the file so batches are written in the order they were taken. */
+  private final Object commitLock = new Object();
+
+  private final ByteArrayOutputStream pending = new ByteArrayOutputStream(512);
+  private int pendingRecords;
+  private boolean commitScheduled;
+  private boolean closed;
+  /** The first failed commit; once set, nothing more is appended to the file. */
+  private IOException failure;
+
+  private final Runnable commitRunnable = new Runnable() {
+    public void run() {
+      try {
+        commit();
+      } catch (IOException ignored) {
+        // Recorded in failure and thrown from the next write, flush or close.
+      }
+    }
+  };
+
+  JournalWriter(File file) throws IOException {
+    this.out = new FileOutputStream(file, true);
+    this.length = file.length();
+  }
+
+  /**
+   * Queues a record for the next group commit.
+   *
+   * @param newKey the key to define for {@code keyId}, or null if this
+   * journal already defines it.
+   * @param lengths the value lengths for a clean record, otherwise null.
+   * @param slot the slab slot for a clean record, or -1 if values are files.
+   */
+  synchronized void write(int op, int keyId, String newKey, long[] lengths, int slot)
+      throws IOException {
+    if (closed) {
+      throw new IllegalStateException("journal is closed");
+    }
+    checkNotFailed();
+    writeRecord(pending, op, keyId, newKey, lengths, slot);
+    pendingRecords++;
+    if (pendingRecords >= MAX_BATCH_RECORDS) {
+      commitScheduled = true;
+      committer.execute(commitRunnable);
+    } else if (!commitScheduled) {
+      commitScheduled = true;
+      committer.schedule(commitRunnable, COMMIT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Writes and syncs every pending record before returning. */
+  void flush() throws IOException {
+    commit();
+  }
+
+  private void commit() throws IOException {
+    synchronized (commitLock) {
+      byte[] batch;
+      int batchRecords;
+      synchronized (this) {
+        commitScheduled = false;
+        checkNotFailed();
+        if (pendingRecords == 0) {
+          return;
+        }
+        batch = pending.toByteArray();
+        batchRecords = pendingRecords;
+        pending.reset();
+        pendingRecords = 0;
+      }
+      try {
+        out.write(batch);
+        out.getFD().sync();
+      } catch (IOException e) {
+        synchronized (this) {
+          // Put the batch back ahead of any records queued while it was being written.
+          byte[] queued = pending.toByteArray();
+          pending.reset();
+          pending.write(batch, 0, batch.length);
+          pending.write(queued, 0, queued.length);
+          pendingRecords += batchRecords;
+          failure = e;
+        }
+        throw e;
+      }
+      length += batch.length;
+    }
+  }
+
+  /** Throws if a previous commit failed. Call while holding this lock. */
+  private void checkNotFailed() throws IOException {
+    if (failure != null) {
+      throw new IOException("journal commit failed", failure);
+    }
+  }
+
+  /** Returns the journal file length as of the last commit. */
+  long length() {
+    synchronized (commitLock) {
+      return length;
+    }
+  }
+
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    try {
+      commit();
+    } finally {
+      synchronized (commitLock) {
+        out.close();
+      }
+    }
+  }
+
+  static void writeHeader(OutputStream out, int magic, int appVersion, int value)
+      throws IOException {
+    writeInt(out, magic);
+    writeInt(out, appVersion);
+    writeInt(out, value);
+  }
+
+  static void writeRecord(OutputStream out, int op, int keyId, String newKey, long[] lengths,
+      int slot) throws IOException {
+    out.write(newKey != null ? op | FLAG_NEW_KEY : op);
+    writeVarint(out, keyId);
+    if (newKey != null) {
+      writeVarint(out, newKey.length());
+      for (int i = 0; i < newKey.length(); i++) {
+        out.write(newKey.charAt(i)); // Keys are validated to be US-ASCII.
+      }
+    }
+    if (op == OP_CLEAN) {
+      for (long length : lengths) {
+        writeVarint(out, length);
+      }
+      if (slot >= 0) {
+        writeVarint(out, slot);
+      }
+    }
+  }
+
+  static void writeInt(OutputStream out, int value) throws IOException {
+    out.write(value >>> 24);
+    out.write(value >>> 16);
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  static int readInt(InputStream in) throws IOException {
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      value = (value << 8) | readByte(in);
+    }
+    return value;
+  }
+
+  /** Writes {@code value} as an unsigned LEB128 varint. */
+  static void writeVarint(OutputStream out, long value) throws IOException {
+    if (value < 0) {
+      throw new IllegalArgumentException("value < 0: " + value);
+    }
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  static long readVarint(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = readByte(in);
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("malformed varint");
+  }
+
+  static String readKey(InputStream in) throws IOException {
+    long length = readVarint(in);
+    if (length <= 0 || length > 120) {
+      throw new IOException("unexpected key length: " + length);
+    }
+    char[] key = new char[(int) length];
+    for (int i = 0; i < key.length; i++) {
+      key[i] = (char) readByte(in);
+    }
+    return new String(key);
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b == -1) {
+      throw new EOFException();
+    }
+    return b;
+  }
+}
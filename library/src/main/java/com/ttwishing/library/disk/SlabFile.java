@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ttwishing.library.disk;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One preallocated file split into equally sized slots, used by a slab-backed
+ * {@link DiskLruCache} to store fixed-size values without a file per entry.
+ * Values are read and written with positional channel I/O, so no file is
+ * opened per entry.
+ *
+ * <p>A slot is in one of four states. It is free, in use by a committed value
+ * or an edit, pinned by open snapshots after being freed, or released. A
+ * released slot is reusable only after the journal records that freed it are
+ * durable; see {@link #reclaimReleased}. Otherwise a crash could leave the
+ * journal pointing an old key at a slot that now holds another key's value.
+ */
+final class SlabFile implements Closeable {
+  /** Slots added each time the file has to grow past its preallocated size. */
+  private static final int GROW_SLOTS = 16;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final int slotSize;
+  private int slotCount;
+
+  private final BitSet used = new BitSet();
+  private final ArrayList<Integer> released = new ArrayList<Integer>();
+  private final Map<Integer, Integer> pins = new HashMap<Integer, Integer>();
+  private final BitSet releaseWhenUnpinned = new BitSet();
+
+  SlabFile(File path, int slotSize, int preallocatedSlots) throws IOException {
+    this.file = new RandomAccessFile(path, "rw");
+    this.channel = file.getChannel();
+    this.slotSize = slotSize;
+    long length = file.length();
+    this.slotCount = (int) Math.max(length / slotSize, preallocatedSlots);
+    if (length < (long) slotCount * slotSize) {
+      file.setLength((long) slotCount * slotSize);
+    }
+  }
+
+  int getSlotSize() {
+    return slotSize;
+  }
+
+  FileChannel getChannel() {
+    return channel;
+  }
+
+  long offsetOf(int slot) {
+    return (long) slot * slotSize;
+  }
+
+  /**
+   * Marks {@code slot} as holding a committed value while the cache is opened.
+   *
+   * @return false if the slot is out of range or already claimed.
+   */
+  synchronized boolean claim(int slot) {
+    if (slot < 0 || slot >= slotCount || used.get(slot)) {
+      return false;
+    }
+    used.set(slot);
+    return true;
+  }
+
+  /** Returns a free slot within the preallocated file, or -1 if there is none. */
+  synchronized int allocate() {
+    int slot = used.nextClearBit(0);
+    if (slot >= slotCount) {
+      return -1;
+    }
+    used.set(slot);
+    return slot;
+  }
+
+  /** Extends the file and returns one of the new slots. */
+  synchronized int grow() throws IOException {
+    int slot = slotCount;
+    slotCount += GROW_SLOTS;
+    file.setLength((long) slotCount * slotSize);
+    used.set(slot);
+    return slot;
+  }
+
+  /** Frees {@code slot} once no snapshot pins it and the journal is durable. */
+  synchronized void release(int slot) {
+    if (pins.containsKey(slot)) {
+      releaseWhenUnpinned.set(slot);
+    } else {
+      released.add(slot);
+    }
+  }
+
+  /** Makes released slots reusable. Call only after the journal was flushed. */
+  synchronized void reclaimReleased() {
+    for (int slot : released) {
+      used.clear(slot);
+    }
+    released.clear();
+  }
+
+  synchronized void pin(int slot) {
+    Integer count = pins.get(slot);
+    pins.put(slot, count == null ? 1 : count + 1);
+  }
+
+  synchronized void unpin(int slot) {
+    Integer count = pins.get(slot);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      pins.put(slot, count - 1);
+      return;
+    }
+    pins.remove(slot);
+    if (releaseWhenUnpinned.get(slot)) {
+      releaseWhenUnpinned.clear(slot);
+      released.add(slot);
+    }
+  }
+
+  InputStream newInputStream(int slot, long length) {
+    return new SlotInputStream(offsetOf(slot), length);
+  }
+
+  /** Reads the first {@code length} bytes of {@code slot} into {@code destination}. */
+  void read(int slot, ByteBuffer destination, long length) throws IOException {
+    readFully(channel, destination, offsetOf(slot), length);
+  }
+
+  /**
+   * Reads {@code length} bytes at {@code position} with positional I/O.
+   *
+   * @throws EOFException if the channel ends first.
+   */
+  static void readFully(FileChannel channel, ByteBuffer destination, long position, long length)
+      throws IOException {
+    if (length > destination.remaining()) {
+      throw new IllegalArgumentException("destination has " + destination.remaining()
+          + " bytes remaining, need " + length);
+    }
+    int limit = destination.limit();
+    destination.limit(destination.position() + (int) length);
+    try {
+      while (destination.hasRemaining()) {
+        int count = channel.read(destination, position);
+        if (count == -1) {
+          throw new EOFException();
+        }
+        position += count;
+      }
+    } finally {
+      destination.limit(limit);
+    }
+  }
+
+  /** Returns a stream that writes into {@code slot} and rejects writes past its end. */
+  SlotOutputStream newOutputStream(int slot) {
+    return new SlotOutputStream(offsetOf(slot));
+  }
+
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private final class SlotInputStream extends InputStream {
+    private final long end;
+    private long position;
+
+    SlotInputStream(long offset, long length) {
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      long remaining = end - position;
+      if (remaining <= 0) {
+        return -1;
+      }
+      int count = channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, remaining)),
+          position);
+      if (count > 0) {
+        position += count;
+      }
+      return count;
+    }
+
+    @Override public long skip(long byteCount) {
+      long skipped = Math.max(0, Math.min(byteCount, end - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+  }
+
+  final class SlotOutputStream extends OutputStream {
+    private final long start;
+    private long position;
+
+    SlotOutputStream(long offset) {
+      this.start = offset;
+      this.position = offset;
+    }
+
+    /** Returns the number of bytes written so far. */
+    long length() {
+      return position - start;
+    }
+
+    @Override public void write(int oneByte) throws IOException {
+      write(new byte[] {(byte) oneByte}, 0, 1);
+    }
+
+    @Override public void write(byte[] buffer, int offset, int length) throws IOException {
+      if (position - start + length > slotSize) {
+        throw new IOException("value exceeds slot size " + slotSize);
+      }
+      ByteBuffer source = ByteBuffer.wrap(buffer, offset, length);
+      while (source.hasRemaining()) {
+        position += channel.write(source, position);
+      }
+    }
+  }
+}
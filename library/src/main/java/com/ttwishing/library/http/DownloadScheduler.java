@@ -0,0 +1,433 @@
+package com.ttwishing.library.http;
+
+import android.os.SystemClock;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按host分配下载许可
+ *
+ * 1.每个host一个许可池,许可按预计的下载量加权,每UNIT_BYTES计1个单位,大图占用更多单位,不同host互不影响
+ * 2.预计下载量按url所在目录记录最近下载大小的EWMA,重试时使用已知的Content-Length
+ * 3.每个host的单位上限按测得的吞吐量调整: 吞吐量*TARGET_SECONDS内可下载的单位数,即同时在途的数据量约为TARGET_SECONDS的下载量
+ * 4.许可不足时任务在队列中等待,不占用下载线程;小任务可越过排在前面的大任务,但大任务等待超过MAX_BYPASS_MILLIS后不再被越过
+ * 5.每个host同时进行的下载数不超过maxConnectionsPerHost,超出的同样在队列中等待,可被cancel
+ * 6.最多保留MAX_HOSTS个host的统计,超出时淘汰最久未使用的空闲host
+ */
+public class DownloadScheduler {
+
+    //许可单位对应的字节数
+    static final long UNIT_BYTES = 64 * 1024;
+    //小图的吞吐量受延迟限制测得偏低,下限不宜太小
+    private static final int MIN_UNITS = 8;
+    private static final int MAX_UNITS = 64;
+    private static final int INITIAL_UNITS = 16;
+    //同时在途的数据量按该时长内的下载量估算
+    private static final float TARGET_SECONDS = 2f;
+    //吞吐量采样:host有下载进行的时长每累计该值采样一次
+    private static final long SAMPLE_NANOS = 1000L * 1000 * 1000;
+    private static final float EWMA_WEIGHT = 0.3f;
+    private static final long MAX_BYPASS_MILLIS = 3000L;
+    //记录下载量的url目录数
+    private static final int MAX_ROUTES = 64;
+    static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+    //保留统计的host数,有下载进行或等待的host不会被淘汰
+    static final int MAX_HOSTS = 32;
+
+    private final int maxConnectionsPerHost;
+
+    //按访问顺序排列,用于淘汰最久未使用的空闲host
+    private final Map<String, Host> hosts = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<String, Long> routeBytes = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_ROUTES;
+        }
+    };
+
+    public DownloadScheduler() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * @param maxConnectionsPerHost 每个host同时进行的最大下载数
+     */
+    public DownloadScheduler(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerHost < 1");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public interface Callback {
+        /**
+         * 获得许可, 在调用schedule或release的线程上回调, 应尽快返回
+         *
+         * @param ticket 下载结束后须交给release
+         */
+        void onGranted(Ticket ticket);
+    }
+
+    /**
+     * 申请许可, 可用时立即回调, 否则进入所在host的队列
+     *
+     * @param url
+     * @param expectedBytes 已知的下载量,未知时传-1
+     * @param callback
+     * @return 可用于cancel
+     */
+    public Ticket schedule(String url, long expectedBytes, Callback callback) {
+        Ticket ticket;
+        Ticket granted;
+        synchronized (this) {
+            Host host = getHost(hostOf(url));
+            if (expectedBytes < 0) {
+                expectedBytes = estimateBytes(url);
+            }
+            ticket = new Ticket(host, url, weightOf(expectedBytes), callback);
+            host.waiters.add(ticket);
+            granted = host.grantNext(this.maxConnectionsPerHost);
+            evictIdleHosts();
+        }
+        dispatch(granted);
+        return ticket;
+    }
+
+    /**
+     * 从队列中移除尚未获得许可的任务
+     *
+     * @param ticket
+     * @return 已获得许可或不在队列中时返回false
+     */
+    public boolean cancel(Ticket ticket) {
+        List<Ticket> granted = new ArrayList<>(1);
+        synchronized (this) {
+            if (ticket == null || !ticket.host.waiters.remove(ticket)) {
+                return false;
+            }
+            //它可能正阻止后面的任务越过
+            Ticket next;
+            while ((next = ticket.host.grantNext(this.maxConnectionsPerHost)) != null) {
+                granted.add(next);
+            }
+            evictIdleHosts();
+        }
+        for (Ticket next : granted) {
+            dispatch(next);
+        }
+        return true;
+    }
+
+    /**
+     * 归还许可并记录下载量
+     *
+     * @param ticket
+     */
+    public void release(Ticket ticket) {
+        if (ticket == null) {
+            return;
+        }
+        List<Ticket> granted = new ArrayList<>(1);
+        synchronized (this) {
+            if (ticket.released) {
+                return;
+            }
+            ticket.released = true;
+            Host host = ticket.host;
+            host.release(ticket);
+            if (ticket.getBytes() > 0) {
+                recordRouteBytes(ticket.url, ticket.getBytes());
+            }
+            Ticket next;
+            while ((next = host.grantNext(this.maxConnectionsPerHost)) != null) {
+                granted.add(next);
+            }
+            evictIdleHosts();
+        }
+        for (Ticket next : granted) {
+            dispatch(next);
+        }
+    }
+
+    /**
+     * 得知实际下载量后修正许可单位, 修正后超出上限时, 该host在其结束前不再放行新的任务
+     *
+     * @param ticket
+     * @param expectedBytes
+     */
+    public synchronized void updateExpectedBytes(Ticket ticket, long expectedBytes) {
+        if (ticket.released || expectedBytes < 0) {
+            return;
+        }
+        int weight = weightOf(expectedBytes);
+        ticket.host.usedUnits += weight - ticket.grantedUnits;
+        ticket.grantedUnits = weight;
+    }
+
+    /**
+     * 各host的统计快照
+     *
+     * @return
+     */
+    public synchronized Map<String, HostMetrics> getHostMetrics() {
+        Map<String, HostMetrics> metrics = new HashMap<>();
+        for (Map.Entry<String, Host> entry : this.hosts.entrySet()) {
+            Host host = entry.getValue();
+            metrics.put(entry.getKey(), new HostMetrics(host.waiters.size(), host.active, host.usedUnits, host.limitUnits,
+                    host.throughput, host.completed));
+        }
+        return metrics;
+    }
+
+    /**
+     * 预计下载量对应的许可单位
+     *
+     * @param expectedBytes
+     * @return
+     */
+    static int weightOf(long expectedBytes) {
+        long units = (expectedBytes + UNIT_BYTES - 1) / UNIT_BYTES;
+        return (int) Math.max(1, Math.min(MAX_UNITS, units));
+    }
+
+    /**
+     * 按url所在目录估算下载量, 没有记录时按1个单位
+     *
+     * @param url
+     * @return
+     */
+    synchronized long estimateBytes(String url) {
+        Long bytes = this.routeBytes.get(routeOf(url));
+        return bytes != null ? bytes : UNIT_BYTES;
+    }
+
+    private void recordRouteBytes(String url, long bytes) {
+        String route = routeOf(url);
+        Long average = this.routeBytes.get(route);
+        this.routeBytes.put(route, average == null ? bytes : (long) (average + (bytes - average) * EWMA_WEIGHT));
+    }
+
+    private void dispatch(Ticket ticket) {
+        if (ticket != null) {
+            ticket.callback.onGranted(ticket);
+        }
+    }
+
+    private Host getHost(String name) {
+        Host host = this.hosts.get(name);
+        if (host == null) {
+            host = new Host();
+            this.hosts.put(name, host);
+        }
+        return host;
+    }
+
+    /**
+     * host数超过MAX_HOSTS时, 从最久未使用的开始淘汰空闲的host
+     */
+    private void evictIdleHosts() {
+        Iterator<Host> iterator = this.hosts.values().iterator();
+        while (this.hosts.size() > MAX_HOSTS && iterator.hasNext()) {
+            if (iterator.next().isIdle()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static String hostOf(String url) {
+        try {
+            String host = new URL(url).getHost();
+            return host != null ? host : "";
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    private static String routeOf(String url) {
+        int query = url.indexOf('?');
+        int end = url.lastIndexOf('/', query >= 0 ? query : url.length() - 1);
+        return end > 0 ? url.substring(0, end) : url;
+    }
+
+    /**
+     * 一个host的许可池和吞吐量统计, 由DownloadScheduler加锁
+     */
+    private static final class Host {
+        final LinkedList<Ticket> waiters = new LinkedList<>();
+        int limitUnits = INITIAL_UNITS;
+        int usedUnits;
+        int active;
+        long completed;
+        //字节/秒,0表示尚未测得
+        float throughput;
+
+        //有下载进行的时长和期间完成的字节数
+        private long busyNanos;
+        private long sampleBytes;
+        private long lastChangeNanos;
+
+        /**
+         * 按队列顺序找第一个放得下的任务, 等待过久的任务放不下时阻止后面的任务越过它
+         *
+         * @param maxActive 同时进行的最大下载数
+         * @return 获得许可的任务
+         */
+        Ticket grantNext(int maxActive) {
+            if (this.active >= maxActive) {
+                return null;
+            }
+            long now = SystemClock.uptimeMillis();
+            Iterator<Ticket> iterator = this.waiters.iterator();
+            while (iterator.hasNext()) {
+                Ticket ticket = iterator.next();
+                //单个任务超过上限时,等到没有其它下载时单独执行
+                int weight = Math.min(ticket.weight, this.limitUnits);
+                if (this.usedUnits + weight <= this.limitUnits) {
+                    iterator.remove();
+                    ticket.grantedUnits = weight;
+                    updateBusyTime(System.nanoTime());
+                    this.usedUnits += weight;
+                    this.active++;
+                    return ticket;
+                }
+                if (now - ticket.enqueued > MAX_BYPASS_MILLIS) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return 没有下载进行, 也没有任务等待
+         */
+        boolean isIdle() {
+            return this.active == 0 && this.waiters.isEmpty();
+        }
+
+        void release(Ticket ticket) {
+            long now = System.nanoTime();
+            updateBusyTime(now);
+            this.usedUnits -= ticket.grantedUnits;
+            this.active--;
+            this.completed++;
+            this.sampleBytes += ticket.getBytes();
+            if (this.busyNanos >= SAMPLE_NANOS) {
+                float sample = this.sampleBytes * 1e9f / this.busyNanos;
+                this.throughput = this.throughput == 0 ? sample : this.throughput + (sample - this.throughput) * EWMA_WEIGHT;
+                this.busyNanos = 0;
+                this.sampleBytes = 0;
+                long units = (long) (this.throughput * TARGET_SECONDS / UNIT_BYTES);
+                this.limitUnits = (int) Math.max(MIN_UNITS, Math.min(MAX_UNITS, units));
+            }
+        }
+
+        private void updateBusyTime(long now) {
+            if (this.active > 0) {
+                this.busyNanos += now - this.lastChangeNanos;
+            }
+            this.lastChangeNanos = now;
+        }
+    }
+
+    /**
+     * 一次下载的许可
+     */
+    public static final class Ticket {
+        private final Host host;
+        private final String url;
+        private final int weight;
+        private final Callback callback;
+        private final long enqueued = SystemClock.uptimeMillis();
+        private int grantedUnits;
+        private long bytes;
+        private boolean released;
+
+        private Ticket(Host host, String url, int weight, Callback callback) {
+            this.host = host;
+            this.url = url;
+            this.weight = weight;
+            this.callback = callback;
+        }
+
+        /**
+         * 记录下载的字节数, 用于吞吐量统计和下载量估算
+         *
+         * @param bytes
+         */
+        public synchronized void addBytes(long bytes) {
+            if (bytes > 0) {
+                this.bytes += bytes;
+            }
+        }
+
+        private synchronized long getBytes() {
+            return this.bytes;
+        }
+
+        public int getWeight() {
+            return this.weight;
+        }
+    }
+
+    /**
+     * 一个host的统计
+     */
+    public static final class HostMetrics {
+        private final int queueDepth;
+        private final int activeDownloads;
+        private final int usedUnits;
+        private final int limitUnits;
+        private final float throughput;
+        private final long completed;
+
+        HostMetrics(int queueDepth, int activeDownloads, int usedUnits, int limitUnits, float throughput, long completed) {
+            this.queueDepth = queueDepth;
+            this.activeDownloads = activeDownloads;
+            this.usedUnits = usedUnits;
+            this.limitUnits = limitUnits;
+            this.throughput = throughput;
+            this.completed = completed;
+        }
+
+        //等待许可的任务数
+        public int getQueueDepth() {
+            return this.queueDepth;
+        }
+
+        public int getActiveDownloads() {
+            return this.activeDownloads;
+        }
+
+        public int getUsedUnits() {
+            return this.usedUnits;
+        }
+
+        public int getLimitUnits() {
+            return this.limitUnits;
+        }
+
+        //字节/秒,0表示尚未测得
+        public float getThroughput() {
+            return this.throughput;
+        }
+
+        public long getCompleted() {
+            return this.completed;
+        }
+
+        @Override
+        public String toString() {
+            return "queue=" + this.queueDepth + " active=" + this.activeDownloads + " units=" + this.usedUnits + "/" + this.limitUnits
+                    + " throughput=" + (long) this.throughput + "B/s completed=" + this.completed;
+        }
+    }
+}
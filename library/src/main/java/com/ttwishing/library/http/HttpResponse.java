@@ -0,0 +1,41 @@
+package com.ttwishing.library.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link HttpTransport}的响应
+ */
+public interface HttpResponse extends Closeable {
+
+    int getStatusCode();
+
+    /**
+     * @param name
+     * @return 响应头, 不存在时返回null
+     */
+    String getHeader(String name);
+
+    /**
+     * @return 响应体长度, 未知时返回-1
+     */
+    long getContentLength();
+
+    /**
+     * @return 已解压的响应体
+     * @throws IOException
+     */
+    InputStream getBody() throws IOException;
+
+    /**
+     * 释放连接,响应体未读完时尽量读完,使连接可被复用
+     */
+    @Override
+    void close();
+
+    /**
+     * 中止读取响应体并断开连接, 不再复用, 可在其它线程调用以中断阻塞中的读取; 之后仍需close
+     */
+    void abort();
+}
@@ -1,26 +1,41 @@
 package com.ttwishing.library.http;
 
-import android.content.Context;
+import android.util.Log;
 
 import com.ttwishing.library.App;
 import com.ttwishing.library.base.sync.NamedLockPool;
+import com.ttwishing.library.base.util.CancellationToken;
 import com.ttwishing.library.base.util.IOUtils;
-import com.ttwishing.library.tasks.PriorityExecutor;
+import com.ttwishing.library.disk.DiskLruCache;
+import com.ttwishing.library.tasks.NamedThreadFactory;
 import com.ttwishing.library.util.HashUtil;
 import com.ttwishing.library.util.ReusableStringBuilderPool;
+import com.ttwishing.library.util.TimerWheel;
 
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by kurt on 10/28/15.
@@ -28,33 +43,105 @@ import java.util.concurrent.Semaphore;
  * 下载任务并发,优先级, 并发量控制
  */
 public class HttpTaskController {
-    private static long sCurrentMaxPriority = Long.MAX_VALUE;
-    private static long sCurrentMinPriority = 0L;
-
-    private Context context = App.getInstance();
-
-    //下载线程池
-    private PriorityExecutor<ImageDownloadTask> mDownloadExecutor;
+    //原图缓存每个条目的值: 原图, http缓存元数据
+    public static final int ORIGINALS_VALUE_COUNT = 2;
+    private static final int ORIGINAL_INDEX = 0;
+    private static final int METADATA_INDEX = 1;
+    //重新验证失败后,过多久再试
+    private static final long REVALIDATE_RETRY_DELAY = 60 * 1000L;
+
+    //重试的退避延时: 基数按重试次数指数增长,上限MAX_RETRY_DELAY,实际延时在[一半,全部]之间随机
+    private static final long BASE_RETRY_DELAY = 1000L;
+    private static final long MAX_RETRY_DELAY = 30 * 1000L;
+    //退避等待期间不占用下载线程
+    private static final TimerWheel sRetryTimer = new TimerWheel("http-retry", 100, 256);
+
+    //独立目录中未下载完的文件, 及其旁边保存的续传校验值
+    private static final String PART_SUFFIX = ".part";
+    private static final String VALIDATOR_SUFFIX = ".validator";
+    //超过该时长未续传的部分文件在启动时删除
+    private static final long STALE_PART_AGE = 3 * 24 * 60 * 60 * 1000L;
+
+    //下载线程池: 获得许可的任务立即执行, 不再排队, 线程数即各host已放行的任务数
+    //顺序和并发量都由mScheduler决定
+    private final ExecutorService mDownloadExecutor;
 
     private final Object mListenerLock = new Object();
     //监听池
     private final Map<String, List<HttpDiskCacheListener>> mUrlBasedListenersMap = new HashMap<>();
+    //进行中的下载任务,与监听一起由mListenerLock保护
+    private final Map<String, ImageDownloadTask> mDownloadTasks = new HashMap<>();
 
     //lock池,此处未限制并发量
     private NamedLockPool mDownloadLockPool = new NamedLockPool(10, true);
 
-    //控制并发量
-    private Semaphore mSemaphore = new Semaphore(10, false);
+    //按host控制并发量,许可按预计下载量加权,并随吞吐量调整
+    private final DownloadScheduler mScheduler;
 
-    //下载的文件保存路径
+    //下载的文件保存路径,仅在未使用原图缓存时有效
     private final File mDownloadCacheDir;
 
+    //原图缓存,下载内容直接写入其Editor,与其他缓存共用容量上限和LRU淘汰
+    //每个条目ORIGINALS_VALUE_COUNT个值,并记录http缓存元数据,过期后先使用旧数据,同时在后台重新验证
+    private final DiskLruCache mOriginalsCache;
+
+    //正在后台重新验证的url
+    private final Set<String> mRevalidatingUrls = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     private final ReusableStringBuilderPool mReusableStringBuilderPool;
 
+    //http传输层
+    private final HttpTransport mTransport;
+
     public HttpTaskController(ReusableStringBuilderPool stringBuilderPool) {
+        this(stringBuilderPool, new HttpUrlConnectionTransport());
+    }
+
+    /**
+     * @param stringBuilderPool
+     * @param transport         自定义的http传输层
+     */
+    public HttpTaskController(ReusableStringBuilderPool stringBuilderPool, HttpTransport transport) {
+        this(stringBuilderPool, transport, null);
+    }
+
+    /**
+     * @param stringBuilderPool
+     * @param transport         自定义的http传输层
+     * @param originalsCache    原图缓存,为null时下载到独立的目录
+     */
+    public HttpTaskController(ReusableStringBuilderPool stringBuilderPool, HttpTransport transport, DiskLruCache originalsCache) {
+        this(stringBuilderPool, transport, originalsCache, DownloadScheduler.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * @param stringBuilderPool
+     * @param transport             自定义的http传输层
+     * @param originalsCache        原图缓存,为null时下载到独立的目录
+     * @param maxConnectionsPerHost 每个host同时进行的最大下载数
+     */
+    public HttpTaskController(ReusableStringBuilderPool stringBuilderPool, HttpTransport transport, DiskLruCache originalsCache, int maxConnectionsPerHost) {
+        this(stringBuilderPool, transport, originalsCache, originalsCache == null ? App.<App>getInstance().getExternalFilesDir("my-photos") : null, maxConnectionsPerHost);
+    }
+
+    /**
+     * @param stringBuilderPool
+     * @param transport             自定义的http传输层
+     * @param originalsCache        原图缓存
+     * @param downloadCacheDir      未使用原图缓存时的下载目录
+     * @param maxConnectionsPerHost 每个host同时进行的最大下载数
+     */
+    HttpTaskController(ReusableStringBuilderPool stringBuilderPool, HttpTransport transport, DiskLruCache originalsCache, File downloadCacheDir, int maxConnectionsPerHost) {
         this.mReusableStringBuilderPool = stringBuilderPool;
-        this.mDownloadCacheDir = context.getExternalFilesDir("my-photos");
-        this.mDownloadExecutor = new PriorityExecutor("http-disk-cache-download", 1, 4, 30, PriorityExecutor.PowerMode.NORMAL, false);
+        this.mTransport = transport;
+        this.mOriginalsCache = originalsCache;
+        this.mDownloadCacheDir = downloadCacheDir;
+        this.mScheduler = new DownloadScheduler(maxConnectionsPerHost);
+        this.mDownloadExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new NamedThreadFactory("http-disk-cache-download"));
+        if (downloadCacheDir != null) {
+            deleteStaleParts(downloadCacheDir, System.currentTimeMillis());
+        }
     }
 
     /**
@@ -85,26 +172,48 @@ public class HttpTaskController {
      * @param listener
      */
     private void download(String url, String suffix, HttpDiskCacheListener listener) {
+        ImageDownloadTask task;
         //注册监听
         synchronized (mListenerLock) {
             if (mUrlBasedListenersMap.containsKey(url)) {
+                //已有任务在下载或等待重试,只等待其结果
                 if (listener != null) {
                     (mUrlBasedListenersMap.get(url)).add(listener);
                 }
-            } else {
-                LinkedList listeners = new LinkedList();
-                if (listener != null) {
-                    listeners.add(listener);
-                }
-                mUrlBasedListenersMap.put(url, listeners);
+                return;
+            }
+            LinkedList listeners = new LinkedList();
+            if (listener != null) {
+                listeners.add(listener);
             }
+            mUrlBasedListenersMap.put(url, listeners);
+            task = new ImageDownloadTask(url, suffix, true);
+            mDownloadTasks.put(url, task);
         }
 
-        executeDownload(url, suffix, true);
+        //先在调度器中排队,取得许可后才进入下载线程池
+        task.schedule();
     }
 
-    private boolean executeDownload(String url, String suffix, boolean isHighPriority) {
-        return this.mDownloadExecutor.execute(new ImageDownloadTask(url, suffix, filePath(url, suffix), isHighPriority));
+    /**
+     * 移除监听, 最后一个监听移除后中止下载: 排队中的直接移除, 下载中的断开连接
+     *
+     * @param url
+     * @param listener
+     */
+    public void cancel(String url, HttpDiskCacheListener listener) {
+        ImageDownloadTask task;
+        synchronized (mListenerLock) {
+            List<HttpDiskCacheListener> listeners = mUrlBasedListenersMap.get(url);
+            if (listeners == null || !listeners.remove(listener) || !listeners.isEmpty()) {
+                return;
+            }
+            mUrlBasedListenersMap.remove(url);
+            task = mDownloadTasks.remove(url);
+        }
+        if (task != null) {
+            task.cancel();
+        }
     }
 
     /**
@@ -116,9 +225,10 @@ public class HttpTaskController {
      * @return
      */
     private boolean isExited(String url, String suffix, HttpDiskCacheListener listener) {
-        if (isExisted(url, suffix)) {
+        File file = getExistedFile(url, suffix);
+        if (file != null) {
             if (listener != null) {
-                listener.onHttpDiskCacheSuccess(url, suffix, filePath(url, suffix));
+                listener.onHttpDiskCacheSuccess(url, suffix, file);
             }
             return true;
         }
@@ -126,27 +236,120 @@ public class HttpTaskController {
     }
 
     public boolean isExisted(String url, String suffix) {
+        return getExistedFile(url, suffix) != null;
+    }
+
+    /**
+     * 各host的排队数,并发量和吞吐量
+     *
+     * @return
+     */
+    public Map<String, DownloadScheduler.HostMetrics> getHostMetrics() {
+        return mScheduler.getHostMetrics();
+    }
+
+    /**
+     * 获取已下载完成的文件,正在下载中或不存在时返回null
+     *
+     * @param url
+     * @param suffix
+     * @return
+     */
+    private File getExistedFile(String url, String suffix) {
         synchronized (mListenerLock) {
-            if (!mUrlBasedListenersMap.containsKey(url)) {
-                File path = filePath(url, suffix);
-                if (path.exists()) {
-                    return true;
-                }
+            if (mUrlBasedListenersMap.containsKey(url)) {
+                return null;
             }
-            return false;
+        }
+        if (mOriginalsCache == null) {
+            //独立目录中的文件不记录新鲜度,一直有效
+            return downloadedFile(url, suffix);
+        }
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mOriginalsCache.get(fileName(url, suffix));
+            if (snapshot == null) {
+                return null;
+            }
+            OriginalMetadata metadata = readMetadata(snapshot);
+            if (metadata == null || !metadata.isFresh(System.currentTimeMillis())) {
+                //已过期,先使用旧数据,同时在后台重新验证
+                revalidate(url, suffix);
+            }
+            return snapshot.getInputFile(ORIGINAL_INDEX);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(snapshot);
+        }
+    }
+
+    private static OriginalMetadata readMetadata(DiskLruCache.Snapshot snapshot) {
+        try {
+            return OriginalMetadata.read(snapshot.getInputStream(METADATA_INDEX));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeMetadata(DiskLruCache.Editor editor, OriginalMetadata metadata) throws IOException {
+        OutputStream outputStream = editor.newOutputStream(METADATA_INDEX);
+        try {
+            metadata.write(outputStream);
+        } finally {
+            outputStream.close();
         }
     }
 
     /**
-     * 获取并移除监听
+     * 后台重新验证已过期的原图, 同一url同时只验证一次
      *
      * @param url
+     * @param suffix
+     */
+    private void revalidate(String url, String suffix) {
+        if (mRevalidatingUrls.add(url)) {
+            new RevalidateTask(url, suffix).schedule();
+        }
+    }
+
+    /**
+     * 已下载的文件,不存在时返回null
+     * 原图缓存中的文件可能在解码前被LRU淘汰,此时解码失败,下次请求会重新下载
+     *
+     * @param url
+     * @param suffix
      * @return
      */
-    private List<HttpDiskCacheListener> getAndRemoveListenerList(String url) {
+    private File downloadedFile(String url, String suffix) {
+        if (mOriginalsCache == null) {
+            File path = filePath(url, suffix);
+            return path.exists() ? path : null;
+        }
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mOriginalsCache.get(fileName(url, suffix));
+            return snapshot != null ? snapshot.getInputFile(ORIGINAL_INDEX) : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(snapshot);
+        }
+    }
+
+    /**
+     * 获取并移除监听
+     *
+     * @param task
+     * @return 任务已被取消时返回null, 此时同一url的监听可能属于新的任务
+     */
+    private List<HttpDiskCacheListener> getAndRemoveListenerList(ImageDownloadTask task) {
         synchronized (mListenerLock) {
-            List localList = (List) mUrlBasedListenersMap.remove(url);
-            return localList;
+            if (mDownloadTasks.get(task.url) != task) {
+                return null;
+            }
+            mDownloadTasks.remove(task.url);
+            return mUrlBasedListenersMap.remove(task.url);
         }
     }
 
@@ -175,174 +378,584 @@ public class HttpTaskController {
         return HashUtil.md5(url);
     }
 
+    public interface HttpDiskCacheListener {
+        void onHttpDiskCacheFailed(String url, String suffix);
+
+        void onHttpDiskCacheSuccess(String url, String suffix, File file);
+
+        boolean isProcessCheck(String url, String suffix);
+    }
+
     /**
-     * 获取优先级,
-     * 当获取高的优先级时, 越早创建的优先级越高, sCurrentMaxPriority执行递减
+     * 从Content-Range(bytes start-end/total)中解析start
      *
-     * @param high
-     * @return
+     * @param contentRange
+     * @return 无法解析时返回-1
      */
-    private long getPriority(boolean high) {
-        long priority;
-        if (high) {
-            priority = sCurrentMaxPriority;
-            sCurrentMaxPriority = priority - 1L;
-        } else {
-            priority = sCurrentMinPriority;
-            sCurrentMinPriority = priority - 1L;
-        }
-        return priority;
+    private static long contentRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
-    public interface HttpDiskCacheListener {
-        void onHttpDiskCacheFailed(String url, String suffix);
+    /**
+     * 续传用的校验值, 弱ETag不能用于If-Range
+     *
+     * @param response
+     * @return 没有可用的校验值时返回null, 此时不续传
+     */
+    private static String validatorOf(HttpResponse response) {
+        String etag = response.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return response.getHeader("Last-Modified");
+    }
 
-        void onHttpDiskCacheSuccess(String url, String suffix, File file);
+    /**
+     * 删除上次运行留下的、已无法或不值得续传的部分文件: 没有校验值, 或超过STALE_PART_AGE未修改
+     *
+     * @param directory
+     * @param now
+     */
+    private static void deleteStaleParts(File directory, long now) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(PART_SUFFIX)) {
+                File validatorFile = validatorFile(file);
+                if (!validatorFile.exists() || now - file.lastModified() > STALE_PART_AGE) {
+                    file.delete();
+                    validatorFile.delete();
+                }
+            } else if (name.endsWith(PART_SUFFIX + VALIDATOR_SUFFIX)) {
+                File partFile = new File(directory, name.substring(0, name.length() - VALIDATOR_SUFFIX.length()));
+                if (!partFile.exists()) {
+                    file.delete();
+                }
+            }
+        }
+    }
 
-        boolean isProcessCheck(String url, String suffix);
+    private static File validatorFile(File partFile) {
+        return new File(partFile.getPath() + VALIDATOR_SUFFIX);
+    }
+
+    /**
+     * 读取部分文件旁边保存的校验值, 使重启后仍可续传
+     *
+     * @param partFile
+     * @return 部分文件或校验值不存在时返回null
+     */
+    private static String readValidator(File partFile) {
+        File validatorFile = validatorFile(partFile);
+        if (!partFile.exists() || !validatorFile.exists()) {
+            return null;
+        }
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new FileInputStream(validatorFile));
+            return inputStream.readUTF();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * 保存校验值, 写入不完整时If-Range不匹配, 服务器返回完整的200响应, 不会拼接出错误的文件
+     *
+     * @param partFile
+     * @param validator 为null时删除
+     */
+    private static void writeValidator(File partFile, String validator) {
+        File validatorFile = validatorFile(partFile);
+        if (validator == null) {
+            validatorFile.delete();
+            return;
+        }
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new FileOutputStream(validatorFile));
+            outputStream.writeUTF(validator);
+        } catch (IOException e) {
+            validatorFile.delete();
+        } finally {
+            IOUtils.closeQuietly(outputStream);
+        }
     }
 
-    class ImageDownloadTask implements PriorityExecutor.Item, Runnable {
+    class ImageDownloadTask implements Runnable, DownloadScheduler.Callback {
 
         //retry次数
         int retryCount;
-        //保存到的文件
-        File savedFile;
-        //锁资源获取许可等级
-        int permits;
-        //当前任务是高或低优先级
+        //当前任务是高或低优先级, 低优先级的不重试
         boolean highPriority;
-        //当前任务的优先级
-        long priority;
 
-        long created;
         String url;
         String suffix;
 
-
-        public ImageDownloadTask(String url, String suffix, File file, boolean highPriority) {
+        //续传状态,在重试之间保留: 已下载的部分写在partFile中,validator为null时不续传
+        DiskLruCache.Editor editor;
+        File partFile;
+        String validator;
+        //最近一次响应的http缓存元数据
+        OriginalMetadata metadata;
+        //已知的完整下载量,未知时为-1
+        long contentLength = -1;
+        //已获得的下载许可,为null时先申请
+        volatile DownloadScheduler.Ticket ticket;
+
+        //最后一个监听移除后取消
+        final CancellationToken token = new CancellationToken();
+        //排队中的许可申请和等待中的重试,取消时直接移除
+        volatile DownloadScheduler.Ticket pendingTicket;
+        volatile TimerWheel.Timeout retryTimeout;
+        //正在读取的响应,取消时断开
+        volatile HttpResponse response;
+
+        public ImageDownloadTask(String url, String suffix, boolean highPriority) {
             this.url = url;
             this.suffix = suffix;
-            this.savedFile = file;
             this.highPriority = highPriority;
-
-            //TODO 根据url来判断锁的许可等级
-            this.permits = 1;
             this.retryCount = 0;
-            reset();
-        }
-
-        @Override
-        public String getItemKey() {
-            return this.url;
+            this.token.onCancel(new Runnable() {
+                @Override
+                public void run() {
+                    //不在调用cancel的线程(可能是UI线程)上断开连接
+                    sRetryTimer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            HttpResponse response = ImageDownloadTask.this.response;
+                            if (response != null) {
+                                response.abort();
+                            }
+                        }
+                    }, 0);
+                }
+            });
         }
 
-        @Override
-        public long getItemPriority() {
-            return this.priority;
+        /**
+         * 取消下载, 在调度器队列或重试等待中时由当前线程放弃已下载的部分,
+         * 获得许可后立即执行, 由执行线程检查token后放弃
+         */
+        void cancel() {
+            this.token.cancel();
+            if (mScheduler.cancel(this.pendingTicket)) {
+                discard();
+                return;
+            }
+            TimerWheel.Timeout retryTimeout = this.retryTimeout;
+            if (retryTimeout != null && retryTimeout.cancel()) {
+                discard();
+            }
         }
 
         /**
-         * 执行重试
+         * 执行重试, 按指数退避延时后重新执行, 已下载的部分保留用于续传
          *
          * @return
          */
         public boolean retry() {
-            if (this.highPriority && this.retryCount < 5L) {
-                //重置,当前任务,重新执行
-                reset();
-                return HttpTaskController.this.mDownloadExecutor.execute(this);
+            if (this.highPriority && this.retryCount < 5L && !this.token.isCancelled()) {
+                this.retryTimeout = sRetryTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        retryTimeout = null;
+                        if (token.isCancelled()) {
+                            discard();
+                            return;
+                        }
+                        //按剩余的下载量重新申请许可
+                        schedule();
+                    }
+                }, retryDelay());
+                return true;
             }
             //低优先级,或者重试次数已过,则取消
             return false;
         }
 
+        private long retryDelay() {
+            long delay = Math.min(MAX_RETRY_DELAY, BASE_RETRY_DELAY << Math.min(this.retryCount - 1, 16));
+            return delay / 2 + (long) (Math.random() * (delay / 2));
+        }
+
+        /**
+         * 申请所在host的许可,排队期间不占用下载线程
+         */
+        void schedule() {
+            this.pendingTicket = mScheduler.schedule(url, remainingBytes(), this);
+        }
+
+        @Override
+        public void onGranted(DownloadScheduler.Ticket ticket) {
+            this.pendingTicket = null;
+            if (this.token.isCancelled()) {
+                mScheduler.release(ticket);
+                discard();
+                return;
+            }
+            this.ticket = ticket;
+            try {
+                mDownloadExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                this.ticket = null;
+                mScheduler.release(ticket);
+                discard();
+                notifyListeners(null);
+            }
+        }
+
+        /**
+         * 剩余的下载量, 未知时为-1
+         *
+         * @return
+         */
+        private long remainingBytes() {
+            if (this.contentLength < 0) {
+                return -1;
+            }
+            long downloaded = this.validator != null && this.partFile != null ? this.partFile.length() : 0;
+            return Math.max(0, this.contentLength - downloaded);
+        }
+
         @Override
         public void run() {
+            DownloadScheduler.Ticket ticket = this.ticket;
+            this.ticket = null;
+            if (ticket == null) {
+                schedule();
+                return;
+            }
             //获取锁
             mDownloadLockPool.lock(url);
             try {
-                this.retryCount += 1;
-                //根据这个任务的预设优先级和等待时间来重置线程的执行
-                if (!highPriority) {
-                    //非高的优先级,设置为经济模式
-                    mDownloadExecutor.setPowerMode(PriorityExecutor.PowerMode.ECONOMY);
-                } else {
-                    long wait = System.currentTimeMillis() - created;
-                    if (wait > 2000) {
-                        //等待时间过长,设置为高速模式
-                        mDownloadExecutor.setPowerMode(PriorityExecutor.PowerMode.SPEED);
-                    } else if (wait > 1000) {
-                        //等待时间正常,设置为正常模式
-                        mDownloadExecutor.setPowerMode(PriorityExecutor.PowerMode.NORMAL);
-                    } else {
-                        //等待时间短,设置为经济模式
-                        mDownloadExecutor.setPowerMode(PriorityExecutor.PowerMode.ECONOMY);
-                    }
+                if (this.token.isCancelled()) {
+                    //排队期间已取消
+                    discard();
+                    return;
                 }
-                boolean success = false;
-                if (!savedFile.exists()) {
-                    //并发量控制
-                    mSemaphore.acquireUninterruptibly(permits);
-
-                    InputStream inputStream = null;
-                    BufferedOutputStream bufferedOutputStream = null;
+                this.retryCount += 1;
+                File savedFile = downloadedFile(url, suffix);
+                if (savedFile == null) {
                     try {
-                        inputStream = null;//TODO 通过你的方法获取http response的InputStream
-                        bufferedOutputStream = new BufferedOutputStream(new FileOutputStream(savedFile), 8 * 1024);
-                        IOUtils.copy(inputStream, bufferedOutputStream);
-                        success = true;
-
+                        savedFile = download(ticket);
                     } catch (IOException e) {
-                        savedFile.delete();
-                        if (retry()) {
-                            //下载异常,重新执行
+                        //按token判断是否已取消, 读取超时(SocketTimeoutException)也是InterruptedIOException, 应当重试续传
+                        if (!this.token.isCancelled() && retry()) {
+                            //下载异常,延时后续传
                             return;
                         }
-                    } finally {
-                        IOUtils.closeQuietly(inputStream);
-                        IOUtils.closeQuietly(bufferedOutputStream);
-                        mSemaphore.release(permits);
+                        discard();
+                    } catch (RuntimeException e) {
+                        discard();
                     }
                 }
+                if (!notifyListeners(savedFile)) {
+                    throw new RuntimeException("could not download file");
+                }
+            } catch (Exception e) {
 
-                List<HttpDiskCacheListener> listeners = getAndRemoveListenerList(url);
-                if (listeners != null) {
-                    if (success) {
-                        //下载成功
-                        for (HttpDiskCacheListener listener : listeners) {
-                            boolean checked = listener.isProcessCheck(url, suffix);
-                            //任务有效
-                            if (checked) {
-                                listener.onHttpDiskCacheSuccess(url, suffix, savedFile);
-                            }
-                        }
-                    } else {
-                        //下载失败
-                        for (HttpDiskCacheListener listener : listeners) {
-                            boolean checked = listener.isProcessCheck(url, suffix);
-                            //任务有效
-                            if (checked) {
-                                listener.onHttpDiskCacheFailed(url, suffix);
-                            }
-                        }
-                        throw new RuntimeException("could not download file");
+            } finally {
+                mScheduler.release(ticket);
+                mDownloadLockPool.unlock(url);
+            }
+        }
+
+        /**
+         * 下载到partFile, 有校验值时从已下载的位置续传, 完成后提交
+         *
+         * @param ticket 记录下载的字节数
+         * @return 下载完成的文件
+         * @throws IOException
+         */
+        private File download(DownloadScheduler.Ticket ticket) throws IOException {
+            if (this.partFile == null) {
+                this.validator = null;
+                if (mOriginalsCache != null) {
+                    //直接写入原图缓存的Editor, 重试期间一直持有
+                    this.editor = mOriginalsCache.edit(fileName(url, suffix));
+                    if (this.editor == null) {
+                        throw new IOException("original is being edited");
                     }
+                    this.partFile = this.editor.newOutputFile(ORIGINAL_INDEX);
+                } else {
+                    this.partFile = new File(mDownloadCacheDir, fileName(url, suffix) + PART_SUFFIX);
+                    //上次运行留下的部分文件
+                    this.validator = readValidator(this.partFile);
                 }
-            } catch (Exception e) {
+            }
+            long downloaded = this.validator != null ? this.partFile.length() : 0;
+
+            Map<String, String> headers = new HashMap<>();
+            //续传按原始字节计算偏移,不能使用压缩传输
+            headers.put("Accept-Encoding", "identity");
+            if (downloaded > 0) {
+                headers.put("Range", "bytes=" + downloaded + "-");
+                //资源已变化时服务器返回完整的200响应
+                headers.put("If-Range", this.validator);
+            }
 
+            HttpResponse response = null;
+            OutputStream outputStream = null;
+            long startLength = downloaded;
+            try {
+                this.token.throwIfCancelled();
+                response = mTransport.get(url, headers);
+                this.response = response;
+                //连接期间已取消
+                this.token.throwIfCancelled();
+                int statusCode = response.getStatusCode();
+                boolean append;
+                if (statusCode == HttpURLConnection.HTTP_PARTIAL && downloaded > 0
+                        && contentRangeStart(response.getHeader("Content-Range")) == downloaded) {
+                    append = true;
+                } else if (statusCode == HttpURLConnection.HTTP_OK) {
+                    append = false;
+                    downloaded = 0;
+                    startLength = 0;
+                    this.validator = validatorOf(response);
+                    if (this.editor == null) {
+                        writeValidator(this.partFile, this.validator);
+                    }
+                } else {
+                    //无法续传,下次从头下载
+                    this.validator = null;
+                    if (this.editor == null) {
+                        writeValidator(this.partFile, null);
+                    }
+                    throw new IOException("unexpected status code " + statusCode);
+                }
+                this.metadata = OriginalMetadata.fromResponse(response, System.currentTimeMillis());
+                long contentLength = response.getContentLength();
+                this.contentLength = contentLength >= 0 ? downloaded + contentLength : -1;
+                mScheduler.updateExpectedBytes(ticket, contentLength);
+                outputStream = new BufferedOutputStream(new FileOutputStream(this.partFile, append), 8 * 1024);
+                long copied;
+                try {
+                    copied = IOUtils.copy(response.getBody(), outputStream, this.token);
+                } catch (IOException e) {
+                    //断开连接导致的异常也按取消处理
+                    this.token.throwIfCancelled();
+                    throw e;
+                }
+                outputStream.close();
+                outputStream = null;
+                if (contentLength >= 0 && copied != contentLength) {
+                    throw new IOException("expected " + contentLength + " bytes but got " + copied);
+                }
+            } finally {
+                //关闭时写出已收到的数据,用于续传
+                IOUtils.closeQuietly(outputStream);
+                //关闭response而非inputStream,使连接可被复用
+                this.response = null;
+                IOUtils.closeQuietly(response);
+                ticket.addBytes(this.partFile.length() - startLength);
+            }
+
+            File partFile = this.partFile;
+            DiskLruCache.Editor editor = this.editor;
+            OriginalMetadata metadata = this.metadata;
+            this.partFile = null;
+            this.editor = null;
+            this.validator = null;
+            this.metadata = null;
+            this.contentLength = -1;
+            if (editor != null) {
+                try {
+                    writeMetadata(editor, metadata);
+                    editor.commit();
+                } finally {
+                    editor.abortUnlessCommitted();
+                }
+                return downloadedFile(url, suffix);
+            }
+            validatorFile(partFile).delete();
+            File file = filePath(url, suffix);
+            if (!partFile.renameTo(file)) {
+                partFile.delete();
+                throw new IOException("could not rename " + partFile);
+            }
+            return file;
+        }
+
+        /**
+         * 放弃已下载的部分
+         */
+        private void discard() {
+            if (this.editor != null) {
+                this.editor.abortUnlessCommitted();
+            } else if (this.partFile != null) {
+                this.partFile.delete();
+                validatorFile(this.partFile).delete();
+            }
+            this.editor = null;
+            this.partFile = null;
+            this.validator = null;
+            this.metadata = null;
+            this.contentLength = -1;
+        }
+
+        /**
+         * 通知并移除监听
+         *
+         * @param savedFile 为null时表示下载失败
+         * @return 是否成功
+         */
+        private boolean notifyListeners(File savedFile) {
+            List<HttpDiskCacheListener> listeners = getAndRemoveListenerList(this);
+            if (listeners == null) {
+                return true;
+            }
+            for (HttpDiskCacheListener listener : listeners) {
+                boolean checked = listener.isProcessCheck(url, suffix);
+                //任务有效
+                if (!checked) {
+                    continue;
+                }
+                if (savedFile != null) {
+                    //下载成功
+                    listener.onHttpDiskCacheSuccess(url, suffix, savedFile);
+                } else {
+                    //下载失败
+                    listener.onHttpDiskCacheFailed(url, suffix);
+                }
+            }
+            return savedFile != null;
+        }
+    }
+
+    /**
+     * 用If-None-Match/If-Modified-Since重新验证过期的原图
+     * 304时只更新元数据, 200时替换原图, 失败时稍后再试
+     */
+    class RevalidateTask implements Runnable, DownloadScheduler.Callback {
+        final String url;
+        final String suffix;
+        DownloadScheduler.Ticket ticket;
+
+        RevalidateTask(String url, String suffix) {
+            this.url = url;
+            this.suffix = suffix;
+        }
+
+        /**
+         * 大多只返回304,按最小的许可单位申请
+         */
+        void schedule() {
+            mScheduler.schedule(url, DownloadScheduler.UNIT_BYTES, this);
+        }
+
+        @Override
+        public void onGranted(DownloadScheduler.Ticket ticket) {
+            this.ticket = ticket;
+            try {
+                mDownloadExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                this.ticket = null;
+                mScheduler.release(ticket);
+                mRevalidatingUrls.remove(url);
+            }
+        }
+
+        @Override
+        public void run() {
+            DownloadScheduler.Ticket ticket = this.ticket;
+            this.ticket = null;
+            if (ticket == null) {
+                schedule();
+                return;
+            }
+            mDownloadLockPool.lock(url);
+            try {
+                revalidate(ticket);
+            } catch (IOException | RuntimeException e) {
+                Log.d("HttpTaskController", "could not revalidate " + url);
             } finally {
+                mScheduler.release(ticket);
+                mRevalidatingUrls.remove(url);
                 mDownloadLockPool.unlock(url);
             }
         }
 
-        public void reset() {
-            this.priority = getPriority(highPriority);
-            //许可证越高,优先级越低
-            this.priority -= 100 * this.permits;
-            this.created = System.currentTimeMillis();
-            //运行次数(retry)越高,优先级越低
-            this.priority -= 1000 * this.retryCount;
+        private void revalidate(DownloadScheduler.Ticket ticket) throws IOException {
+            DiskLruCache.Snapshot snapshot = mOriginalsCache.get(fileName(url, suffix));
+            if (snapshot == null) {
+                return;
+            }
+            OriginalMetadata metadata;
+            DiskLruCache.Editor editor;
+            try {
+                metadata = readMetadata(snapshot);
+                if (metadata != null && metadata.isFresh(System.currentTimeMillis())) {
+                    return;
+                }
+                //条目已变化或正在编辑时返回null
+                editor = snapshot.edit();
+            } finally {
+                snapshot.close();
+            }
+            if (editor == null) {
+                return;
+            }
+
+            HttpResponse response = null;
+            try {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Accept-Encoding", "identity");
+                boolean conditional = metadata != null && metadata.addConditionalHeaders(headers);
+                try {
+                    response = mTransport.get(url, headers);
+                } catch (IOException e) {
+                    if (metadata != null) {
+                        //网络不可用时不在每次使用时都重试
+                        writeMetadata(editor, metadata.withExpires(System.currentTimeMillis() + REVALIDATE_RETRY_DELAY));
+                        editor.commit();
+                    }
+                    throw e;
+                }
+                long now = System.currentTimeMillis();
+                int statusCode = response.getStatusCode();
+                if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && conditional) {
+                    writeMetadata(editor, metadata.revalidated(response, now));
+                } else if (statusCode == HttpURLConnection.HTTP_OK) {
+                    long contentLength = response.getContentLength();
+                    InputStream inputStream = response.getBody();
+                    OutputStream outputStream = new BufferedOutputStream(editor.newOutputStream(ORIGINAL_INDEX), 8 * 1024);
+                    long copied;
+                    try {
+                        copied = IOUtils.copy(inputStream, outputStream);
+                    } finally {
+                        outputStream.close();
+                    }
+                    ticket.addBytes(copied);
+                    if (contentLength >= 0 && copied != contentLength) {
+                        throw new IOException("expected " + contentLength + " bytes but got " + copied);
+                    }
+                    writeMetadata(editor, OriginalMetadata.fromResponse(response, now));
+                } else {
+                    throw new IOException("unexpected status code " + statusCode);
+                }
+                editor.commit();
+            } finally {
+                IOUtils.closeQuietly(response);
+                editor.abortUnlessCommitted();
+            }
         }
     }
 
@@ -0,0 +1,20 @@
+package com.ttwishing.library.http;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * 下载所用的http传输层,可替换为你自己的http client
+ */
+public interface HttpTransport {
+
+    /**
+     * 发起GET请求,返回时已收到响应头
+     *
+     * @param url
+     * @param requestHeaders 额外的请求头,可为null
+     * @return 使用完后必须close,以便连接被复用
+     * @throws IOException
+     */
+    HttpResponse get(String url, Map<String, String> requestHeaders) throws IOException;
+}
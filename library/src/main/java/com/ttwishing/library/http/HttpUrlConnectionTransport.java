@@ -0,0 +1,183 @@
+package com.ttwishing.library.http;
+
+import com.ttwishing.library.base.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 基于HttpURLConnection的默认传输层
+ *
+ * 1.keep-alive:HttpURLConnection自带按host的空闲连接池,响应体读完并关闭(而非disconnect)后连接放回池中,
+ *   close时会读完剩余的少量数据,使连接可被复用
+ * 2.不限制并发量,每个host同时使用的连接数由调用方控制(见DownloadScheduler),以便排队中的请求可被取消
+ * 3.主动声明Accept-Encoding: gzip,并自行解压
+ */
+public class HttpUrlConnectionTransport implements HttpTransport {
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+    private static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+    //close时最多读取的剩余字节数,超出则断开连接,不再复用
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    public HttpUrlConnectionTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * @param connectTimeout 连接超时, 毫秒
+     * @param readTimeout    读取超时, 毫秒
+     */
+    public HttpUrlConnectionTransport(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public HttpResponse get(String url, Map<String, String> requestHeaders) throws IOException {
+        URL target = new URL(url);
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) target.openConnection();
+            connection.setConnectTimeout(this.connectTimeout);
+            connection.setReadTimeout(this.readTimeout);
+            connection.setInstanceFollowRedirects(true);
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (requestHeaders != null) {
+                for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            //发出请求并读取响应头
+            connection.getResponseCode();
+            return new UrlConnectionResponse(connection);
+        } catch (IOException | RuntimeException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            throw e;
+        }
+    }
+
+    private static final class UrlConnectionResponse implements HttpResponse {
+
+        private final HttpURLConnection connection;
+        private final int statusCode;
+        //未解压的原始响应体
+        private InputStream rawBody;
+        private InputStream body;
+        private boolean closed;
+        private volatile boolean aborted;
+
+        UrlConnectionResponse(HttpURLConnection connection) throws IOException {
+            this.connection = connection;
+            this.statusCode = connection.getResponseCode();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return this.statusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return this.connection.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            if ("gzip".equalsIgnoreCase(getHeader("Content-Encoding"))) {
+                //解压后长度未知
+                return -1;
+            }
+            String contentLength = getHeader("Content-Length");
+            if (contentLength == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public synchronized InputStream getBody() throws IOException {
+            if (this.closed) {
+                throw new IllegalStateException("response is closed");
+            }
+            if (this.body == null) {
+                this.rawBody = this.statusCode >= 400 ? this.connection.getErrorStream() : this.connection.getInputStream();
+                if (this.rawBody == null) {
+                    this.rawBody = new ByteArrayInputStream(new byte[0]);
+                }
+                if ("gzip".equalsIgnoreCase(getHeader("Content-Encoding"))) {
+                    this.body = new GZIPInputStream(this.rawBody);
+                } else {
+                    this.body = this.rawBody;
+                }
+            }
+            return this.body;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                if (this.aborted || !drain()) {
+                    //剩余数据太多,不值得为复用而读完
+                    this.connection.disconnect();
+                }
+            } finally {
+                IOUtils.closeQuietly(this.body);
+                IOUtils.closeQuietly(this.rawBody);
+            }
+        }
+
+        @Override
+        public void abort() {
+            //不加锁,读取线程可能正持有锁阻塞在read中
+            this.aborted = true;
+            this.connection.disconnect();
+        }
+
+        /**
+         * 读完剩余的原始响应体
+         *
+         * @return 是否已读完
+         */
+        private boolean drain() {
+            try {
+                InputStream in = this.rawBody != null ? this.rawBody
+                        : (this.statusCode >= 400 ? this.connection.getErrorStream() : this.connection.getInputStream());
+                if (in == null) {
+                    return true;
+                }
+                this.rawBody = in;
+                byte[] buffer = new byte[4096];
+                long drained = 0;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    drained += read;
+                    if (drained > MAX_DRAIN_BYTES) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.ttwishing.library.http;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * 原图的http缓存元数据,保存在原图缓存条目的METADATA_INDEX值中
+ *
+ * 1.过期时间: Cache-Control的max-age优先,其次Expires,都没有时按Last-Modified至今时长的1/10估算,再没有则默认1天
+ * 2.no-cache/no-store视为立即过期,每次使用都在后台重新验证
+ * 3.ETag和Last-Modified用于If-None-Match和If-Modified-Since
+ */
+final class OriginalMetadata {
+
+    private static final int VERSION = 1;
+    //没有任何缓存相关的响应头时的有效期
+    private static final long DEFAULT_FRESHNESS = 24 * 60 * 60 * 1000L;
+    //按Last-Modified估算的有效期上限
+    private static final long MAX_HEURISTIC_FRESHNESS = 7 * 24 * 60 * 60 * 1000L;
+
+    final String etag;
+    final String lastModified;
+    //过期的时间点(System.currentTimeMillis)
+    final long expires;
+
+    OriginalMetadata(String etag, String lastModified, long expires) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+
+    /**
+     * 根据200或206响应生成
+     *
+     * @param response
+     * @param now
+     * @return
+     */
+    static OriginalMetadata fromResponse(HttpResponse response, long now) {
+        String lastModified = response.getHeader("Last-Modified");
+        return new OriginalMetadata(response.getHeader("ETag"), lastModified, expiresOf(response, lastModified, now));
+    }
+
+    /**
+     * 304响应后更新, 响应中没有的校验值沿用原值
+     *
+     * @param notModified
+     * @param now
+     * @return
+     */
+    OriginalMetadata revalidated(HttpResponse notModified, long now) {
+        String etag = notModified.getHeader("ETag");
+        String lastModified = notModified.getHeader("Last-Modified");
+        if (etag == null) {
+            etag = this.etag;
+        }
+        if (lastModified == null) {
+            lastModified = this.lastModified;
+        }
+        return new OriginalMetadata(etag, lastModified, expiresOf(notModified, lastModified, now));
+    }
+
+    /**
+     * 保留校验值,修改过期时间
+     *
+     * @param expires
+     * @return
+     */
+    OriginalMetadata withExpires(long expires) {
+        return new OriginalMetadata(this.etag, this.lastModified, expires);
+    }
+
+    boolean isFresh(long now) {
+        return now < this.expires;
+    }
+
+    /**
+     * 添加条件请求头
+     *
+     * @param headers
+     * @return 是否有可用的校验值
+     */
+    boolean addConditionalHeaders(Map<String, String> headers) {
+        if (this.etag != null) {
+            headers.put("If-None-Match", this.etag);
+        }
+        if (this.lastModified != null) {
+            headers.put("If-Modified-Since", this.lastModified);
+        }
+        return this.etag != null || this.lastModified != null;
+    }
+
+    void write(OutputStream os) throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(os);
+        dataOutputStream.writeByte(VERSION);
+        writeString(dataOutputStream, this.etag);
+        writeString(dataOutputStream, this.lastModified);
+        dataOutputStream.writeLong(this.expires);
+        dataOutputStream.flush();
+    }
+
+    static OriginalMetadata read(InputStream is) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(is);
+        int version = dataInputStream.readByte();
+        if (version != VERSION) {
+            throw new IOException("unexpected metadata version " + version);
+        }
+        String etag = readString(dataInputStream);
+        String lastModified = readString(dataInputStream);
+        return new OriginalMetadata(etag, lastModified, dataInputStream.readLong());
+    }
+
+    private static void writeString(DataOutputStream os, String value) throws IOException {
+        os.writeBoolean(value != null);
+        if (value != null) {
+            os.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream is) throws IOException {
+        return is.readBoolean() ? is.readUTF() : null;
+    }
+
+    private static long expiresOf(HttpResponse response, String lastModified, long now) {
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return now;
+                }
+                if (directive.startsWith("max-age=")) {
+                    long maxAge = parseSeconds(directive.substring("max-age=".length()));
+                    if (maxAge >= 0) {
+                        //减去响应在其它缓存中已存放的时间
+                        long age = Math.max(0, parseSeconds(response.getHeader("Age")));
+                        return now + Math.max(0, maxAge - age) * 1000L;
+                    }
+                }
+            }
+        }
+
+        //以服务器时间计算时长,避免本地时钟误差
+        long date = parseDate(response.getHeader("Date"));
+        long serverNow = date > 0 ? date : now;
+
+        String expires = response.getHeader("Expires");
+        if (expires != null) {
+            //无法解析的Expires视为已过期
+            long expiresAt = parseDate(expires);
+            return expiresAt > 0 ? now + Math.max(0, expiresAt - serverNow) : now;
+        }
+
+        long lastModifiedAt = parseDate(lastModified);
+        if (lastModifiedAt > 0 && serverNow > lastModifiedAt) {
+            return now + Math.min((serverNow - lastModifiedAt) / 10, MAX_HEURISTIC_FRESHNESS);
+        }
+        return now + DEFAULT_FRESHNESS;
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 解析RFC 1123格式的http日期
+     *
+     * @param value
+     * @return 无法解析时返回-1
+     */
+    private static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        //SimpleDateFormat非线程安全,每次新建
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.ttwishing.library.tasks;
+
+import com.ttwishing.library.util.TimerWheel;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 按排队等待时间调整线程池大小
+ *
+ * 1.每个任务开始执行时记录其排队时间,结束时记录完成数
+ * 2.有任务时每SAMPLE_INTERVAL_MILLIS计算一次排队时间的p50/p90和吞吐量,没有任务时不再计算
+ * 3.加法增加: p90连续UP_WINDOWS个周期超过HIGH_WAIT_MILLIS时加1个线程;
+ *   上次加线程后吞吐量没有提高(瓶颈不在线程数,如带宽),则暂不再加,直到吞吐量变化
+ * 4.乘法减少: p90连续DOWN_WINDOWS个周期低于LOW_WAIT_MILLIS时减为3/4
+ * 5.两个阈值之间的区域和连续周期数构成滞后,线程数不会随单个任务来回变化
+ */
+public class AdaptivePoolController {
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 1000L;
+    private static final long HIGH_WAIT_MILLIS = 500L;
+    private static final long LOW_WAIT_MILLIS = 50L;
+    private static final int UP_WINDOWS = 2;
+    private static final int DOWN_WINDOWS = 5;
+    //吞吐量提高不足该比例时,认为加线程无效
+    private static final float MIN_GAIN = 0.05f;
+    private static final int MAX_SAMPLES = 256;
+
+    //所有线程池共用一个计时线程
+    private static final TimerWheel sTimer = new TimerWheel("pool-controller", 100, 64);
+
+    public enum Decision {
+        HOLD,
+        INCREASE,
+        DECREASE
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int minThreads;
+    private final int maxThreads;
+
+    //当前周期的排队时间, 超出MAX_SAMPLES时覆盖最早的
+    private final long[] waits = new long[MAX_SAMPLES];
+    private int waitCount;
+    private long completed;
+    private boolean tickScheduled;
+
+    private int upWindows;
+    private int downWindows;
+    //上次加线程前的吞吐量, 小于0表示不受限
+    private float throughputBeforeIncrease = -1;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+        }
+    };
+
+    //指标
+    private long p50;
+    private long p90;
+    private float throughput;
+    private Decision lastDecision = Decision.HOLD;
+    private long increases;
+    private long decreases;
+
+    /**
+     * @param executor   被调整的线程池
+     * @param minThreads
+     * @param maxThreads
+     */
+    public AdaptivePoolController(ThreadPoolExecutor executor, int minThreads, int maxThreads) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("invalid thread range " + minThreads + ".." + maxThreads);
+        }
+        this.executor = executor;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * 任务开始执行时调用
+     *
+     * @param waitMillis 排队时间
+     */
+    public synchronized void recordWait(long waitMillis) {
+        this.waits[this.waitCount % MAX_SAMPLES] = waitMillis;
+        this.waitCount++;
+        if (!this.tickScheduled) {
+            this.tickScheduled = true;
+            sTimer.schedule(this.tick, SAMPLE_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * 任务结束时调用
+     */
+    public synchronized void recordCompletion() {
+        this.completed++;
+    }
+
+    private void evaluate() {
+        int target;
+        synchronized (this) {
+            int samples = Math.min(this.waitCount, MAX_SAMPLES);
+            boolean queued = !this.executor.getQueue().isEmpty();
+            if (samples == 0 && this.completed == 0 && !queued) {
+                //空闲,等下一个任务时再开始计时
+                this.tickScheduled = false;
+                return;
+            }
+            long[] sorted = Arrays.copyOf(this.waits, samples);
+            Arrays.sort(sorted);
+            this.p50 = percentile(sorted, 50);
+            this.p90 = percentile(sorted, 90);
+            this.throughput = this.completed * 1000f / SAMPLE_INTERVAL_MILLIS;
+            this.waitCount = 0;
+            this.completed = 0;
+
+            int current = this.executor.getCorePoolSize();
+            target = current;
+            //队列中还有任务未开始时,也按等待过久处理
+            boolean slow = this.p90 > HIGH_WAIT_MILLIS || (samples == 0 && queued);
+            boolean idle = this.p90 < LOW_WAIT_MILLIS && !queued;
+            this.upWindows = slow ? this.upWindows + 1 : 0;
+            this.downWindows = idle ? this.downWindows + 1 : 0;
+
+            if (this.throughputBeforeIncrease >= 0
+                    && this.throughput > this.throughputBeforeIncrease * (1 + MIN_GAIN)) {
+                //上次加线程有效,不再受限
+                this.throughputBeforeIncrease = -1;
+            }
+
+            this.lastDecision = Decision.HOLD;
+            if (this.upWindows >= UP_WINDOWS && current < this.maxThreads && this.throughputBeforeIncrease < 0) {
+                target = current + 1;
+                this.throughputBeforeIncrease = this.throughput;
+                this.upWindows = 0;
+                this.lastDecision = Decision.INCREASE;
+                this.increases++;
+            } else if (this.downWindows >= DOWN_WINDOWS && current > this.minThreads) {
+                target = Math.max(this.minThreads, Math.min(current - 1, current * 3 / 4));
+                this.throughputBeforeIncrease = -1;
+                this.downWindows = 0;
+                this.lastDecision = Decision.DECREASE;
+                this.decreases++;
+            } else if (!slow) {
+                //负载变化后允许再次尝试加线程
+                this.throughputBeforeIncrease = -1;
+            }
+            sTimer.schedule(this.tick, SAMPLE_INTERVAL_MILLIS);
+        }
+        if (target != this.executor.getCorePoolSize()) {
+            resize(this.executor, target);
+        }
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    /**
+     * 修改线程数, 保证core不大于max
+     *
+     * @param executor
+     * @param threadCount
+     */
+    static void resize(ThreadPoolExecutor executor, int threadCount) {
+        synchronized (executor) {
+            if (threadCount < executor.getCorePoolSize()) {
+                executor.setCorePoolSize(threadCount);
+                executor.setMaximumPoolSize(threadCount);
+            } else if (threadCount > executor.getCorePoolSize()) {
+                executor.setMaximumPoolSize(threadCount);
+                executor.setCorePoolSize(threadCount);
+            }
+        }
+    }
+
+    public synchronized Metrics getMetrics() {
+        return new Metrics(this.executor.getCorePoolSize(), this.executor.getQueue().size(), this.p50, this.p90,
+                this.throughput, this.lastDecision, this.increases, this.decreases);
+    }
+
+    /**
+     * 最近一个周期的统计和调整结果
+     */
+    public static final class Metrics {
+        private final int poolSize;
+        private final int queueSize;
+        private final long p50WaitMillis;
+        private final long p90WaitMillis;
+        private final float throughput;
+        private final Decision lastDecision;
+        private final long increases;
+        private final long decreases;
+
+        Metrics(int poolSize, int queueSize, long p50WaitMillis, long p90WaitMillis, float throughput,
+                Decision lastDecision, long increases, long decreases) {
+            this.poolSize = poolSize;
+            this.queueSize = queueSize;
+            this.p50WaitMillis = p50WaitMillis;
+            this.p90WaitMillis = p90WaitMillis;
+            this.throughput = throughput;
+            this.lastDecision = lastDecision;
+            this.increases = increases;
+            this.decreases = decreases;
+        }
+
+        public int getPoolSize() {
+            return this.poolSize;
+        }
+
+        public int getQueueSize() {
+            return this.queueSize;
+        }
+
+        public long getP50WaitMillis() {
+            return this.p50WaitMillis;
+        }
+
+        public long getP90WaitMillis() {
+            return this.p90WaitMillis;
+        }
+
+        //每秒完成的任务数
+        public float getThroughput() {
+            return this.throughput;
+        }
+
+        public Decision getLastDecision() {
+            return this.lastDecision;
+        }
+
+        public long getIncreases() {
+            return this.increases;
+        }
+
+        public long getDecreases() {
+            return this.decreases;
+        }
+
+        @Override
+        public String toString() {
+            return "pool=" + this.poolSize + " queue=" + this.queueSize + " p50=" + this.p50WaitMillis + "ms p90="
+                    + this.p90WaitMillis + "ms throughput=" + this.throughput + "/s last=" + this.lastDecision
+                    + " increases=" + this.increases + " decreases=" + this.decreases;
+        }
+    }
+}
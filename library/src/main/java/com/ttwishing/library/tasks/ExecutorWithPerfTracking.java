@@ -1,22 +1,42 @@
 package com.ttwishing.library.tasks;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 创建可跟踪的任务队列
+ *
+ * 所有提交方式(execute,submit,invokeAll,invokeAny)的任务都经过包装,记录排队时间,执行时间和结果;
+ * 计数均不加锁,getMetrics返回快照
  */
 public abstract class ExecutorWithPerfTracking implements ExecutorService {
 
     private final String mName;
     private final ExecutorService mExecutorService;
 
+    private final LatencyHistogram mQueueWait = new LatencyHistogram();
+    private final LatencyHistogram mRunTime = new LatencyHistogram();
+    //已提交尚未开始的任务数
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicLong mSucceeded = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    //开始前被取消
+    private final AtomicLong mCancelled = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+
     public ExecutorWithPerfTracking(ExecutorService executorService, String name) {
         this.mExecutorService = executorService;
         this.mName = name;
@@ -24,7 +44,13 @@ public abstract class ExecutorWithPerfTracking implements ExecutorService {
 
     @Override
     public void execute(Runnable command) {
-        mExecutorService.execute(new RunnableWrapper(command));
+        RunnableWrapper wrapper = new RunnableWrapper(command);
+        try {
+            mExecutorService.execute(wrapper);
+        } catch (RejectedExecutionException e) {
+            wrapper.reject();
+            throw e;
+        }
     }
 
     @Override
@@ -35,26 +61,65 @@ public abstract class ExecutorWithPerfTracking implements ExecutorService {
     @Override
     public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks)
             throws InterruptedException {
-        return mExecutorService.invokeAll(tasks);
+        List<CallableWrapper<T>> wrappers = wrap(tasks);
+        try {
+            return mExecutorService.invokeAll(wrappers);
+        } finally {
+            abandon(wrappers);
+        }
     }
 
     @Override
     public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
             throws InterruptedException {
-        return mExecutorService.invokeAll(tasks, timeout, unit);
+        List<CallableWrapper<T>> wrappers = wrap(tasks);
+        try {
+            return mExecutorService.invokeAll(wrappers, timeout, unit);
+        } finally {
+            abandon(wrappers);
+        }
     }
 
     @Override
     public <T> T invokeAny(Collection<? extends Callable<T>> tasks)
             throws InterruptedException, ExecutionException {
-        return mExecutorService.invokeAny(tasks);
+        List<CallableWrapper<T>> wrappers = wrap(tasks);
+        try {
+            return mExecutorService.invokeAny(wrappers);
+        } finally {
+            abandon(wrappers);
+        }
     }
 
     @Override
     public <T> T invokeAny(Collection<? extends Callable<T>> tasks,
                            long timeout, TimeUnit unit) throws InterruptedException,
             ExecutionException, TimeoutException {
-        return mExecutorService.invokeAny(tasks, timeout, unit);
+        List<CallableWrapper<T>> wrappers = wrap(tasks);
+        try {
+            return mExecutorService.invokeAny(wrappers, timeout, unit);
+        } finally {
+            abandon(wrappers);
+        }
+    }
+
+    private <T> List<CallableWrapper<T>> wrap(Collection<? extends Callable<T>> tasks) {
+        List<CallableWrapper<T>> wrappers = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            wrappers.add(new CallableWrapper<>(task));
+        }
+        return wrappers;
+    }
+
+    /**
+     * invokeAll/invokeAny返回时未开始的任务已被取消或未提交
+     *
+     * @param wrappers
+     */
+    private <T> void abandon(List<CallableWrapper<T>> wrappers) {
+        for (int i = 0; i < wrappers.size(); i++) {
+            wrappers.get(i).abandon();
+        }
     }
 
     @Override
@@ -79,16 +144,45 @@ public abstract class ExecutorWithPerfTracking implements ExecutorService {
 
     @Override
     public <T> Future<T> submit(Callable<T> task) {
-        return mExecutorService.submit(task);
+        return submitTracked(new CallableWrapper<>(task));
     }
 
     @Override
     public Future<?> submit(Runnable task) {
-        return mExecutorService.submit(task);
+        return submitTracked(new CallableWrapper<>(task, null));
     }
 
     public <T extends Object> Future<T> submit(Runnable task, T result) {
-        return mExecutorService.submit(task, result);
+        return submitTracked(new CallableWrapper<>(task, result));
+    }
+
+    private <T> Future<T> submitTracked(final CallableWrapper<T> wrapper) {
+        FutureTask<T> future = new FutureTask<T>(wrapper) {
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    //开始前被取消时不会再执行
+                    wrapper.abandon();
+                }
+            }
+        };
+        try {
+            mExecutorService.execute(future);
+        } catch (RejectedExecutionException e) {
+            wrapper.reject();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * 排队时间,执行时间,结果计数和当前排队数的快照
+     *
+     * @return
+     */
+    public Metrics getMetrics() {
+        return new Metrics(mName, mQueueWait.snapshot(), mRunTime.snapshot(), mQueued.get(), mActive.get(),
+                mSucceeded.get(), mFailed.get(), mCancelled.get(), mRejected.get());
     }
 
     @Override
@@ -96,7 +190,60 @@ public abstract class ExecutorWithPerfTracking implements ExecutorService {
         return "ExecutorWithPerfTracking ~ " + mName;
     }
 
-    class RunnableWrapper implements Runnable {
+    /**
+     * 记录一个任务从提交到结束, 每个任务只开始或放弃一次
+     */
+    abstract class Tracker {
+
+        private final long enqueueNanos = System.nanoTime();
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        Tracker() {
+            mQueued.incrementAndGet();
+        }
+
+        /**
+         * @return 开始时的时间
+         */
+        long begin() {
+            long now = System.nanoTime();
+            if (started.compareAndSet(false, true)) {
+                mQueued.decrementAndGet();
+                mQueueWait.record((now - enqueueNanos) / 1000);
+            }
+            mActive.incrementAndGet();
+            return now;
+        }
+
+        void end(long startNanos, boolean failed) {
+            mActive.decrementAndGet();
+            mRunTime.record((System.nanoTime() - startNanos) / 1000);
+            if (failed) {
+                mFailed.incrementAndGet();
+            } else {
+                mSucceeded.incrementAndGet();
+            }
+        }
+
+        /**
+         * 未开始就不再执行
+         */
+        void abandon() {
+            if (started.compareAndSet(false, true)) {
+                mQueued.decrementAndGet();
+                mCancelled.incrementAndGet();
+            }
+        }
+
+        void reject() {
+            if (started.compareAndSet(false, true)) {
+                mQueued.decrementAndGet();
+                mRejected.incrementAndGet();
+            }
+        }
+    }
+
+    class RunnableWrapper extends Tracker implements Runnable {
 
         Runnable runnable;
 
@@ -106,8 +253,127 @@ public abstract class ExecutorWithPerfTracking implements ExecutorService {
 
         @Override
         public void run() {
-            //此处记录
-            runnable.run();
+            long start = begin();
+            boolean failed = true;
+            try {
+                runnable.run();
+                failed = false;
+            } finally {
+                end(start, failed);
+            }
+        }
+    }
+
+    class CallableWrapper<T> extends Tracker implements Callable<T> {
+
+        private final Callable<T> callable;
+        private final Runnable runnable;
+        private final T result;
+
+        CallableWrapper(Callable<T> callable) {
+            this.callable = callable;
+            this.runnable = null;
+            this.result = null;
+        }
+
+        CallableWrapper(Runnable runnable, T result) {
+            this.callable = null;
+            this.runnable = runnable;
+            this.result = result;
+        }
+
+        @Override
+        public T call() throws Exception {
+            long start = begin();
+            boolean failed = true;
+            try {
+                T value;
+                if (callable != null) {
+                    value = callable.call();
+                } else {
+                    runnable.run();
+                    value = result;
+                }
+                failed = false;
+                return value;
+            } finally {
+                end(start, failed);
+            }
+        }
+    }
+
+    /**
+     * 一个线程池的统计快照, 耗时单位微秒
+     */
+    public static final class Metrics {
+        private final String name;
+        private final LatencyHistogram.Snapshot queueWait;
+        private final LatencyHistogram.Snapshot runTime;
+        private final int queueDepth;
+        private final int active;
+        private final long succeeded;
+        private final long failed;
+        private final long cancelled;
+        private final long rejected;
+
+        Metrics(String name, LatencyHistogram.Snapshot queueWait, LatencyHistogram.Snapshot runTime, int queueDepth,
+                int active, long succeeded, long failed, long cancelled, long rejected) {
+            this.name = name;
+            this.queueWait = queueWait;
+            this.runTime = runTime;
+            this.queueDepth = queueDepth;
+            this.active = active;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.cancelled = cancelled;
+            this.rejected = rejected;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        //从提交到开始执行
+        public LatencyHistogram.Snapshot getQueueWait() {
+            return this.queueWait;
+        }
+
+        public LatencyHistogram.Snapshot getRunTime() {
+            return this.runTime;
+        }
+
+        //已提交尚未开始的任务数
+        public int getQueueDepth() {
+            return this.queueDepth;
+        }
+
+        public int getActive() {
+            return this.active;
+        }
+
+        public long getSucceeded() {
+            return this.succeeded;
+        }
+
+        //抛出异常
+        public long getFailed() {
+            return this.failed;
+        }
+
+        //开始前被取消
+        public long getCancelled() {
+            return this.cancelled;
+        }
+
+        public long getRejected() {
+            return this.rejected;
+        }
+
+        @Override
+        public String toString() {
+            return this.name + " queue=" + this.queueDepth + " active=" + this.active + " wait[" + this.queueWait
+                    + "] run[" + this.runTime + "] succeeded=" + this.succeeded + " failed=" + this.failed
+                    + " cancelled=" + this.cancelled + " rejected=" + this.rejected;
         }
     }
 }
\ No newline at end of file
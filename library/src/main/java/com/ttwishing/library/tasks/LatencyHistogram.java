@@ -0,0 +1,151 @@
+package com.ttwishing.library.tasks;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按对数分桶的耗时直方图, 单位微秒, 记录不加锁
+ *
+ * 1.小于SUB_BUCKETS的值每个值一个桶;之后每个2的幂区间再均分为SUB_BUCKETS个桶,相对误差不超过1/SUB_BUCKETS
+ * 2.超过2^MAX_EXPONENT的值计入最后一个桶
+ * 3.快照时各桶分别读取,与并发的记录之间不保证一致,用于统计足够
+ */
+public class LatencyHistogram {
+
+    //每个2的幂区间的桶数,须为2的幂
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //约2^40微秒,即12天
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param micros 耗时, 小于0时按0记录
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        this.counts.incrementAndGet(bucketOf(micros));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(micros);
+        long current;
+        while (micros > (current = this.max.get())) {
+            if (this.max.compareAndSet(current, micros)) {
+                break;
+            }
+        }
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int mantissa = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * 桶内的最大值
+     *
+     * @param bucket
+     * @return
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = this.counts.get(i);
+            total += counts[i];
+        }
+        long max = this.max.get();
+        long sum = this.sum.get();
+        return new Snapshot(total, total == 0 ? 0 : sum / total, percentile(counts, total, 50, max),
+                percentile(counts, total, 95, max), percentile(counts, total, 99, max), max);
+    }
+
+    private static long percentile(long[] counts, long total, int percent, long max) {
+        if (total == 0) {
+            return 0;
+        }
+        //第rank个值所在的桶
+        long rank = Math.max(1, (total * percent + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * 某一时刻的统计, 单位微秒
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p95;
+        private final long p99;
+        private final long max;
+
+        Snapshot(long count, long mean, long p50, long p95, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public long getMean() {
+            return this.mean;
+        }
+
+        public long getP50() {
+            return this.p50;
+        }
+
+        public long getP95() {
+            return this.p95;
+        }
+
+        public long getP99() {
+            return this.p99;
+        }
+
+        public long getMax() {
+            return this.max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + this.count + " p50=" + this.p50 / 1000f + "ms p95=" + this.p95 / 1000f + "ms p99="
+                    + this.p99 / 1000f + "ms max=" + this.max / 1000f + "ms";
+        }
+    }
+}
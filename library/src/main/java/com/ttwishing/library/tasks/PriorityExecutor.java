@@ -1,18 +1,34 @@
 package com.ttwishing.library.tasks;
 
+import android.os.SystemClock;
+
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by kurt on 10/28/15.
  * <p/>
  * 根据当前任务的需求,需要随时更改核心线程数
+ * 线程数由AdaptivePoolController按任务排队时间在[corePoolSize, maximumPoolSize]内调整
+ *
+ * 去重不加锁: runnableMap为ConcurrentHashMap,每个RunnableWrapper的状态(排队/运行/取消)及其复用次数保存在一个AtomicInteger中,
+ * 升级优先级和取消都是对状态的CAS,只有CAS成功的一方修改runnableMap和队列;
+ * 被取消的wrapper不再回收复用,避免其它线程仍持有它时被用于别的任务
+ *
+ * 可选: lifo时同优先级的任务后提交的先执行;maxQueueSize大于0时排队数超出后丢弃优先级最低的任务中最早提交的,
+ * 被丢弃的任务实现了Discardable时会收到通知
+ * 排队中的任务另按(优先级,提交顺序)记录在evictionOrder中,丢弃时直接取其第一个,不扫描队列;
+ * 被丢弃的wrapper不从线程池队列中移除(PriorityBlockingQueue.remove需遍历),出队时发现已取消直接跳过
  */
 public class PriorityExecutor<T extends PriorityExecutor.Item> {
 
@@ -27,13 +43,52 @@ public class PriorityExecutor<T extends PriorityExecutor.Item> {
     private ThreadPoolExecutor executor;
     private final int maximumPoolSize;
     PowerMode powerMode;
+    private final AdaptivePoolController poolController;
 
-    private final Map<String, RunnableWrapper> runnableMap = new HashMap();
+    private final ConcurrentMap<String, RunnableWrapper> runnableMap = new ConcurrentHashMap<>();
 
     //对象池
-    private final LinkedList<RunnableWrapper> wrapperPool = new LinkedList();
+    private final Queue<RunnableWrapper> wrapperPool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger wrapperPoolSize = new AtomicInteger();
+
+    //同优先级时后提交的先执行
+    private final boolean lifo;
+    //最多排队的任务数,不大于0时不限
+    private final int maxQueueSize;
+    //提交顺序,用于lifo和选择被丢弃的任务
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong discardedCount = new AtomicLong();
+    //仅maxQueueSize大于0时使用: 排队中的任务, 最先被丢弃的在最前; 及其数量
+    private final ConcurrentSkipListSet<EvictionKey> evictionOrder;
+    private final AtomicInteger queuedCount = new AtomicInteger();
 
     public PriorityExecutor(String name, int corePoolSize, int maximumPoolSize, int keepAliveTime, PowerMode powerMode, boolean allowDuplicateTasks) {
+        this(name, corePoolSize, maximumPoolSize, keepAliveTime, powerMode, allowDuplicateTasks, false, 0);
+    }
+
+    /**
+     * @param name
+     * @param corePoolSize
+     * @param maximumPoolSize
+     * @param keepAliveTime
+     * @param powerMode
+     * @param allowDuplicateTasks
+     * @param lifo                同优先级时后提交的先执行
+     * @param maxQueueSize        最多排队的任务数,超出时丢弃优先级最低的任务中最早提交的;不大于0时不限
+     */
+    public PriorityExecutor(String name, int corePoolSize, int maximumPoolSize, int keepAliveTime, PowerMode powerMode,
+                            boolean allowDuplicateTasks, boolean lifo, int maxQueueSize) {
+        this.lifo = lifo;
+        this.maxQueueSize = maxQueueSize;
+        this.evictionOrder = maxQueueSize > 0 ? new ConcurrentSkipListSet<EvictionKey>(new Comparator<EvictionKey>() {
+            @Override
+            public int compare(EvictionKey lhs, EvictionKey rhs) {
+                if (lhs.priority != rhs.priority) {
+                    return lhs.priority < rhs.priority ? -1 : 1;
+                }
+                return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence > rhs.sequence ? 1 : 0);
+            }
+        }) : null;
         this.corePoolSize = corePoolSize;
         this.maximumPoolSize = maximumPoolSize;
         this.comparePriority = new ComparePriority();
@@ -43,52 +98,193 @@ public class PriorityExecutor<T extends PriorityExecutor.Item> {
 
         PriorityBlockingQueue<Runnable> workQueue = new PriorityBlockingQueue(300, this.comparePriority);
         this.executor = new ThreadPoolExecutor(threadCount, threadCount, keepAliveTime, TimeUnit.SECONDS, workQueue, new NamedThreadFactory(name));
-        setPowerMode(powerMode);
+        this.poolController = new AdaptivePoolController(this.executor, Math.max(1, corePoolSize), Math.max(1, Math.max(corePoolSize, maximumPoolSize)));
     }
 
     public boolean execute(T t) {
         if (this.allowDuplicateTasks) {
             //无验证任务是否有效
-            this.executor.execute(getWrapper(t));
+            RunnableWrapper runnableWrapper = getWrapper(t);
+            onQueued(runnableWrapper);
+            this.executor.execute(runnableWrapper);
+            trimQueue();
             return true;
         }
-        RunnableWrapper runnableWrapper;
-        synchronized (this.runnableMap) {
-            runnableWrapper = this.runnableMap.get(t.getItemKey());
-            if (runnableWrapper != null) {
-                //已存在,且新任务的优先级更高
-                if (this.comparePriority.compare((Runnable) t, (Runnable) runnableWrapper.wrapped) < 0) {
-                    //已存在的设置为不可运行, 如果原有的就不可运行则不再添加
-                    if (!runnableWrapper.canRun.getAndSet(false)) {
-                        return false;
-                    }
-
-                } else {
-                    return false;
+        String key = t.getItemKey();
+        RunnableWrapper runnableWrapper = null;
+        while (true) {
+            RunnableWrapper existing = this.runnableMap.get(key);
+            if (existing == null) {
+                if (runnableWrapper == null) {
+                    runnableWrapper = getWrapper(t);
+                }
+                if (this.runnableMap.putIfAbsent(key, runnableWrapper) == null) {
+                    break;
+                }
+                continue;
+            }
+
+            int state = existing.state.get();
+            T current = existing.wrapped;
+            if (existing.state.get() != state || current == null || !key.equals(current.getItemKey())) {
+                //读取期间被执行或回收
+                continue;
+            }
+            int status = state & RunnableWrapper.STATUS_MASK;
+            if (status == RunnableWrapper.RUNNING) {
+                //已开始执行,即将从map中移除自己
+                this.runnableMap.remove(key, existing);
+                continue;
+            }
+            if (status != RunnableWrapper.QUEUED) {
+                //正被其它线程取消或替换
+                Thread.yield();
+                continue;
+            }
+            //已存在,且新任务的优先级不高于它
+            if (this.comparePriority.compare((Runnable) t, (Runnable) current) >= 0) {
+                if (runnableWrapper != null) {
+                    recycle(runnableWrapper);
                 }
+                return false;
+            }
+            //新任务的优先级更高,取消已存在的并替换
+            if (!existing.state.compareAndSet(state, state - status + RunnableWrapper.CANCELLED)) {
+                continue;
+            }
+            onDequeued(existing);
+            if (runnableWrapper == null) {
+                runnableWrapper = getWrapper(t);
+            }
+            this.executor.remove(existing);
+            if (this.runnableMap.replace(key, existing, runnableWrapper)) {
+                break;
             }
-            runnableWrapper = getWrapper(t);
-            this.runnableMap.put(t.getItemKey(), runnableWrapper);
         }
 
+        onQueued(runnableWrapper);
         this.executor.execute(runnableWrapper);
+        trimQueue();
         return true;
     }
 
-    private RunnableWrapper getWrapper(T t) {
-        synchronized (this.wrapperPool) {
-            RunnableWrapper runnableWrapper = null;
-            int size = this.wrapperPool.size();
-            if (size > 0) {
-                runnableWrapper = this.wrapperPool.remove(-1 + this.wrapperPool.size());
+    private void onQueued(RunnableWrapper runnableWrapper) {
+        if (this.maxQueueSize > 0) {
+            this.queuedCount.incrementAndGet();
+            this.evictionOrder.add(runnableWrapper.evictionKey);
+        }
+    }
+
+    /**
+     * 由将wrapper移出QUEUED状态(CAS成功)的一方调用,之后才可能被回收复用
+     */
+    private void onDequeued(RunnableWrapper runnableWrapper) {
+        if (this.maxQueueSize > 0) {
+            this.evictionOrder.remove(runnableWrapper.evictionKey);
+            this.queuedCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 排队数超出maxQueueSize时丢弃优先级最低的任务中最早提交的, 直到不超出
+     * 每次从evictionOrder中取出一个, 已开始执行或已被取消的取出后不再处理, 循环次数不超过排队数
+     */
+    private void trimQueue() {
+        if (this.maxQueueSize <= 0) {
+            return;
+        }
+        while (this.queuedCount.get() > this.maxQueueSize) {
+            EvictionKey key = this.evictionOrder.pollFirst();
+            if (key == null) {
+                return;
             }
-            if (runnableWrapper == null) {
-                runnableWrapper = new RunnableWrapper(t);
-            } else {
-                runnableWrapper.reset(t);
+            discard(key);
+        }
+    }
+
+    private boolean discard(EvictionKey key) {
+        RunnableWrapper victim = key.wrapper;
+        int state = victim.state.get();
+        T wrapped = victim.wrapped;
+        int status = state & RunnableWrapper.STATUS_MASK;
+        //key不是当前这次复用的,说明key对应的任务已结束
+        if (status != RunnableWrapper.QUEUED || wrapped == null || victim.evictionKey != key
+                || !victim.state.compareAndSet(state, state - status + RunnableWrapper.CANCELLED)) {
+            return false;
+        }
+        //取消后不再回收,wrapped不再改变;仍留在线程池队列中,出队时跳过
+        onDequeued(victim);
+        if (!this.allowDuplicateTasks) {
+            this.runnableMap.remove(wrapped.getItemKey(), victim);
+        }
+        this.discardedCount.incrementAndGet();
+        if (wrapped instanceof Discardable) {
+            ((Discardable) wrapped).onDiscarded();
+        }
+        return true;
+    }
+
+    /**
+     * @return 线程池的队列
+     */
+    BlockingQueue<Runnable> getQueue() {
+        return this.executor.getQueue();
+    }
+
+    /**
+     * 因排队数超出上限被丢弃的任务数
+     *
+     * @return
+     */
+    public long getDiscardedCount() {
+        return this.discardedCount.get();
+    }
+
+    /**
+     * 取消尚未开始执行的任务,并从队列中移除
+     *
+     * @param key 任务的getItemKey()
+     * @return 是否取消成功, 已开始执行或不存在时返回false
+     */
+    public boolean cancel(String key) {
+        if (this.allowDuplicateTasks) {
+            return false;
+        }
+        while (true) {
+            RunnableWrapper existing = this.runnableMap.get(key);
+            if (existing == null) {
+                return false;
             }
-            return runnableWrapper;
+            int state = existing.state.get();
+            T current = existing.wrapped;
+            if (existing.state.get() != state || current == null || !key.equals(current.getItemKey())) {
+                //读取期间被执行或回收, wrapper可能已被复用于别的key
+                continue;
+            }
+            int status = state & RunnableWrapper.STATUS_MASK;
+            if (status == RunnableWrapper.RUNNING) {
+                return false;
+            }
+            if (status != RunnableWrapper.QUEUED) {
+                Thread.yield();
+                continue;
+            }
+            if (existing.state.compareAndSet(state, state - status + RunnableWrapper.CANCELLED)) {
+                onDequeued(existing);
+                this.runnableMap.remove(key, existing);
+                this.executor.remove(existing);
+                return true;
+            }
+        }
+    }
+
+    private RunnableWrapper getWrapper(T t) {
+        RunnableWrapper runnableWrapper = this.wrapperPool.poll();
+        if (runnableWrapper == null) {
+            return new RunnableWrapper(t);
         }
+        this.wrapperPoolSize.decrementAndGet();
+        return runnableWrapper.reset(t);
     }
 
     public int powerModeToThreadCount(PowerMode powerMode) {
@@ -104,6 +300,13 @@ public class PriorityExecutor<T extends PriorityExecutor.Item> {
         }
     }
 
+    /**
+     * 手动指定线程数, 之后仍会由AdaptivePoolController按排队时间调整
+     *
+     * @param powerMode
+     * @deprecated 线程数已按排队时间自动调整, 仅用于手动干预
+     */
+    @Deprecated
     public synchronized void setPowerMode(PowerMode powerMode) {
         if (this.powerMode == powerMode) {
             return;
@@ -118,27 +321,24 @@ public class PriorityExecutor<T extends PriorityExecutor.Item> {
     }
 
     private synchronized void setThreadCount(int threadCount) {
-        try {
-            if (threadCount < this.executor.getCorePoolSize()) {
-                this.executor.setCorePoolSize(threadCount);
-                this.executor.setMaximumPoolSize(threadCount);
-                return;
-            }
-            if (threadCount > this.executor.getCorePoolSize()) {
-                this.executor.setMaximumPoolSize(threadCount);
-                this.executor.setCorePoolSize(threadCount);
-                return;
-            }
-        } finally {
-        }
+        AdaptivePoolController.resize(this.executor, threadCount);
+    }
+
+    /**
+     * 线程池最近一个统计周期的排队时间,吞吐量和调整结果
+     *
+     * @return
+     */
+    public AdaptivePoolController.Metrics getPoolMetrics() {
+        return this.poolController.getMetrics();
     }
 
     private void recycle(RunnableWrapper runnableWrapper) {
-        synchronized (this.wrapperPool) {
-            if (this.wrapperPool.size() < WRAPPER_POOL_LIMIT) {
-                this.wrapperPool.add(runnableWrapper);
-            }
-            return;
+        runnableWrapper.recycleState();
+        if (this.wrapperPoolSize.incrementAndGet() <= WRAPPER_POOL_LIMIT) {
+            this.wrapperPool.offer(runnableWrapper);
+        } else {
+            this.wrapperPoolSize.decrementAndGet();
         }
     }
 
@@ -148,6 +348,13 @@ public class PriorityExecutor<T extends PriorityExecutor.Item> {
         long getItemPriority();
     }
 
+    /**
+     * 任务可同时实现, 因排队数超出上限被丢弃时回调, 在提交任务的线程上执行
+     */
+    public interface Discardable {
+        void onDiscarded();
+    }
+
     public class ComparePriority implements Comparator<Runnable> {
 
         @Override
@@ -160,6 +367,12 @@ public class PriorityExecutor<T extends PriorityExecutor.Item> {
             if (lhs_item.getItemPriority() < rhs_item.getItemPriority()) {
                 return 1;
             }
+            //队列中同优先级时后提交的先执行
+            if (lifo && lhs instanceof PriorityExecutor.RunnableWrapper && rhs instanceof PriorityExecutor.RunnableWrapper) {
+                long lhs_sequence = ((RunnableWrapper) lhs).sequence;
+                long rhs_sequence = ((RunnableWrapper) rhs).sequence;
+                return lhs_sequence > rhs_sequence ? -1 : (lhs_sequence < rhs_sequence ? 1 : 0);
+            }
 
             return 0;
         }
@@ -170,11 +383,29 @@ public class PriorityExecutor<T extends PriorityExecutor.Item> {
      */
     public class RunnableWrapper implements Item, Runnable {
 
-        AtomicBoolean canRun = new AtomicBoolean(true);
-        T wrapped;
+        //state的低2位为状态,其余为复用次数,复用后旧的state不再能CAS成功
+        static final int QUEUED = 0;
+        static final int RUNNING = 1;
+        static final int CANCELLED = 2;
+        static final int RECYCLED = 3;
+        static final int STATUS_MASK = 3;
+        static final int GENERATION_STEP = STATUS_MASK + 1;
+
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        //先写wrapped再写state,读取方以state前后一致判断wrapped有效
+        volatile T wrapped;
+        //进入队列的时间
+        long enqueueTime;
+        //提交顺序
+        long sequence;
+        //在evictionOrder中的key,每次复用重新创建,先于state写入
+        EvictionKey evictionKey;
 
         public RunnableWrapper(T wrapped) {
             this.wrapped = wrapped;
+            this.enqueueTime = SystemClock.uptimeMillis();
+            this.sequence = PriorityExecutor.this.sequence.incrementAndGet();
+            this.evictionKey = maxQueueSize > 0 ? new EvictionKey(this, wrapped.getItemPriority(), this.sequence) : null;
         }
 
         @Override
@@ -189,21 +420,27 @@ public class PriorityExecutor<T extends PriorityExecutor.Item> {
 
         @Override
         public void run() {
-            if (!this.canRun.getAndSet(false) || executor.isShutdown()) {
-                recycle();
+            int state = this.state.get();
+            int status = state & STATUS_MASK;
+            if (status != QUEUED || !this.state.compareAndSet(state, state - status + RUNNING)) {
+                //已被取消,取消方可能仍持有它,不回收
                 return;
             }
-
+            onDequeued(this);
             if (!allowDuplicateTasks) {
-                synchronized (runnableMap) {
-                    runnableMap.remove(getItemKey());
-                }
+                runnableMap.remove(getItemKey(), this);
             }
+            if (executor.isShutdown()) {
+                recycle();
+                return;
+            }
+            poolController.recordWait(SystemClock.uptimeMillis() - this.enqueueTime);
             try {
                 ((Runnable) wrapped).run();
             } catch (Throwable t) {
                 //error while running runnable
             } finally {
+                poolController.recordCompletion();
                 recycle();
             }
 
@@ -211,17 +448,39 @@ public class PriorityExecutor<T extends PriorityExecutor.Item> {
 
         public RunnableWrapper reset(T wrapped) {
             this.wrapped = wrapped;
-            this.canRun.set(true);
+            this.enqueueTime = SystemClock.uptimeMillis();
+            this.sequence = PriorityExecutor.this.sequence.incrementAndGet();
+            this.evictionKey = maxQueueSize > 0 ? new EvictionKey(this, wrapped.getItemPriority(), this.sequence) : null;
+            this.state.set((this.state.get() & ~STATUS_MASK) + QUEUED);
             return this;
         }
 
-        public void recycle() {
-            this.canRun.set(false);
+        void recycleState() {
+            //复用次数加1,之后才清空wrapped
+            this.state.set((this.state.get() & ~STATUS_MASK) + GENERATION_STEP + RECYCLED);
             this.wrapped = null;
+        }
+
+        public void recycle() {
             PriorityExecutor.this.recycle(this);
         }
     }
 
+    /**
+     * 排队中的任务在evictionOrder中的位置, 字段不变, 排序不受wrapper复用影响
+     */
+    private final class EvictionKey {
+        final RunnableWrapper wrapper;
+        final long priority;
+        final long sequence;
+
+        EvictionKey(RunnableWrapper wrapper, long priority, long sequence) {
+            this.wrapper = wrapper;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
     public enum PowerMode {
         ECONOMY,//经济
         NORMAL,//正常
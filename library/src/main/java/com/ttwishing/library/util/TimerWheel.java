@@ -0,0 +1,190 @@
+package com.ttwishing.library.util;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 哈希时间轮,大量超时任务共用一个线程,代替每个任务各自sleep等待
+ *
+ * 1.时间按tickMillis分格,超时任务按到期的格子挂到对应的槽上,添加和取消都是O(1)
+ * 2.到期精度为一格,任务最多晚一格执行
+ * 3.任务在时间轮线程上执行,必须很快结束,耗时的工作应转交给其它线程池
+ * 4.没有待执行的任务时线程进入等待,不再按格子唤醒
+ */
+public final class TimerWheel {
+
+    private final String name;
+    private final long tickMillis;
+    private final Timeout[] wheel;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+
+    //已处理到的格子
+    private long tick;
+    //待执行的任务数
+    private int count;
+    private Thread worker;
+
+    /**
+     * @param name          线程名
+     * @param tickMillis    每格的毫秒数,即精度
+     * @param ticksPerWheel 槽数,向上取整到2的幂
+     */
+    public TimerWheel(String name, long tickMillis, int ticksPerWheel) {
+        if (tickMillis <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("tickMillis and ticksPerWheel must be positive");
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.name = name;
+        this.tickMillis = tickMillis;
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * 延时执行task
+     *
+     * @param task
+     * @param delayMillis
+     * @return 可用于取消
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        if (this.worker == null) {
+            this.worker = new Thread(new Worker(), this.name);
+            this.worker.setDaemon(true);
+            this.worker.start();
+        }
+        if (this.count == 0) {
+            //线程空闲期间未推进,从当前时间继续
+            this.tick = currentTick();
+            notifyAll();
+        }
+        //到期的格子向上取整,任务不会提前执行
+        long dueMillis = elapsedMillis() + Math.max(0, delayMillis);
+        long deadlineTick = Math.max(this.tick + 1, (dueMillis + this.tickMillis - 1) / this.tickMillis);
+        Timeout timeout = new Timeout(task, deadlineTick);
+        link(timeout);
+        return timeout;
+    }
+
+    private long elapsedMillis() {
+        return (System.nanoTime() - this.startNanos) / 1000000L;
+    }
+
+    private long currentTick() {
+        return elapsedMillis() / this.tickMillis;
+    }
+
+    private void link(Timeout timeout) {
+        int index = (int) (timeout.deadlineTick & this.mask);
+        Timeout head = this.wheel[index];
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        this.wheel[index] = timeout;
+        timeout.linked = true;
+        this.count++;
+    }
+
+    private void unlink(Timeout timeout) {
+        int index = (int) (timeout.deadlineTick & this.mask);
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            this.wheel[index] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.linked = false;
+        this.count--;
+    }
+
+    /**
+     * 等待下一格并取出到期的任务
+     *
+     * @param expired
+     * @throws InterruptedException
+     */
+    private synchronized void advance(List<Timeout> expired) throws InterruptedException {
+        while (true) {
+            if (this.count == 0) {
+                wait();
+                continue;
+            }
+            long sleepMillis = (this.tick + 1) * this.tickMillis - elapsedMillis();
+            if (sleepMillis <= 0) {
+                break;
+            }
+            wait(sleepMillis);
+        }
+        this.tick++;
+        Timeout timeout = this.wheel[(int) (this.tick & this.mask)];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            //同一槽上还有后几圈才到期的任务
+            if (timeout.deadlineTick <= this.tick) {
+                unlink(timeout);
+                expired.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            List<Timeout> expired = new ArrayList<Timeout>();
+            while (true) {
+                try {
+                    advance(expired);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < expired.size(); i++) {
+                    try {
+                        expired.get(i).task.run();
+                    } catch (Throwable t) {
+                        Log.e("TimerWheel", "timeout task failed", t);
+                    }
+                }
+                expired.clear();
+            }
+        }
+    }
+
+    public final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+        private boolean linked;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * @return 任务已执行或已取消时返回false
+         */
+        public boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if (!this.linked) {
+                    return false;
+                }
+                unlink(this);
+                return true;
+            }
+        }
+    }
+}
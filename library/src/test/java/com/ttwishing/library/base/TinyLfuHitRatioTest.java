@@ -0,0 +1,112 @@
+package com.ttwishing.library.base;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用合成的访问序列比较LRU与W-TinyLFU(TinyLfuPolicy)的命中率
+ *
+ * 1.zipf: 只有按zipf分布访问的热点key,如每屏都出现的头像
+ * 2.scroll: 热点key中夹杂大量只出现一次的key,模拟快速滑动时一闪而过的图片
+ */
+public class TinyLfuHitRatioTest {
+
+    private static final int CAPACITY = 100;
+    private static final int HOT_KEYS = 1000;
+    private static final double ZIPF_EXPONENT = 0.9;
+    private static final int ACCESSES = 200 * 1000;
+
+    @Test
+    public void zipfTrace() {
+        String[] trace = trace(0, new Random(1));
+        double lru = lruHitRatio(trace);
+        double tinyLfu = tinyLfuHitRatio(trace);
+        System.out.println("zipf trace: lru=" + lru + " w-tinylfu=" + tinyLfu);
+        assertTrue(tinyLfu >= lru - 0.01);
+    }
+
+    @Test
+    public void scrollTrace() {
+        String[] trace = trace(0.5, new Random(2));
+        double lru = lruHitRatio(trace);
+        double tinyLfu = tinyLfuHitRatio(trace);
+        System.out.println("scroll trace: lru=" + lru + " w-tinylfu=" + tinyLfu);
+        assertTrue(tinyLfu > lru);
+    }
+
+    /**
+     * @param oneHitFraction 只出现一次的key所占的比例
+     * @param random
+     * @return
+     */
+    private static String[] trace(double oneHitFraction, Random random) {
+        double[] cumulative = new double[HOT_KEYS];
+        double sum = 0;
+        for (int i = 0; i < HOT_KEYS; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
+        }
+        String[] trace = new String[ACCESSES];
+        int oneHits = 0;
+        for (int i = 0; i < ACCESSES; i++) {
+            if (random.nextDouble() < oneHitFraction) {
+                trace[i] = "once-" + oneHits++;
+            } else {
+                int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                trace[i] = "hot-" + (index >= 0 ? index : -index - 1);
+            }
+        }
+        return trace;
+    }
+
+    private static double lruHitRatio(String[] trace) {
+        Map<String, Boolean> lru = new LinkedHashMap<String, Boolean>(CAPACITY, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > CAPACITY;
+            }
+        };
+        int hits = 0;
+        for (String key : trace) {
+            if (lru.get(key) != null) {
+                hits++;
+            } else {
+                lru.put(key, Boolean.TRUE);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    /**
+     * 与ConcurrentRefCountingCache相同的调用方式: 命中recordHit,未命中recordMiss后add
+     */
+    private static double tinyLfuHitRatio(String[] trace) {
+        TinyLfuPolicy policy = new TinyLfuPolicy(CAPACITY);
+        Set<String> cached = new HashSet<String>();
+        List<String> evicted = new ArrayList<String>();
+        int hits = 0;
+        for (String key : trace) {
+            if (cached.contains(key)) {
+                hits++;
+                policy.recordHit(key);
+                continue;
+            }
+            policy.recordMiss(key);
+            cached.add(key);
+            policy.add(key, evicted);
+            cached.removeAll(evicted);
+            evicted.clear();
+        }
+        return (double) hits / trace.length;
+    }
+}
@@ -0,0 +1,98 @@
+package com.ttwishing.library.base.sync;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * NamedLockPool在1-32个线程下的lock/unlock吞吐量
+ *
+ * 1.hot: 所有线程争用少数几个key,如同一张图片被多个view同时加载
+ * 2.cold: key分布在很大的范围内,几乎不冲突,主要测lock对象的创建和移除
+ * 每个key的计数在锁内非原子地增加,结束后与总操作数核对,验证互斥
+ */
+public class NamedLockPoolContentionTest {
+
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32};
+    private static final int HOT_KEYS = 4;
+    private static final int COLD_KEYS = 64 * 1024;
+    private static final long RUN_MILLIS = 200;
+
+    @Test
+    public void hotKeys() throws Exception {
+        for (int threads : THREAD_COUNTS) {
+            System.out.println("NamedLockPool hot  threads=" + threads + " " + run(threads, HOT_KEYS) + " ops/s");
+        }
+    }
+
+    @Test
+    public void coldKeys() throws Exception {
+        for (int threads : THREAD_COUNTS) {
+            System.out.println("NamedLockPool cold threads=" + threads + " " + run(threads, COLD_KEYS) + " ops/s");
+        }
+    }
+
+    /**
+     * @return 每秒lock/unlock次数
+     */
+    private static long run(int threadCount, final int keyCount) throws Exception {
+        final NamedLockPool pool = new NamedLockPool(threadCount, false);
+        final String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "key-" + i;
+        }
+        //只在对应key的锁内访问
+        final long[] counters = new long[keyCount];
+        final AtomicLong ops = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.nanoTime() + RUN_MILLIS * 1000 * 1000 + 50L * 1000 * 1000;
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long count = 0;
+                        while (System.nanoTime() < deadline) {
+                            int index = random.nextInt(keyCount);
+                            pool.lock(keys[index]);
+                            try {
+                                counters[index]++;
+                            } finally {
+                                pool.unlock(keys[index]);
+                            }
+                            count++;
+                        }
+                        ops.addAndGet(count);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        assertNull(failure.get());
+
+        long total = 0;
+        for (long counter : counters) {
+            total += counter;
+        }
+        assertEquals(ops.get(), total);
+        return ops.get() * 1000L * 1000 * 1000 / Math.max(1, elapsed);
+    }
+}
@@ -0,0 +1,154 @@
+package com.ttwishing.library.disk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A journal batch that fails to commit must not be lost: the records stay
+ * pending, the failure is thrown from the next write, and the cache rebuilds
+ * the journal from memory so that reopening it replays every edit.
+ */
+public class DiskLruCacheJournalTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("journal-test", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Util.deleteContents(directory);
+        directory.delete();
+    }
+
+    @Test
+    public void failedCommitIsThrownUntilClosed() throws Exception {
+        File file = new File(directory, "journal");
+        JournalWriter writer = new JournalWriter(file);
+        writer.write(JournalWriter.OP_DIRTY, 0, "k0", null, -1);
+        writer.flush();
+        long committed = writer.length();
+
+        journalStream(writer).close();
+        writer.write(JournalWriter.OP_CLEAN, 0, null, new long[]{1}, -1);
+        try {
+            writer.flush();
+            fail();
+        } catch (IOException expected) {
+        }
+        //之后的写入也抛出同一个失败,已提交的长度不变
+        try {
+            writer.write(JournalWriter.OP_READ, 0, null, null, -1);
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            writer.close();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(committed, writer.length());
+        assertEquals(committed, file.length());
+    }
+
+    @Test
+    public void reopenReplaysEditsAfterFailedBatch() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        set(cache, "a", "A");
+        set(cache, "b", "B");
+        cache.flush();
+
+        //使下一批journal提交失败
+        journalStream(journalWriter(cache)).close();
+        //新的key id和REMOVE都在失败的批次中
+        set(cache, "c", "C");
+        assertTrue(cache.remove("a"));
+        cache.flush();
+        set(cache, "d", "D");
+        cache.close();
+
+        cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE);
+        try {
+            assertNull(cache.get("a"));
+            assertValue(cache, "b", "B");
+            assertValue(cache, "c", "C");
+            assertValue(cache, "d", "D");
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void slabReopenAfterFailedBatchDoesNotAliasSlots() throws Exception {
+        //容量为4个slot,写满后才会重用释放的slot
+        DiskLruCache cache = DiskLruCache.openSlab(directory, 1, 16, 64, 1);
+        set(cache, "a", "A");
+        set(cache, "b", "B");
+        cache.flush();
+
+        journalStream(journalWriter(cache)).close();
+        assertTrue(cache.remove("a"));
+        //重用a的slot前需要REMOVE已持久化
+        for (int i = 0; i < 4; i++) {
+            set(cache, "n" + i, "N" + i);
+        }
+        cache.close();
+
+        cache = DiskLruCache.openSlab(directory, 1, 16, 64, 1);
+        try {
+            assertNull(cache.get("a"));
+            for (int i = 0; i < 4; i++) {
+                DiskLruCache.Snapshot snapshot = cache.get("n" + i);
+                if (snapshot != null) {
+                    assertEquals("N" + i, snapshot.getString(0));
+                    snapshot.close();
+                }
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static void set(DiskLruCache cache, String key, String value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private static void assertValue(DiskLruCache cache, String key, String value) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(key, snapshot);
+        try {
+            assertEquals(value, snapshot.getString(0));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static JournalWriter journalWriter(DiskLruCache cache) throws Exception {
+        Field field = DiskLruCache.class.getDeclaredField("journalWriter");
+        field.setAccessible(true);
+        return (JournalWriter) field.get(cache);
+    }
+
+    private static FileOutputStream journalStream(JournalWriter writer) throws Exception {
+        Field field = JournalWriter.class.getDeclaredField("out");
+        field.setAccessible(true);
+        return (FileOutputStream) field.get(writer);
+    }
+}
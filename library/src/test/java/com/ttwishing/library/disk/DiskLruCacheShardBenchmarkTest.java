@@ -0,0 +1,122 @@
+package com.ttwishing.library.disk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput of concurrent get/edit on a cache split into 1, 4 and 16 shards.
+ * Every thread runs a read-mostly mix over a shared key space for a fixed
+ * time; the ops/s of each shard count are printed for comparison.
+ */
+public class DiskLruCacheShardBenchmarkTest {
+    private static final int THREADS = 8;
+    private static final int KEYS = 512;
+    private static final int VALUE_SIZE = 2 * 1024;
+    private static final long RUN_MILLIS = 1000;
+    //每10次操作中写的次数
+    private static final int WRITES_PER_10 = 2;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("shard-benchmark", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Util.deleteContents(directory);
+        directory.delete();
+    }
+
+    @Test
+    public void throughputByShardCount() throws Exception {
+        long ops1 = run(1);
+        long ops4 = run(4);
+        long ops16 = run(16);
+        System.out.println("DiskLruCache shards: 1=" + ops1 + " ops/s, 4=" + ops4 + " ops/s, 16=" + ops16 + " ops/s");
+        assertTrue(ops1 > 0 && ops4 > 0 && ops16 > 0);
+    }
+
+    private long run(int shardCount) throws Exception {
+        File shardDirectory = new File(directory, "count-" + shardCount);
+        final DiskLruCache cache = DiskLruCache.open(shardDirectory, 1, 1, (long) KEYS * VALUE_SIZE * 2, shardCount);
+        assertEquals(shardCount, cache.getShardCount());
+        final byte[] value = new byte[VALUE_SIZE];
+        for (int i = 0; i < KEYS; i++) {
+            write(cache, "k" + i, value);
+        }
+
+        final AtomicLong ops = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long count = 0;
+                        while (System.nanoTime() < deadline[0]) {
+                            String key = "k" + random.nextInt(KEYS);
+                            if (random.nextInt(10) < WRITES_PER_10) {
+                                write(cache, key, value);
+                            } else {
+                                DiskLruCache.Snapshot snapshot = cache.get(key);
+                                if (snapshot != null) {
+                                    snapshot.close();
+                                }
+                            }
+                            count++;
+                        }
+                        ops.addAndGet(count);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        deadline[0] = System.nanoTime() + RUN_MILLIS * 1000 * 1000;
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        cache.close();
+        assertNull(failure.get());
+        return ops.get() * 1000 / RUN_MILLIS;
+    }
+
+    private static void write(DiskLruCache cache, String key, byte[] value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        if (editor == null) {
+            //另一个线程正在写同一个key
+            return;
+        }
+        OutputStream out = editor.newOutputStream(0);
+        try {
+            out.write(value);
+        } finally {
+            out.close();
+        }
+        editor.commit();
+    }
+}
@@ -0,0 +1,274 @@
+package com.ttwishing.library.disk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Slot allocation of a slab-backed cache: released slots are reused only
+ * after the journal that freed them is durable, pinned slots outlive their
+ * entry, the slab file grows when every slot is taken, the free slots are
+ * recovered on reopen, and values larger than a slot are rejected.
+ */
+public class DiskLruCacheSlabTest {
+    private static final int SLOT_SIZE = 16;
+    //4个满slot的值,预分配5个slot
+    private static final long MAX_SIZE = 4 * SLOT_SIZE;
+    private static final int PREALLOCATED_SLOTS = 5;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("slab-test", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Util.deleteContents(directory);
+        directory.delete();
+    }
+
+    @Test
+    public void releasedSlotIsReusedOnlyAfterReclaim() throws Exception {
+        SlabFile slab = new SlabFile(new File(directory, "slab"), SLOT_SIZE, 2);
+        try {
+            assertEquals(0, slab.allocate());
+            assertEquals(1, slab.allocate());
+            slab.release(0);
+            assertEquals(-1, slab.allocate());
+            slab.reclaimReleased();
+            assertEquals(0, slab.allocate());
+
+            //被pin的slot在unpin之前不会进入released
+            slab.pin(1);
+            slab.release(1);
+            slab.reclaimReleased();
+            assertEquals(-1, slab.allocate());
+            slab.unpin(1);
+            slab.reclaimReleased();
+            assertEquals(1, slab.allocate());
+        } finally {
+            slab.close();
+        }
+    }
+
+    @Test
+    public void slotIsReusedOnlyAfterRemoveIsDurable() throws Exception {
+        File crashed = new File(directory, "crashed");
+        File cacheDirectory = new File(directory, "cache");
+        DiskLruCache cache = open(cacheDirectory);
+        for (int i = 0; i < 4; i++) {
+            set(cache, "k" + i, value(i));
+        }
+        //占用预留的slot,使所有slot都在使用中
+        DiskLruCache.Editor pending = cache.edit("pending");
+        pending.set(0, value(8));
+        cache.flush();
+        assertTrue(cache.remove("k0"));
+
+        //唯一可重用的是k0的slot,写入前REMOVE必须已写入journal
+        DiskLruCache.Editor editor = cache.edit("n");
+        editor.set(0, value(9));
+        assertEquals(PREALLOCATED_SLOTS * SLOT_SIZE, new File(cacheDirectory, DiskLruCache.SLAB_FILE).length());
+        //此时崩溃: 只有已写入的journal和slab留在磁盘上
+        copyDirectory(cacheDirectory, crashed);
+        editor.commit();
+        pending.abort();
+        cache.close();
+
+        cache = open(crashed);
+        try {
+            assertNull(cache.get("k0"));
+            for (int i = 1; i < 4; i++) {
+                DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+                assertNotNull(snapshot);
+                assertEquals(value(i), snapshot.getString(0));
+                snapshot.close();
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void pinnedSlotSurvivesEviction() throws Exception {
+        DiskLruCache cache = open(directory);
+        try {
+            set(cache, "a", value(0));
+            DiskLruCache.Snapshot snapshot = cache.get("a");
+            assertTrue(cache.remove("a"));
+            cache.flush();
+            //写满并淘汰多轮,a的slot在snapshot关闭前不会被重用
+            for (int i = 1; i <= 3 * PREALLOCATED_SLOTS; i++) {
+                set(cache, "k" + i, value(i));
+                cache.flush();
+            }
+            assertEquals(value(0), snapshot.getString(0));
+            snapshot.close();
+            assertNull(cache.get("a"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void slabFileGrowsWhenEverySlotIsTaken() throws Exception {
+        DiskLruCache cache = open(directory);
+        File slabFile = new File(directory, DiskLruCache.SLAB_FILE);
+        try {
+            assertEquals(PREALLOCATED_SLOTS * SLOT_SIZE, slabFile.length());
+            int editorCount = PREALLOCATED_SLOTS + 1;
+            DiskLruCache.Editor[] editors = new DiskLruCache.Editor[editorCount];
+            for (int i = 0; i < editorCount; i++) {
+                editors[i] = cache.edit("k" + i);
+                editors[i].set(0, value(i));
+            }
+            assertTrue(slabFile.length() > PREALLOCATED_SLOTS * SLOT_SIZE);
+            assertEquals(0, slabFile.length() % SLOT_SIZE);
+            for (DiskLruCache.Editor editor : editors) {
+                editor.commit();
+            }
+            //提交后可能被淘汰, 留下的值都完整
+            for (int i = 0; i < editorCount; i++) {
+                DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+                if (snapshot != null) {
+                    assertEquals(value(i), snapshot.getString(0));
+                    snapshot.close();
+                }
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void reopenFromCheckpointRecoversFreeSlots() throws Exception {
+        writeAndRemoveOne();
+        assertTrue(new File(directory, DiskLruCache.CHECKPOINT_FILE).exists());
+        assertFreeSlotsRecovered();
+    }
+
+    @Test
+    public void reopenFromJournalRecoversFreeSlots() throws Exception {
+        writeAndRemoveOne();
+        assertTrue(new File(directory, DiskLruCache.CHECKPOINT_FILE).delete());
+        assertFreeSlotsRecovered();
+    }
+
+    @Test
+    public void valueLargerThanSlotIsRejected() throws Exception {
+        DiskLruCache cache = open(directory);
+        try {
+            DiskLruCache.Editor editor = cache.edit("big");
+            editor.set(0, value(0) + "x");
+            editor.commit();
+            assertNull(cache.get("big"));
+            assertEquals(0, cache.size());
+
+            //slot已释放,缓存仍可写入
+            set(cache, "big", value(1));
+            DiskLruCache.Snapshot snapshot = cache.get("big");
+            assertNotNull(snapshot);
+            assertEquals(value(1), snapshot.getString(0));
+            snapshot.close();
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * 写入k0-k3并删除k1后关闭, 空闲的是k1的slot和预留的最后一个slot
+     */
+    private void writeAndRemoveOne() throws IOException {
+        DiskLruCache cache = open(directory);
+        for (int i = 0; i < 4; i++) {
+            set(cache, "k" + i, value(i));
+        }
+        assertTrue(cache.remove("k1"));
+        cache.close();
+    }
+
+    private void assertFreeSlotsRecovered() throws IOException {
+        DiskLruCache cache = open(directory);
+        File slabFile = new File(directory, DiskLruCache.SLAB_FILE);
+        try {
+            assertNull(cache.get("k1"));
+            //两个空闲slot不需要扩展文件,第三个需要
+            DiskLruCache.Editor first = cache.edit("n0");
+            first.set(0, value(10));
+            DiskLruCache.Editor second = cache.edit("n1");
+            second.set(0, value(11));
+            assertEquals(PREALLOCATED_SLOTS * SLOT_SIZE, slabFile.length());
+            DiskLruCache.Editor third = cache.edit("n2");
+            third.set(0, value(12));
+            assertTrue(slabFile.length() > PREALLOCATED_SLOTS * SLOT_SIZE);
+
+            //已有的值没有被新值覆盖
+            for (int i : new int[]{0, 2, 3}) {
+                DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+                assertNotNull(snapshot);
+                assertEquals(value(i), snapshot.getString(0));
+                snapshot.close();
+            }
+            first.abort();
+            second.abort();
+            third.abort();
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static DiskLruCache open(File directory) throws IOException {
+        return DiskLruCache.openSlab(directory, 1, SLOT_SIZE, MAX_SIZE, 1);
+    }
+
+    private static void set(DiskLruCache cache, String key, String value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    /**
+     * @return 正好占满一个slot的值
+     */
+    private static String value(int i) {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < SLOT_SIZE) {
+            value.append((char) ('a' + (i + value.length()) % 26));
+        }
+        return value.toString();
+    }
+
+    private static void copyDirectory(File from, File to) throws IOException {
+        to.mkdirs();
+        for (File file : from.listFiles()) {
+            InputStream in = new FileInputStream(file);
+            OutputStream out = new FileOutputStream(new File(to, file.getName()));
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+        }
+    }
+}
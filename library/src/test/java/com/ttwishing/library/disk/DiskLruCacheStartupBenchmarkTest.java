@@ -0,0 +1,135 @@
+package com.ttwishing.library.disk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time to open a cache of 1k, 10k and 100k entries by replaying the whole
+ * binary journal, compared with loading the checkpoint and replaying only
+ * the journal records written after it. Uses a slab-backed cache so that
+ * the entry count is not limited by creating one file per entry.
+ */
+public class DiskLruCacheStartupBenchmarkTest {
+    private static final int SLOT_SIZE = 16;
+    //检查点之后的记录数,低于CHECKPOINT_RECORD_THRESHOLD,不会触发新的检查点
+    private static final int TAIL_RECORDS = DiskLruCache.CHECKPOINT_RECORD_THRESHOLD / 2;
+    private static final int RUNS = 3;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("startup-benchmark", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Util.deleteContents(directory);
+        directory.delete();
+    }
+
+    @Test
+    public void startup1k() throws Exception {
+        compare(1000);
+    }
+
+    @Test
+    public void startup10k() throws Exception {
+        compare(10 * 1000);
+    }
+
+    @Test
+    public void startup100k() throws Exception {
+        compare(100 * 1000);
+    }
+
+    private void compare(int entryCount) throws Exception {
+        File cacheDirectory = new File(directory, "entries-" + entryCount);
+        long maxSize = (long) entryCount * SLOT_SIZE * 2;
+        DiskLruCache cache = DiskLruCache.openSlab(cacheDirectory, 1, SLOT_SIZE, maxSize, 1);
+        for (int i = 0; i < entryCount; i++) {
+            DiskLruCache.Editor editor = cache.edit("k" + i);
+            editor.set(0, "v" + i);
+            editor.commit();
+        }
+        //关闭时写入覆盖全部记录的检查点,保存一份
+        cache.close();
+        File checkpoint = new File(cacheDirectory, DiskLruCache.CHECKPOINT_FILE);
+        assertTrue(checkpoint.exists());
+        File savedCheckpoint = new File(directory, "saved-" + entryCount);
+        copy(checkpoint, savedCheckpoint);
+
+        //在检查点之后追加一段记录
+        cache = DiskLruCache.openSlab(cacheDirectory, 1, SLOT_SIZE, maxSize, 1);
+        for (int i = 0; i < TAIL_RECORDS; i++) {
+            DiskLruCache.Snapshot snapshot = cache.get("k" + (i * 7 % entryCount));
+            snapshot.close();
+        }
+        cache.close();
+        File journal = new File(cacheDirectory, DiskLruCache.JOURNAL_FILE);
+        long journalLength = journal.length();
+
+        long replayNanos = Long.MAX_VALUE;
+        long checkpointNanos = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            //关闭时会写入新的检查点,每次打开前恢复
+            assertTrue(!checkpoint.exists() || checkpoint.delete());
+            replayNanos = Math.min(replayNanos, timeOpen(cacheDirectory, maxSize, entryCount));
+
+            //保存的检查点只对未重建的journal有效
+            assertTrue(journal.length() >= journalLength);
+            copy(savedCheckpoint, checkpoint);
+            checkpointNanos = Math.min(checkpointNanos, timeOpen(cacheDirectory, maxSize, entryCount));
+            copy(savedCheckpoint, checkpoint);
+        }
+        System.out.println("DiskLruCache open " + entryCount + " entries: journal replay=" + replayNanos / 1000
+                + "us, checkpoint+" + TAIL_RECORDS + " tail records=" + checkpointNanos / 1000 + "us");
+    }
+
+    private long timeOpen(File cacheDirectory, long maxSize, int entryCount) throws IOException {
+        long start = System.nanoTime();
+        DiskLruCache cache = DiskLruCache.openSlab(cacheDirectory, 1, SLOT_SIZE, maxSize, 1);
+        long elapsed = System.nanoTime() - start;
+        try {
+            DiskLruCache.Snapshot snapshot = cache.get("k" + (entryCount - 1));
+            assertNotNull(snapshot);
+            assertEquals("v" + (entryCount - 1), snapshot.getString(0));
+            snapshot.close();
+        } finally {
+            cache.close();
+        }
+        return elapsed;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.ttwishing.library.http;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DownloadScheduler按host放行: 许可单位和同时进行的下载数
+ */
+public class DownloadSchedulerTest {
+
+    private static final class Recorder implements DownloadScheduler.Callback {
+        final List<DownloadScheduler.Ticket> granted = new ArrayList<>();
+
+        @Override
+        public void onGranted(DownloadScheduler.Ticket ticket) {
+            granted.add(ticket);
+        }
+    }
+
+    @Test
+    public void connectionsPerHostAreCapped() {
+        DownloadScheduler scheduler = new DownloadScheduler(3);
+        Recorder recorder = new Recorder();
+        for (int i = 0; i < 5; i++) {
+            scheduler.schedule("http://a.example.com/avatar/" + i, DownloadScheduler.UNIT_BYTES, recorder);
+        }
+        assertEquals(3, recorder.granted.size());
+
+        scheduler.release(recorder.granted.get(0));
+        assertEquals(4, recorder.granted.size());
+    }
+
+    @Test
+    public void hostsAreIndependent() {
+        DownloadScheduler scheduler = new DownloadScheduler(1);
+        Recorder recorder = new Recorder();
+        scheduler.schedule("http://a.example.com/1", DownloadScheduler.UNIT_BYTES, recorder);
+        scheduler.schedule("http://a.example.com/2", DownloadScheduler.UNIT_BYTES, recorder);
+        scheduler.schedule("http://b.example.com/1", DownloadScheduler.UNIT_BYTES, recorder);
+        assertEquals(2, recorder.granted.size());
+    }
+
+    @Test
+    public void queuedTicketCanBeCancelled() {
+        DownloadScheduler scheduler = new DownloadScheduler(1);
+        Recorder recorder = new Recorder();
+        scheduler.schedule("http://a.example.com/1", DownloadScheduler.UNIT_BYTES, recorder);
+        DownloadScheduler.Ticket queued = scheduler.schedule("http://a.example.com/2", DownloadScheduler.UNIT_BYTES, recorder);
+        DownloadScheduler.Ticket next = scheduler.schedule("http://a.example.com/3", DownloadScheduler.UNIT_BYTES, recorder);
+
+        assertTrue(scheduler.cancel(queued));
+        assertFalse(scheduler.cancel(queued));
+        scheduler.release(recorder.granted.get(0));
+        assertEquals(2, recorder.granted.size());
+        assertTrue(recorder.granted.get(1) == next);
+    }
+
+    @Test
+    public void smallTicketsBypassLargeOnes() {
+        DownloadScheduler scheduler = new DownloadScheduler(8);
+        Recorder recorder = new Recorder();
+        scheduler.schedule("http://a.example.com/original/1", 10 * DownloadScheduler.UNIT_BYTES, recorder);
+        DownloadScheduler.Ticket large = scheduler.schedule("http://a.example.com/original/2", 10 * DownloadScheduler.UNIT_BYTES, recorder);
+        DownloadScheduler.Ticket avatar = scheduler.schedule("http://a.example.com/avatar/1", DownloadScheduler.UNIT_BYTES, recorder);
+        //第二张原图放不下,头像越过它
+        assertEquals(2, recorder.granted.size());
+        assertTrue(recorder.granted.contains(avatar));
+        assertFalse(recorder.granted.contains(large));
+
+        scheduler.release(recorder.granted.get(0));
+        assertTrue(recorder.granted.contains(large));
+    }
+
+    @Test
+    public void idleHostsAreEvicted() {
+        DownloadScheduler scheduler = new DownloadScheduler(1);
+        Recorder recorder = new Recorder();
+        scheduler.schedule("http://busy.example.com/1", DownloadScheduler.UNIT_BYTES, recorder);
+        DownloadScheduler.Ticket waiting = scheduler.schedule("http://busy.example.com/2", DownloadScheduler.UNIT_BYTES, recorder);
+        for (int i = 0; i < 3 * DownloadScheduler.MAX_HOSTS; i++) {
+            scheduler.schedule("http://h" + i + ".example.com/1", DownloadScheduler.UNIT_BYTES, recorder);
+            scheduler.release(recorder.granted.get(recorder.granted.size() - 1));
+        }
+
+        Map<String, DownloadScheduler.HostMetrics> metrics = scheduler.getHostMetrics();
+        assertEquals(DownloadScheduler.MAX_HOSTS, metrics.size());
+        //有下载进行的host保留, 最近使用的空闲host保留
+        assertTrue(metrics.containsKey("busy.example.com"));
+        assertTrue(metrics.containsKey("h" + (3 * DownloadScheduler.MAX_HOSTS - 1) + ".example.com"));
+        assertFalse(metrics.containsKey("h0.example.com"));
+
+        scheduler.release(recorder.granted.get(0));
+        assertTrue(recorder.granted.contains(waiting));
+    }
+}
@@ -0,0 +1,362 @@
+package com.ttwishing.library.http;
+
+import com.ttwishing.library.util.HashUtil;
+import com.ttwishing.library.util.ReusableStringBuilderPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 未使用原图缓存时, 下载中断后的续传
+ *
+ * 1.服务器在响应体中途断开连接或停止发送导致读取超时, 重试时用Range/If-Range从已下载的位置续传
+ * 2.上次运行留下的.part文件和校验值, 重启后仍可续传
+ * 3.启动时删除无法或不值得续传的.part文件
+ */
+public class HttpTaskControllerResumeTest {
+
+    private static final String ETAG = "\"v1\"";
+    private static final byte[] CONTENT = content(200 * 1024);
+
+    private File directory;
+    private RangeServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("resume-test", "");
+        directory.delete();
+        directory.mkdirs();
+        server = new RangeServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void resumesAfterConnectionDropsMidBody() throws Exception {
+        server.dropAfter = CONTENT.length / 2;
+        String url = server.url("/drop.jpg");
+
+        File file = load(newController(), url);
+
+        assertNotNull(file);
+        assertArrayEquals(CONTENT, readFile(file));
+        List<Map<String, String>> requests = server.getRequests();
+        assertEquals(2, requests.size());
+        assertNull(requests.get(0).get("range"));
+        assertEquals("bytes=" + CONTENT.length / 2 + "-", requests.get(1).get("range"));
+        assertEquals(ETAG, requests.get(1).get("if-range"));
+        assertPartsDeleted();
+    }
+
+    @Test
+    public void resumesAfterReadTimeout() throws Exception {
+        server.stallAfter = CONTENT.length / 2;
+        String url = server.url("/stall.jpg");
+
+        //SocketTimeoutException是InterruptedIOException,不能当作取消
+        File file = load(newController(new HttpUrlConnectionTransport(1000, 500)), url);
+
+        assertNotNull(file);
+        assertArrayEquals(CONTENT, readFile(file));
+        List<Map<String, String>> requests = server.getRequests();
+        assertEquals(2, requests.size());
+        assertEquals("bytes=" + CONTENT.length / 2 + "-", requests.get(1).get("range"));
+        assertPartsDeleted();
+    }
+
+    @Test
+    public void resumesPartLeftByPreviousRun() throws Exception {
+        String url = server.url("/restart.jpg");
+        int downloaded = CONTENT.length / 3;
+        File partFile = new File(directory, HashUtil.md5(url) + ".part");
+        writeFile(partFile, CONTENT, downloaded);
+        writeValidator(new File(partFile.getPath() + ".validator"), ETAG);
+
+        File file = load(newController(), url);
+
+        assertNotNull(file);
+        assertArrayEquals(CONTENT, readFile(file));
+        List<Map<String, String>> requests = server.getRequests();
+        assertEquals(1, requests.size());
+        assertEquals("bytes=" + downloaded + "-", requests.get(0).get("range"));
+        assertPartsDeleted();
+    }
+
+    @Test
+    public void changedResourceIsDownloadedAgain() throws Exception {
+        String url = server.url("/changed.jpg");
+        File partFile = new File(directory, HashUtil.md5(url) + ".part");
+        writeFile(partFile, new byte[1000], 1000);
+        writeValidator(new File(partFile.getPath() + ".validator"), "\"v0\"");
+
+        File file = load(newController(), url);
+
+        //If-Range不匹配,服务器返回完整的200响应
+        assertNotNull(file);
+        assertArrayEquals(CONTENT, readFile(file));
+        assertPartsDeleted();
+    }
+
+    @Test
+    public void deletesStalePartsOnStart() throws Exception {
+        File noValidator = new File(directory, "a.part");
+        writeFile(noValidator, CONTENT, 10);
+
+        File stale = new File(directory, "b.part");
+        writeFile(stale, CONTENT, 10);
+        writeValidator(new File(stale.getPath() + ".validator"), ETAG);
+        assertTrue(stale.setLastModified(System.currentTimeMillis() - 7 * 24 * 60 * 60 * 1000L));
+
+        File fresh = new File(directory, "c.part");
+        writeFile(fresh, CONTENT, 10);
+        writeValidator(new File(fresh.getPath() + ".validator"), ETAG);
+
+        File orphanValidator = new File(directory, "d.part.validator");
+        writeValidator(orphanValidator, ETAG);
+
+        File downloaded = new File(directory, "e");
+        writeFile(downloaded, CONTENT, 10);
+
+        newController();
+
+        assertFalse(noValidator.exists());
+        assertFalse(stale.exists());
+        assertFalse(new File(stale.getPath() + ".validator").exists());
+        assertFalse(orphanValidator.exists());
+        assertTrue(fresh.exists());
+        assertTrue(new File(fresh.getPath() + ".validator").exists());
+        assertTrue(downloaded.exists());
+    }
+
+    private HttpTaskController newController() {
+        return newController(new HttpUrlConnectionTransport());
+    }
+
+    private HttpTaskController newController(HttpTransport transport) {
+        return new HttpTaskController(new ReusableStringBuilderPool(), transport, null, directory,
+                DownloadScheduler.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * @return 下载失败时返回null
+     */
+    private static File load(HttpTaskController controller, String url) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final File[] result = new File[1];
+        controller.loadImage(url, null, new HttpTaskController.HttpDiskCacheListener() {
+            @Override
+            public void onHttpDiskCacheFailed(String url, String suffix) {
+                done.countDown();
+            }
+
+            @Override
+            public void onHttpDiskCacheSuccess(String url, String suffix, File file) {
+                result[0] = file;
+                done.countDown();
+            }
+
+            @Override
+            public boolean isProcessCheck(String url, String suffix) {
+                return true;
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    private void assertPartsDeleted() {
+        for (String name : directory.list()) {
+            assertFalse(name, name.endsWith(".part") || name.endsWith(".validator"));
+        }
+    }
+
+    private static void writeValidator(File file, String validator) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeUTF(validator);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data, int length) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int read;
+            while (offset < data.length && (read = in.read(data, offset, data.length - offset)) != -1) {
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static byte[] content(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 13 + i / 256);
+        }
+        return data;
+    }
+
+    /**
+     * 支持Range/If-Range的http server, 每个连接在单独的线程上只处理一个请求
+     * dropAfter大于0时, 第一个完整响应只写出这么多字节就断开连接
+     * stallAfter大于0时, 第一个完整响应写出这么多字节后停止发送STALL_MILLIS
+     */
+    private static final class RangeServer extends Thread {
+        private static final long STALL_MILLIS = 5 * 1000L;
+
+        private final ServerSocket serverSocket;
+        private final List<Map<String, String>> requests = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+        volatile int dropAfter;
+        volatile int stallAfter;
+
+        RangeServer() throws IOException {
+            super("range-server");
+            setDaemon(true);
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        }
+
+        String url(String path) {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+        }
+
+        List<Map<String, String>> getRequests() {
+            synchronized (requests) {
+                return new ArrayList<>(requests);
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handle(socket);
+                        } catch (IOException ignored) {
+                        } catch (InterruptedException ignored) {
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException ignored) {
+                            }
+                        }
+                    }
+                }, "range-server-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void handle(Socket socket) throws IOException, InterruptedException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            if (reader.readLine() == null) {
+                return;
+            }
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+            requests.add(headers);
+
+            int start = 0;
+            String range = headers.get("range");
+            if (range != null && ETAG.equals(headers.get("if-range"))) {
+                start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            }
+            StringBuilder response = new StringBuilder();
+            if (start > 0) {
+                response.append("HTTP/1.1 206 Partial Content\r\n");
+                response.append("Content-Range: bytes ").append(start).append('-').append(CONTENT.length - 1)
+                        .append('/').append(CONTENT.length).append("\r\n");
+            } else {
+                response.append("HTTP/1.1 200 OK\r\n");
+            }
+            response.append("ETag: ").append(ETAG).append("\r\n");
+            response.append("Content-Length: ").append(CONTENT.length - start).append("\r\n");
+            response.append("Connection: close\r\n\r\n");
+
+            OutputStream out = socket.getOutputStream();
+            out.write(response.toString().getBytes("ISO-8859-1"));
+            int end = CONTENT.length;
+            if (start == 0 && dropAfter > 0) {
+                end = dropAfter;
+                dropAfter = 0;
+            }
+            if (start == 0 && stallAfter > 0) {
+                int stall = stallAfter;
+                stallAfter = 0;
+                out.write(CONTENT, 0, stall);
+                out.flush();
+                //超过客户端的读取超时
+                Thread.sleep(STALL_MILLIS);
+                start = stall;
+            }
+            out.write(CONTENT, start, end - start);
+            out.flush();
+        }
+    }
+}
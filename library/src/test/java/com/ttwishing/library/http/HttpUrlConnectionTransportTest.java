@@ -0,0 +1,216 @@
+package com.ttwishing.library.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用进程内的http server测试HttpUrlConnectionTransport
+ *
+ * 1.状态码、响应头、响应体、gzip解压、错误响应体
+ * 2.响应体读完并close后连接被复用; 剩余数据超过MAX_DRAIN_BYTES时断开
+ * 3.复用与不复用(响应Connection: close)两种情况下的TTFB(get返回即已收到响应头)
+ */
+public class HttpUrlConnectionTransportTest {
+
+    private static final byte[] BODY = bytes(1024);
+    private static final int TTFB_REQUESTS = 200;
+
+    private HttpServer server;
+    private String baseUrl;
+    //服务端看到的客户端端口,每个端口对应一条连接
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    @BeforeClass
+    public static void setUpClass() {
+        //服务端分开写响应头和响应体,不关闭Nagle时复用的连接会等待delayed ack,读取响应体多出约40ms
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                String path = exchange.getRequestURI().getPath();
+                byte[] body = BODY;
+                int status = 200;
+                if (path.equals("/gzip")) {
+                    assertEquals("gzip", exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                    body = gzip(BODY);
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                } else if (path.equals("/missing")) {
+                    status = 404;
+                    body = "not found".getBytes("UTF-8");
+                } else if (path.equals("/large")) {
+                    body = bytes(1024 * 1024);
+                } else if (path.equals("/close")) {
+                    exchange.getResponseHeaders().set("Connection", "close");
+                }
+                exchange.getResponseHeaders().set("X-Echo", String.valueOf(exchange.getRequestHeaders().getFirst("X-Echo")));
+                exchange.sendResponseHeaders(status, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void getReturnsStatusHeadersAndBody() throws Exception {
+        HttpTransport transport = new HttpUrlConnectionTransport();
+        HttpResponse response = transport.get(baseUrl + "/plain", Collections.singletonMap("X-Echo", "abc"));
+        try {
+            assertEquals(200, response.getStatusCode());
+            assertEquals("abc", response.getHeader("X-Echo"));
+            assertEquals(BODY.length, response.getContentLength());
+            assertArrayEquals(BODY, readAll(response.getBody()));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void gzipBodyIsDecoded() throws Exception {
+        HttpResponse response = new HttpUrlConnectionTransport().get(baseUrl + "/gzip", null);
+        try {
+            assertEquals(200, response.getStatusCode());
+            //解压后长度未知
+            assertEquals(-1, response.getContentLength());
+            assertArrayEquals(BODY, readAll(response.getBody()));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void errorBodyIsReadable() throws Exception {
+        HttpResponse response = new HttpUrlConnectionTransport().get(baseUrl + "/missing", null);
+        try {
+            assertEquals(404, response.getStatusCode());
+            assertEquals("not found", new String(readAll(response.getBody()), "UTF-8"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void connectionIsReusedAfterClose() throws Exception {
+        HttpTransport transport = new HttpUrlConnectionTransport();
+        for (int i = 0; i < 10; i++) {
+            HttpResponse response = transport.get(baseUrl + "/plain", null);
+            if (i % 2 == 0) {
+                readAll(response.getBody());
+            }
+            //未读完的少量数据在close时读完
+            response.close();
+        }
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void largeUnreadBodyIsNotDrained() throws Exception {
+        HttpTransport transport = new HttpUrlConnectionTransport();
+        HttpResponse response = transport.get(baseUrl + "/large", null);
+        response.close();
+        response = transport.get(baseUrl + "/plain", null);
+        response.close();
+        assertEquals(2, clientPorts.size());
+    }
+
+    @Test
+    public void timeToFirstByteWithAndWithoutReuse() throws Exception {
+        HttpTransport transport = new HttpUrlConnectionTransport();
+        //预热
+        ttfb(transport, "/plain", TTFB_REQUESTS);
+        ttfb(transport, "/close", TTFB_REQUESTS);
+
+        clientPorts.clear();
+        long reused = ttfb(transport, "/plain", TTFB_REQUESTS);
+        int reusedConnections = clientPorts.size();
+
+        clientPorts.clear();
+        long notReused = ttfb(transport, "/close", TTFB_REQUESTS);
+        int newConnections = clientPorts.size();
+
+        System.out.println("HttpUrlConnectionTransport ttfb: keep-alive=" + reused / 1000 + "us over "
+                + reusedConnections + " connections, Connection: close=" + notReused / 1000 + "us over "
+                + newConnections + " connections");
+        assertEquals(1, reusedConnections);
+        //客户端端口可能被重复分配,不要求严格等于请求数
+        assertTrue(newConnections > TTFB_REQUESTS / 2);
+    }
+
+    /**
+     * @return get平均耗时, 纳秒
+     */
+    private long ttfb(HttpTransport transport, String path, int requests) throws IOException {
+        long total = 0;
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            HttpResponse response = transport.get(baseUrl + path, null);
+            total += System.nanoTime() - start;
+            try {
+                readAll(response.getBody());
+            } finally {
+                response.close();
+            }
+        }
+        return total / requests;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+}
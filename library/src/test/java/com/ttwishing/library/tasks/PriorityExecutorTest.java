@@ -0,0 +1,283 @@
+package com.ttwishing.library.tasks;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 1.PriorityExecutor的排队上限: 丢弃优先级最低的任务中最早提交的, 执行与丢弃的任务数相加等于提交数
+ * 2.去重的状态机: cancel(key)从队列中移除任务, 优先级更高的重复任务替换排队中的, 复用的wrapper不能通过旧的key取消
+ */
+public class PriorityExecutorTest {
+
+    private static class Task implements PriorityExecutor.Item, PriorityExecutor.Discardable, Runnable {
+        final String key;
+        final long priority;
+        final List<String> ran;
+        final List<String> discarded;
+        final CountDownLatch gate;
+
+        Task(String key, long priority, List<String> ran, List<String> discarded, CountDownLatch gate) {
+            this.key = key;
+            this.priority = priority;
+            this.ran = ran;
+            this.discarded = discarded;
+            this.gate = gate;
+        }
+
+        @Override
+        public String getItemKey() {
+            return this.key;
+        }
+
+        @Override
+        public long getItemPriority() {
+            return this.priority;
+        }
+
+        @Override
+        public void onDiscarded() {
+            this.discarded.add(this.key);
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (this.gate != null) {
+                    this.gate.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.ran.add(this.key);
+        }
+    }
+
+    @Test
+    public void discardsLowestPriorityOldestFirst() throws Exception {
+        PriorityExecutor<Task> executor = new PriorityExecutor<Task>("test", 1, 1, 30,
+                PriorityExecutor.PowerMode.ECONOMY, false, false, 3);
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        List<String> discarded = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        //占住唯一的线程
+        executor.execute(new Task("blocker", 100, ran, discarded, gate) {
+            @Override
+            public void run() {
+                started.countDown();
+                super.run();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        executor.execute(new Task("low-old", 1, ran, discarded, null));
+        executor.execute(new Task("high", 10, ran, discarded, null));
+        executor.execute(new Task("low-new", 1, ran, discarded, null));
+        executor.execute(new Task("mid", 5, ran, discarded, null));
+        assertEquals(Collections.singletonList("low-old"), discarded);
+
+        executor.execute(new Task("mid-2", 5, ran, discarded, null));
+        assertEquals(2, discarded.size());
+        assertEquals("low-new", discarded.get(1));
+        assertEquals(2, executor.getDiscardedCount());
+
+        gate.countDown();
+        waitFor(ran, 4);
+        assertEquals("high", ran.get(1));
+        assertTrue(ran.containsAll(Arrays.asList("blocker", "high", "mid", "mid-2")));
+    }
+
+    @Test
+    public void concurrentSubmittersStayBounded() throws Exception {
+        final PriorityExecutor<Task> executor = new PriorityExecutor<Task>("test", 2, 2, 30,
+                PriorityExecutor.PowerMode.ECONOMY, false, true, 16);
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> discarded = Collections.synchronizedList(new ArrayList<String>());
+        final int threads = 4;
+        final int perThread = 2000;
+        final AtomicInteger duplicates = new AtomicInteger();
+        Thread[] submitters = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            submitters[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        if (!executor.execute(new Task(id + "-" + i, i % 7, ran, discarded, null))) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            submitters[t].start();
+        }
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+        assertEquals(0, duplicates.get());
+        waitFor(ran, threads * perThread - (int) executor.getDiscardedCount());
+        assertEquals(threads * perThread, ran.size() + discarded.size());
+        assertEquals(executor.getDiscardedCount(), discarded.size());
+    }
+
+    @Test
+    public void cancelRemovesQueuedTask() throws Exception {
+        PriorityExecutor<Task> executor = new PriorityExecutor<Task>("test", 1, 1, 30,
+                PriorityExecutor.PowerMode.ECONOMY, false);
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        List<String> discarded = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        block(executor, ran, discarded, gate);
+
+        assertTrue(executor.execute(new Task("a", 1, ran, discarded, null)));
+        assertEquals(1, executor.getQueue().size());
+        assertTrue(executor.cancel("a"));
+        assertTrue(executor.getQueue().isEmpty());
+        assertFalse(executor.cancel("a"));
+
+        //取消后同一key可再次提交
+        assertTrue(executor.execute(new Task("b", 1, ran, discarded, null)));
+        gate.countDown();
+        waitFor(ran, 2);
+        assertEquals(Arrays.asList("blocker", "b"), ran);
+    }
+
+    @Test
+    public void higherPriorityDuplicateReplacesQueuedTask() throws Exception {
+        PriorityExecutor<Task> executor = new PriorityExecutor<Task>("test", 1, 1, 30,
+                PriorityExecutor.PowerMode.ECONOMY, false);
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        List<String> replacedRan = Collections.synchronizedList(new ArrayList<String>());
+        List<String> discarded = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        block(executor, ran, discarded, gate);
+
+        assertTrue(executor.execute(new Task("a", 1, replacedRan, discarded, null)));
+        //优先级不高于排队中的,不提交
+        assertFalse(executor.execute(new Task("a", 1, ran, discarded, null)));
+        assertTrue(executor.execute(new Task("a", 5, ran, discarded, null)));
+        assertEquals(1, executor.getQueue().size());
+
+        gate.countDown();
+        waitFor(ran, 2);
+        assertEquals(Arrays.asList("blocker", "a"), ran);
+        assertTrue(replacedRan.isEmpty());
+    }
+
+    @Test
+    public void staleKeyCannotCancelRecycledWrapper() throws Exception {
+        final PriorityExecutor<Task> executor = new PriorityExecutor<Task>("test", 2, 2, 30,
+                PriorityExecutor.PowerMode.ECONOMY, false);
+        final int submitterCount = 2;
+        final int perSubmitter = 50 * 1000;
+        final ConcurrentHashMap<String, AtomicInteger> outcomes = new ConcurrentHashMap<>();
+        final AtomicInteger[] submitted = new AtomicInteger[submitterCount];
+        final AtomicInteger finished = new AtomicInteger();
+        final List<String> ignored = new ArrayList<String>() {
+            @Override
+            public boolean add(String key) {
+                outcomes.get(key).incrementAndGet();
+                finished.incrementAndGet();
+                return true;
+            }
+        };
+        final List<String> discarded = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<>();
+        for (int s = 0; s < submitterCount; s++) {
+            final int id = s;
+            submitted[s] = new AtomicInteger();
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perSubmitter; i++) {
+                        String key = id + "-" + i;
+                        outcomes.put(key, new AtomicInteger());
+                        assertTrue(executor.execute(new Task(key, 0, ignored, discarded, null)));
+                        submitted[id].set(i + 1);
+                    }
+                }
+            }));
+        }
+        //取消刚提交的key,其中很多已执行完,wrapper已被复用于别的key
+        for (int c = 0; c < 2; c++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    while (!done.get()) {
+                        int id = random.nextInt(submitterCount);
+                        int count = submitted[id].get();
+                        if (count == 0) {
+                            continue;
+                        }
+                        String key = id + "-" + Math.max(0, count - 1 - random.nextInt(8));
+                        if (executor.cancel(key)) {
+                            outcomes.get(key).incrementAndGet();
+                            finished.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (int i = 0; i < submitterCount; i++) {
+            threads.get(i).join();
+        }
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (finished.get() < submitterCount * perSubmitter && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        //每个任务要么执行, 要么被自己的key取消, 只有一种结果
+        for (Map.Entry<String, AtomicInteger> entry : outcomes.entrySet()) {
+            assertEquals(entry.getKey(), 1, entry.getValue().get());
+        }
+        assertEquals(submitterCount * perSubmitter, finished.get());
+    }
+
+    /**
+     * 占住唯一的线程, gate打开前不执行其它任务
+     */
+    private static void block(PriorityExecutor<Task> executor, List<String> ran, List<String> discarded,
+                              CountDownLatch gate) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.execute(new Task("blocker", 100, ran, discarded, gate) {
+            @Override
+            public void run() {
+                started.countDown();
+                super.run();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void waitFor(List<String> ran, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (ran.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, ran.size());
+    }
+}